@@ -1,11 +1,16 @@
 package com.whiteboard.client;
 
+import com.whiteboard.client.shapes.FreeDrawing;
 import com.whiteboard.client.shapes.Shape;
 import com.whiteboard.client.ui.WhiteboardFrame;
+import com.whiteboard.common.codec.ShapeBatchCodec;
+import com.whiteboard.common.model.DrawOperation;
 import com.whiteboard.common.remote.IWhiteboardClient;
 import com.whiteboard.common.remote.IWhiteboardServer;
+import com.whiteboard.common.schedule.Scheduler;
 
 import javax.swing.*;
+import java.io.IOException;
 import java.io.Serializable;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
@@ -13,11 +18,16 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
@@ -34,9 +44,11 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
     private boolean isManager;
     private boolean isConnected = false;
     private String currentFilename = null;
+    // 进行中的后台保存：保存编号 -> 文件名
+    private final Map<Long, String> pendingSaves = new HashMap<>();
     private volatile boolean uiInitialized = false;
-    private Timer heartbeatTimer;
-    private Timer joinRequestTimer;
+    private Scheduler.ScheduledTask heartbeatTimer;
+    private volatile Scheduler.ScheduledTask joinRequestTimer;
     private boolean isApproved = false;
 
     private JDialog joinWaitingDialog;
@@ -44,6 +56,14 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
     private volatile boolean approved = false;
     private final Object approvalLock = new Object();
 
+    // 断线重连：按指数退避重试恢复会话，超过服务器的宽限期后放弃
+    private static final long RECONNECT_INITIAL_DELAY_MS = 500;
+    private static final long RECONNECT_MAX_DELAY_MS = 8000;
+    private static final long RECONNECT_TIMEOUT_MS = Long.getLong("whiteboard.reconnect.timeout", 60000);
+    private final Object reconnectLock = new Object();
+    private volatile boolean reconnecting = false;
+    private volatile long reconnectDeadline;
+
     // 缓存未处理的更新
     private final List<Shape> pendingShapes = new ArrayList<>();
     private final List<String> pendingShapeRemovals = new ArrayList<>();
@@ -53,12 +73,34 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
     private boolean pendingManagerLeft = false;
     private boolean pendingKicked = false;
     private boolean pendingClearCanvas = false;
+    private List<Shape> pendingSnapshot = null;
+
+    // 正在分块接收的白板快照
+    private final List<Shape> incomingSnapshot = new ArrayList<>();
+    private long incomingSnapshotVersion = -1;
+
+    // 已应用的最新白板版本，重新注册时服务器只补发之后的操作
+    private final Object versionLock = new Object();
+    private long appliedVersion = -1;
+    // 发现版本不连续后正在重新同步：丢弃之前排队的回调，直到服务器补发的操作或快照到达
+    private boolean resyncing = false;
 
     // 预览相关
-    private Timer previewTimer;
-    private Shape currentPreviewShape;
+    private static final int PREVIEW_FPS = Integer.getInteger("whiteboard.preview.fps", 30);
+    private Scheduler.ScheduledTask previewTimer;
+    // 预览帧由专用线程发送，远程调用阻塞时不占用共享调度器的线程；同时最多只有一次发送在进行
+    private final ExecutorService previewSender = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "whiteboard-preview-sender");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean previewSendPending = new AtomicBoolean();
+    // 等待按帧率发送的最新预览，只保留最新一帧
+    private volatile Shape currentPreviewShape;
     // 新增：当前预览的服务器时间戳
-    private long currentPreviewTimestamp = -1;
+    private volatile long currentPreviewTimestamp = -1;
+    // 自由绘制预览中服务器已确认的点数，-1表示发送完整预览
+    private volatile int previewAckedPoints = -1;
 
     private static class ChatMessage {
         final String sender;
@@ -132,13 +174,7 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
             });
 
             // 2秒后退出，给用户时间看到消息
-            Timer exitTimer = new Timer();
-            exitTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    System.exit(0);
-                }
-            }, 5000);
+            Scheduler.shared().schedule("exit", () -> System.exit(0), 5, TimeUnit.SECONDS);
             return; // 重要：不继续后续流程
         }
 
@@ -157,6 +193,7 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
         isManager = server.isManager(sessionId);
         isConnected = true;
         startHeartbeat();
+        startPreviewTimer();
 
         // 如果不是管理员，显示等待对话框并启动加入请求
         if (!isManager) {
@@ -208,17 +245,12 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
                 // Always register client callback if connected
                 if (isConnected) {
                     try {
-                        server.registerClient(sessionId, this);
+                        server.registerClient(sessionId, this, getAppliedVersion());
                         logger.info("Registered client callback with server");
 
                         // If manager or already approved, get current state
+                        // (shapes arrive as a snapshot pushed by registerClient)
                         if (isManager || isApproved) {
-                            // Get current shapes
-                            List<Shape> shapes = server.getAllShapes();
-                            for (Shape shape : shapes) {
-                                frame.getWhiteboardPanel().addShape(shape);
-                            }
-
                             // Get user list
                             List<String> users = server.getConnectedUsers();
                             frame.updateUserList(users);
@@ -242,8 +274,12 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
             return;
         }
 
-        // 处理挂起的形状
+        // 处理挂起的形状，快照先于之后到达的形状安装
         synchronized (pendingShapes) {
+            if (pendingSnapshot != null) {
+                frame.getWhiteboardPanel().installSnapshot(pendingSnapshot);
+                pendingSnapshot = null;
+            }
             for (Shape shape : pendingShapes) {
                 frame.getWhiteboardPanel().addShape(shape);
             }
@@ -318,9 +354,77 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
         }
     }
 
+    /**
+     * 记录收到的版本。回调按版本顺序到达，早于已应用版本的回调已包含在之前收到的快照中；
+     * 还没有收到初始状态时之后的快照会包含这个修改。版本不连续说明错过了修改，
+     * 丢弃这个回调并从已应用的版本重新同步
+     * @return 是否应用这个回调
+     */
+    private boolean acceptVersion(long version) {
+        long knownVersion;
+        synchronized (versionLock) {
+            if (resyncing || appliedVersion < 0 || version < appliedVersion) {
+                return false;
+            }
+            if (version <= appliedVersion + 1) {
+                appliedVersion = version;
+                return true;
+            }
+            logger.warning("Missed board versions " + (appliedVersion + 1) + " to " + (version - 1) + ", resyncing");
+            resyncing = true;
+            knownVersion = appliedVersion;
+        }
+        requestResync(knownVersion);
+        return false;
+    }
+
+    /**
+     * 重新注册回调，服务器补发 knownVersion 之后的操作，或在 knownVersion 为 -1 时发送完整快照
+     */
+    private void requestResync(long knownVersion) {
+        Scheduler.shared().schedule("resync", () -> {
+            try {
+                server.registerClient(sessionId, this, knownVersion);
+            } catch (RemoteException e) {
+                // 恢复会话时同样会补发错过的操作
+                handleConnectionError(e);
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 快照分块解码失败时丢弃已收到的部分快照，同一快照的后续分块都会被忽略，
+     * 然后以 knownVersion 为 -1 重新注册，请求一份新的完整快照
+     */
+    private void discardSnapshot(long version, int chunkIndex, IOException cause) {
+        synchronized (incomingSnapshot) {
+            if (chunkIndex != 0 && version != incomingSnapshotVersion) {
+                // 这个快照已经丢弃过
+                return;
+            }
+            incomingSnapshot.clear();
+            incomingSnapshotVersion = -1;
+        }
+        logger.severe("Error decoding snapshot chunk " + chunkIndex + " of version " + version
+                + ", requesting a new snapshot: " + cause.getMessage());
+        synchronized (versionLock) {
+            resyncing = true;
+        }
+        requestResync(-1);
+    }
+
+    private long getAppliedVersion() {
+        synchronized (versionLock) {
+            return appliedVersion;
+        }
+    }
+
     // IWhiteboardClient 接口实现
     @Override
-    public void updateShape(Shape shape) throws RemoteException {
+    public void updateShape(Shape shape, long version) throws RemoteException {
+        if (!acceptVersion(version)) {
+            return;
+        }
         if (uiInitialized && frame != null) {
             SwingUtilities.invokeLater(() -> {
                 frame.getWhiteboardPanel().addShape(shape);
@@ -335,7 +439,92 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
     }
 
     @Override
-    public void removeShape(String shapeId) throws RemoteException {
+    public void receiveSnapshotChunk(long version, int chunkIndex, int chunkCount, byte[] data) throws RemoteException {
+        // 在RMI线程解码，避免占用UI线程
+        List<Shape> decoded;
+        try {
+            decoded = ShapeBatchCodec.decode(data);
+        } catch (IOException e) {
+            discardSnapshot(version, chunkIndex, e);
+            return;
+        }
+
+        List<Shape> complete = null;
+        synchronized (incomingSnapshot) {
+            if (chunkIndex == 0) {
+                incomingSnapshot.clear();
+                incomingSnapshotVersion = version;
+            } else if (version != incomingSnapshotVersion) {
+                logger.warning("Ignoring chunk of incomplete snapshot version " + version);
+                return;
+            }
+            incomingSnapshot.addAll(decoded);
+
+            if (chunkIndex == chunkCount - 1) {
+                complete = new ArrayList<>(incomingSnapshot);
+                incomingSnapshot.clear();
+            }
+        }
+
+        if (complete == null) {
+            return;
+        }
+        logger.info("Received snapshot version " + version + " with " + complete.size() + " shapes");
+        synchronized (versionLock) {
+            appliedVersion = version;
+            resyncing = false;
+        }
+
+        final List<Shape> shapes = complete;
+        if (uiInitialized && frame != null) {
+            SwingUtilities.invokeLater(() -> {
+                frame.getWhiteboardPanel().installSnapshot(shapes);
+            });
+        } else {
+            // 快照已包含之前缓存的所有更新
+            synchronized (pendingShapes) {
+                pendingSnapshot = shapes;
+                pendingShapes.clear();
+            }
+            synchronized (pendingShapeRemovals) {
+                pendingShapeRemovals.clear();
+            }
+            pendingClearCanvas = false;
+        }
+    }
+
+    @Override
+    public void receiveOperations(List<DrawOperation> operations) throws RemoteException {
+        logger.info("Received " + operations.size() + " missed operations");
+        // 补发的操作紧接在已应用的版本之后，之前排队的回调已被丢弃
+        synchronized (versionLock) {
+            resyncing = false;
+        }
+        for (DrawOperation operation : operations) {
+            switch (operation.getType()) {
+                case ADD_SHAPE:
+                case UPDATE_SHAPE:
+                    updateShape(operation.getShape(), operation.getVersion());
+                    break;
+                case REMOVE_SHAPE:
+                    removeShape(operation.getShapeId(), operation.getVersion());
+                    break;
+                case CLEAR:
+                    receiveClearCanvas(operation.getVersion());
+                    break;
+                default:
+                    // LOAD 之后服务器改发快照，不会补发
+                    logger.warning("Unexpected missed operation: " + operation.getType());
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public void removeShape(String shapeId, long version) throws RemoteException {
+        if (!acceptVersion(version)) {
+            return;
+        }
         if (uiInitialized && frame != null) {
             SwingUtilities.invokeLater(() -> {
                 frame.getWhiteboardPanel().removeShape(shapeId);
@@ -421,13 +610,7 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
                             JOptionPane.WARNING_MESSAGE);
 
                     // 拒绝后5秒关闭
-                    Timer closeTimer = new Timer();
-                    closeTimer.schedule(new TimerTask() {
-                        @Override
-                        public void run() {
-                            System.exit(0);
-                        }
-                    }, 5000);
+                    Scheduler.shared().schedule("exit", () -> System.exit(0), 5, TimeUnit.SECONDS);
                 }
             });
         } else {
@@ -479,8 +662,11 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
     }
 
     @Override
-    public void receiveClearCanvas() throws RemoteException {
+    public void receiveClearCanvas(long version) throws RemoteException {
     logger.info("Received clear canvas command from server");
+        if (!acceptVersion(version)) {
+            return;
+        }
 
         // Process immediately if UI is ready
         if (uiInitialized && frame != null) {
@@ -553,12 +739,80 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
     }
 
     /**
-     * 处理连接错误
+     * 处理连接错误：在后台尝试恢复会话
      */
     private void handleConnectionError(Exception e) {
+        logger.warning("Connection error: " + e.getMessage());
+        startReconnect();
+    }
+
+    private void startReconnect() {
+        synchronized (reconnectLock) {
+            if (reconnecting || !isConnected) {
+                return;
+            }
+            reconnecting = true;
+        }
+        if (uiInitialized && frame != null) {
+            SwingUtilities.invokeLater(() -> frame.showConnectionStatus("Reconnecting..."));
+        }
+
+        reconnectDeadline = System.currentTimeMillis() + RECONNECT_TIMEOUT_MS;
+        scheduleReconnect(1, RECONNECT_INITIAL_DELAY_MS);
+    }
+
+    // 加入随机抖动，避免服务器恢复时所有客户端同时重连
+    private void scheduleReconnect(int attempt, long delay) {
+        long jittered = delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        Scheduler.shared().schedule("reconnect", () -> attemptReconnect(attempt, delay), jittered, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 尝试恢复会话，失败时按指数退避安排下一次。恢复后服务器只补发错过的操作，不需要重新批准或下载整个白板
+     */
+    private void attemptReconnect(int attempt, long delay) {
+        if (!isConnected) {
+            // 用户已主动断开
+            reconnecting = false;
+            return;
+        }
+
+        Exception error;
+        try {
+            if (server.resumeSession(sessionId, this, getAppliedVersion())) {
+                logger.info("Session resumed after " + attempt + " attempt(s)");
+                reconnecting = false;
+                if (uiInitialized && frame != null) {
+                    SwingUtilities.invokeLater(() -> frame.showConnectionStatus(null));
+                }
+                return;
+            }
+            error = new IllegalStateException("Session expired");
+        } catch (RemoteException e) {
+            logger.info("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+            long next = Math.min(delay * 2, RECONNECT_MAX_DELAY_MS);
+            if (System.currentTimeMillis() + next < reconnectDeadline) {
+                scheduleReconnect(attempt + 1, next);
+                return;
+            }
+            error = e;
+        }
+
+        reconnecting = false;
+        connectionLost(error);
+    }
+
+    /**
+     * 无法恢复会话，结束连接
+     */
+    private void connectionLost(Exception e) {
         isConnected = false;
+        if (heartbeatTimer != null) {
+            heartbeatTimer.cancel();
+        }
         if (uiInitialized && frame != null) {
             SwingUtilities.invokeLater(() -> {
+                frame.showConnectionStatus("Disconnected");
                 JOptionPane.showMessageDialog(frame,
                         "Lost connection to server: " + e.getMessage(),
                         "Connection Error",
@@ -611,6 +865,76 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
         return false;
     }
 
+    /**
+     * 恢复白板的历史版本。输入版本号，或当天的时间（HH:mm 或 HH:mm:ss）恢复到该时刻的状态
+     */
+    public boolean restoreVersion() {
+        if (!isConnected || !isManager) {
+            return false;
+        }
+
+        try {
+            long currentVersion = server.getBoardVersion();
+            String input = JOptionPane.showInputDialog(frame,
+                    "Current version: " + currentVersion + "\nEnter a version number or a time today (HH:mm[:ss]):",
+                    "Restore Version",
+                    JOptionPane.PLAIN_MESSAGE);
+            if (input == null || input.trim().isEmpty()) {
+                return false; // 用户取消
+            }
+
+            long version;
+            try {
+                version = parseRestoreTarget(input.trim());
+            } catch (IllegalArgumentException e) {
+                JOptionPane.showMessageDialog(frame,
+                        "Invalid version or time: " + input.trim(),
+                        "Restore Failed",
+                        JOptionPane.ERROR_MESSAGE);
+                return false;
+            }
+
+            boolean success = version >= 0 && server.restoreVersion(version, sessionId);
+            final long restored = version;
+            if (uiInitialized && frame != null) {
+                SwingUtilities.invokeLater(() -> {
+                    if (success) {
+                        JOptionPane.showMessageDialog(frame,
+                                "Whiteboard restored to version " + restored + ".",
+                                "Restore Successful",
+                                JOptionPane.INFORMATION_MESSAGE);
+                    } else {
+                        JOptionPane.showMessageDialog(frame,
+                                "That version is no longer available in the history.",
+                                "Restore Failed",
+                                JOptionPane.ERROR_MESSAGE);
+                    }
+                });
+            }
+            return success;
+        } catch (RemoteException e) {
+            logger.warning("Error restoring version: " + e.getMessage());
+            handleConnectionError(e);
+            return false;
+        }
+    }
+
+    // 纯数字为版本号，否则按当天的时间查找该时刻的版本
+    private long parseRestoreTarget(String input) throws RemoteException {
+        if (input.matches("\\d+")) {
+            return Long.parseLong(input);
+        }
+        java.time.LocalTime time;
+        try {
+            time = java.time.LocalTime.parse(input);
+        } catch (java.time.format.DateTimeParseException e) {
+            throw new IllegalArgumentException(e);
+        }
+        long timestamp = time.atDate(java.time.LocalDate.now())
+                .atZone(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return server.findVersionAt(timestamp, sessionId);
+    }
+
     /**
      * 保存白板
      */
@@ -621,44 +945,13 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
 
         // 如果有当前文件名，直接保存
         if (currentFilename != null && !currentFilename.trim().isEmpty()) {
-            try {
-                boolean success = server.saveWhiteboard(currentFilename, sessionId);
-                if (success) {
-                    // 显示成功消息
-                    if (uiInitialized && frame != null) {
-                        SwingUtilities.invokeLater(() -> {
-                            JOptionPane.showMessageDialog(frame,
-                                    "Whiteboard saved successfully.",
-                                    "Save Successful",
-                                    JOptionPane.INFORMATION_MESSAGE);
-                        });
-                    }
-                } else {
-                    // 显示错误消息
-                    if (uiInitialized && frame != null) {
-                        SwingUtilities.invokeLater(() -> {
-                            JOptionPane.showMessageDialog(frame,
-                                    "Failed to save whiteboard.",
-                                    "Save Failed",
-                                    JOptionPane.ERROR_MESSAGE);
-                        });
-                    }
-                }
-                return success;
-            } catch (RemoteException e) {
-                logger.warning("Error saving whiteboard: " + e.getMessage());
-                handleConnectionError(e);
-                return false;
-            }
+            return submitSave(currentFilename);
         } else {
             // 如果没有当前文件名，调用另存为
             return saveWhiteboardAs(null);
         }
     }
 
-    /**
-     * 另存为
-     */
     /**
      * 另存为
      */
@@ -677,34 +970,32 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
             return false; // 用户取消
         }
 
-        final String finalFilename = inputFilename.trim();
+        return submitSave(inputFilename.trim());
+    }
 
+    /**
+     * 请求服务器在后台保存，结果通过 notifySaveCompleted 通知
+     * @return 服务器是否接受了保存请求
+     */
+    private boolean submitSave(String filename) {
         try {
-            boolean success = server.saveWhiteboard(finalFilename, sessionId);
-            if (success) {
-                this.currentFilename = finalFilename; // 更新当前文件名
-
-                // 显示成功消息
-                if (uiInitialized && frame != null) {
-                    SwingUtilities.invokeLater(() -> {
-                        JOptionPane.showMessageDialog(frame,
-                                "Whiteboard saved successfully as: " + finalFilename,
-                                "Save As Successful",
-                                JOptionPane.INFORMATION_MESSAGE);
-                    });
-                }
-            } else {
-                // 显示错误消息
-                if (uiInitialized && frame != null) {
-                    SwingUtilities.invokeLater(() -> {
-                        JOptionPane.showMessageDialog(frame,
-                                "Failed to save whiteboard as: " + finalFilename,
-                                "Save As Failed",
-                                JOptionPane.ERROR_MESSAGE);
-                    });
+            long ticket;
+            // 持有锁直到记录编号，避免完成通知先于记录到达
+            synchronized (pendingSaves) {
+                ticket = server.saveWhiteboard(filename, sessionId);
+                if (ticket >= 0) {
+                    pendingSaves.put(ticket, filename);
                 }
             }
-            return success;
+
+            if (ticket < 0) {
+                showSaveResult(filename, false, null);
+                return false;
+            }
+            if (uiInitialized && frame != null) {
+                SwingUtilities.invokeLater(() -> frame.showSaveProgress(filename, 0));
+            }
+            return true;
         } catch (RemoteException e) {
             logger.warning("Error saving whiteboard: " + e.getMessage());
             handleConnectionError(e);
@@ -712,6 +1003,52 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
         }
     }
 
+    @Override
+    public void notifySaveProgress(long ticket, int percent) throws RemoteException {
+        String filename;
+        synchronized (pendingSaves) {
+            filename = pendingSaves.get(ticket);
+        }
+        if (filename != null && uiInitialized && frame != null) {
+            SwingUtilities.invokeLater(() -> frame.showSaveProgress(filename, percent));
+        }
+    }
+
+    @Override
+    public void notifySaveCompleted(long ticket, boolean success, String error) throws RemoteException {
+        String filename;
+        synchronized (pendingSaves) {
+            filename = pendingSaves.remove(ticket);
+        }
+        if (filename == null) {
+            return;
+        }
+        logger.info("Save " + ticket + " of " + filename + (success ? " completed" : " failed: " + error));
+        if (success) {
+            this.currentFilename = filename; // 更新当前文件名
+        }
+        showSaveResult(filename, success, error);
+    }
+
+    private void showSaveResult(String filename, boolean success, String error) {
+        if (uiInitialized && frame != null) {
+            SwingUtilities.invokeLater(() -> {
+                frame.clearSaveProgress();
+                if (success) {
+                    JOptionPane.showMessageDialog(frame,
+                            "Whiteboard saved successfully as: " + filename,
+                            "Save Successful",
+                            JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(frame,
+                            "Failed to save whiteboard as: " + filename + (error != null ? "\n" + error : ""),
+                            "Save Failed",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            });
+        }
+    }
+
     /**
      * 加载白板
      */
@@ -787,32 +1124,83 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
             heartbeatTimer.cancel();
         }
 
-        heartbeatTimer = new Timer(true);
-        heartbeatTimer.scheduleAtFixedRate(new TimerTask() {
-            private int failureCount = 0;
-            private final int MAX_FAILURES = 3;
+        // 每3秒发送一次心跳，更频繁的检测
+        heartbeatTimer = Scheduler.shared().scheduleWithFixedDelay("heartbeat", this::sendHeartbeat, 3, 3, TimeUnit.SECONDS);
+    }
 
-            @Override
-            public void run() {
-                if (isConnected) {
-                    try {
-                        // 发送心跳
-                        server.updateUserActivity(sessionId);
-                        failureCount = 0; // 重置失败计数
-                        logger.fine("Heartbeat sent successfully");
-                    } catch (RemoteException e) {
-                        failureCount++;
-                        logger.warning("Heartbeat failed (" + failureCount + "/" + MAX_FAILURES + "): " + e.getMessage());
+    private void sendHeartbeat() {
+        if (isConnected && !reconnecting) {
+            try {
+                // 发送心跳，服务器已挂起会话（例如回调失败）时恢复会话
+                if (server.updateUserActivity(sessionId)) {
+                    logger.fine("Heartbeat sent successfully");
+                } else {
+                    logger.warning("Server suspended this session, resuming");
+                    startReconnect();
+                }
+            } catch (RemoteException e) {
+                logger.warning("Heartbeat failed: " + e.getMessage());
+                handleConnectionError(e);
+            }
+        }
+    }
 
-                        if (failureCount >= MAX_FAILURES) {
-                            logger.severe("Multiple heartbeat failures, treating as disconnected");
-                            handleConnectionError(e);
-                            heartbeatTimer.cancel();
-                        }
+    /**
+     * 初始化预览发送定时器，按固定帧率发送最新的预览帧
+     */
+    private void startPreviewTimer() {
+        if (previewTimer != null) {
+            previewTimer.cancel();
+        }
+
+        long periodMs = Math.max(1, 1000 / Math.max(1, PREVIEW_FPS));
+        previewTimer = Scheduler.shared().scheduleWithFixedDelay("preview-sender", this::schedulePreviewFlush, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 把最新的预览帧交给发送线程；上一帧仍在发送（例如远程调用阻塞）或正在重连时跳过本次
+     */
+    private void schedulePreviewFlush() {
+        if (currentPreviewShape == null || reconnecting) {
+            return;
+        }
+        if (previewSendPending.compareAndSet(false, true)) {
+            previewSender.execute(() -> {
+                try {
+                    flushPreview();
+                } finally {
+                    previewSendPending.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * 发送最新的预览帧，期间被覆盖的中间帧不会发送
+     */
+    private void flushPreview() {
+        Shape shape = currentPreviewShape;
+        if (shape == null || reconnecting) {
+            return;
+        }
+        currentPreviewShape = null;
+
+        if (isConnected && (isManager || isApproved) && currentPreviewTimestamp != -1) {
+            try {
+                if (shape instanceof FreeDrawing && previewAckedPoints >= 0) {
+                    // 自由绘制只发送服务器尚未确认的点
+                    int[] coordinates = ((FreeDrawing) shape).getCoordinates(previewAckedPoints);
+                    if (coordinates.length > 0) {
+                        int serverCount = server.appendPreviewPoints(previewAckedPoints, coordinates, sessionId);
+                        previewAckedPoints = serverCount;
                     }
+                } else {
+                    server.updatePreview(shape, sessionId);
                 }
+            } catch (RemoteException e) {
+                logger.warning("Error updating preview: " + e.getMessage());
             }
-        }, 3000, 3000); // 每3秒发送一次心跳，更频繁的检测
+        }
     }
 
     /**
@@ -823,17 +1211,8 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
             joinRequestTimer.cancel();
         }
 
-        joinRequestTimer = new Timer(true);
-        joinRequestTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                if (isConnected && !isApproved && !isManager) {
-                    sendJoinRequest();
-                } else if (isApproved || isManager) {
-                    joinRequestTimer.cancel();
-                }
-            }
-        }, 0, 5000); // 每5秒发送一次请求
+        // 每5秒发送一次请求，批准后由 sendJoinRequest 取消
+        joinRequestTimer = Scheduler.shared().scheduleWithFixedDelay("join-request", this::sendJoinRequest, 0, 5, TimeUnit.SECONDS);
     }
 
     /**
@@ -886,13 +1265,7 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
                         JOptionPane.ERROR_MESSAGE);
 
                 // 5秒后关闭应用
-                Timer closeTimer = new Timer();
-                closeTimer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        System.exit(0);
-                    }
-                }, 5000);
+                Scheduler.shared().schedule("exit", () -> System.exit(0), 5, TimeUnit.SECONDS);
             });
         }
     }
@@ -943,27 +1316,10 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
         if (isConnected && isApproved && server != null) {
             try {
                 // 注册客户端回调
-                server.registerClient(sessionId, this);
+                server.registerClient(sessionId, this, getAppliedVersion());
                 logger.info("Successfully registered client for updates after approval");
 
-                // 获取当前白板状态
-                List<Shape> shapes = server.getAllShapes();
-                if (shapes != null && !shapes.isEmpty()) {
-                    logger.info("Received " + shapes.size() + " shapes from server");
-
-                    if (uiInitialized && frame != null) {
-                        SwingUtilities.invokeLater(() -> {
-                            for (Shape shape : shapes) {
-                                frame.getWhiteboardPanel().addShape(shape);
-                            }
-                        });
-                    } else {
-                        // 缓存形状
-                        synchronized (pendingShapes) {
-                            pendingShapes.addAll(shapes);
-                        }
-                    }
-                }
+                // 当前白板状态由服务器在注册后以快照形式推送
 
                 // 获取用户列表
                 List<String> users = server.getConnectedUsers();
@@ -1083,6 +1439,15 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
             });
         }
     }
+    @Override
+    public void receivePreviewAppend(String fromUser, int fromIndex, int[] coordinates) throws RemoteException {
+        if (uiInitialized && frame != null) {
+            SwingUtilities.invokeLater(() -> {
+                frame.getWhiteboardPanel().appendPreviewPoints(fromUser, fromIndex, coordinates);
+            });
+        }
+    }
+
     @Override
     public void receivePreviewUpdate(Shape previewShape, String fromUser) throws RemoteException {
         if (uiInitialized && frame != null) {
@@ -1154,13 +1519,7 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
                         JOptionPane.ERROR_MESSAGE);
 
                 // 2秒后退出，给用户时间看到消息
-                Timer exitTimer = new Timer();
-                exitTimer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        System.exit(0);
-                    }
-                }, 2000);
+                Scheduler.shared().schedule("exit", () -> System.exit(0), 2, TimeUnit.SECONDS);
             });
         } else {
             // UI未初始化，直接退出
@@ -1174,6 +1533,8 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
         if (isConnected && (isManager || isApproved)) {
             try {
                 // 向服务器请求预览时间戳
+                previewAckedPoints = initialShape instanceof FreeDrawing ?
+                        ((FreeDrawing) initialShape).getPointCount() : -1;
                 currentPreviewTimestamp = server.startPreview(initialShape, sessionId);
                 logger.info("Started preview with timestamp: " + currentPreviewTimestamp);
             } catch (RemoteException e) {
@@ -1183,21 +1544,18 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
         }
     }
 
-    // 修改：更新预览
+    // 修改：更新预览，只记录最新帧，由预览定时器按帧率发送
     public void updateLocalPreview(Shape shape) {
         if (isConnected && (isManager || isApproved) && currentPreviewTimestamp != -1) {
-            try {
-                // 保持预览时间戳
-                shape.setTimestamp(currentPreviewTimestamp);
-                server.updatePreview(shape, sessionId);
-            } catch (RemoteException e) {
-                logger.warning("Error updating preview: " + e.getMessage());
-            }
+            // 保持预览时间戳
+            shape.setTimestamp(currentPreviewTimestamp);
+            currentPreviewShape = shape;
         }
     }
 
     // 新增：完成形状
     public void completeLocalShape(Shape finalShape) {
+        currentPreviewShape = null; // 丢弃尚未发送的预览帧
         if (isConnected && (isManager || isApproved)) {
             try {
                 server.completeShape(finalShape, sessionId);
@@ -1210,6 +1568,7 @@ public class WhiteboardClient extends UnicastRemoteObject implements IWhiteboard
     }
 
     public void clearLocalPreview() {
+        currentPreviewShape = null;
         if (isConnected && (isManager || isApproved)) {
             try {
                 server.clearPreview(sessionId);
@@ -0,0 +1,30 @@
+package com.whiteboard.client.shapes;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+
+/**
+ * 形状在Java序列化流中的替身，内容为 ShapeCodec 的编码结果，
+ * 反序列化时还原为原来的形状对象。
+ */
+final class EncodedShape implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] data;
+
+    EncodedShape(byte[] data) {
+        this.data = data;
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+        try {
+            return ShapeCodec.decode(data);
+        } catch (IOException e) {
+            InvalidObjectException invalid = new InvalidObjectException("Cannot decode shape: " + e.getMessage());
+            invalid.initCause(e);
+            throw invalid;
+        }
+    }
+}
@@ -38,7 +38,7 @@ public class ErasureShape extends Shape {
     }
 
     @Override
-    public boolean contains(Point p) {
+    protected boolean hitTest(Point p) {
         // 擦除形状不需要被选中/检测，返回false
         return false;
     }
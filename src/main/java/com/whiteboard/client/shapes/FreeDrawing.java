@@ -2,39 +2,112 @@ package com.whiteboard.client.shapes;
 
 
 import java.awt.*;
-import java.util.ArrayList;
+import java.awt.geom.Path2D;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
 
 public class FreeDrawing extends Shape {
     private static final long serialVersionUID = 1L;
 
-    private List<Point> points;
+    // 旧版本序列化的是 List<Point> points，读取时兼容；新版本只写入坐标数组
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("points", List.class),
+            new ObjectStreamField("coordinates", int[].class)
+    };
+
+    private static final int INITIAL_CAPACITY = 16;
+    // 点数少于这个值的笔迹不做分档简化
+    private static final int LOD_MIN_POINTS = 8;
+
+    // 交错排列的坐标 x0, y0, x1, y1 ...，只有前 2 * pointCount 个有效。
+    // 追加时先写坐标再增加点数，其他线程先读点数再读数组，总能看到完整的点
+    private transient int[] coordinates;
+    private transient volatile int pointCount;
+
+    // 所有点的坐标范围，按需计算并在追加点时扩展
+    private transient boolean hasBounds;
+    private transient int minX, minY, maxX, maxY;
+
+    private transient Path2D.Float path;
+    private transient int pathPointCount;
+    private transient SegmentGrid segmentGrid;
+
+    // 各档简化后的路径，下标为档减去 LevelOfDetail.MIN_BUCKET；坐标数组或点数改变后作废
+    private transient Path2D.Float[] lodPaths;
+    private transient int[] lodCoordinates;
+    private transient int lodPointCount;
 
     public FreeDrawing(Point start, Color color, int strokeWidth) {
         super(start, start, color, strokeWidth);
-        points = new ArrayList<>();
-        points.add(start);
+        coordinates = new int[INITIAL_CAPACITY * 2];
+        coordinates[0] = start.x;
+        coordinates[1] = start.y;
+        pointCount = 1;
 
         System.out.println("FreeDrawing created with color: " + color + " (RGB: " + color.getRGB() + ")");
     }
 
-    public void addPoint(Point p) {
-        points.add(p);
+    /**
+     * 解码时使用
+     * @param coordinates 交错排列的坐标，直接作为存储使用，调用方之后不能再修改
+     * @param count 点数，至少为 1
+     */
+    FreeDrawing(String id, int[] coordinates, int count, Color color, int strokeWidth, long timestamp) {
+        super(id, new Point(coordinates[0], coordinates[1]),
+                new Point(coordinates[count * 2 - 2], coordinates[count * 2 - 1]), color, strokeWidth, timestamp);
+        this.coordinates = coordinates;
+        this.pointCount = count;
+    }
+
+    // 预览帧可能在其他线程序列化，添加点与序列化互斥
+    public synchronized void addPoint(Point p) {
+        append(p.x, p.y);
         endPoint = p;
     }
 
+    public synchronized void addPoint(int x, int y) {
+        append(x, y);
+        endPoint = new Point(x, y);
+    }
+
+    private void append(int x, int y) {
+        int n = pointCount;
+        if (n * 2 + 1 >= coordinates.length) {
+            coordinates = Arrays.copyOf(coordinates, Math.max(INITIAL_CAPACITY * 2, coordinates.length * 2));
+        }
+        coordinates[n * 2] = x;
+        coordinates[n * 2 + 1] = y;
+        pointCount = n + 1;
+        if (hasBounds) {
+            includeInBounds(x, y);
+        }
+        invalidateBounds();
+    }
+
     @Override
     public void draw(Graphics2D g) {
-        if (points.size() < 2) {
+        int n = pointCount;
+        int[] c = coordinates;
+        if (n < 2) {
             // 如果只有一个点，绘制一个小圆点
-            if (points.size() == 1) {
-                Point p = points.get(0);
+            if (n == 1) {
                 g.setColor(getDrawColor());
-                g.fillOval(p.x - strokeWidth/2, p.y - strokeWidth/2, strokeWidth, strokeWidth);
+                g.fillOval(c[0] - strokeWidth/2, c[1] - strokeWidth/2, strokeWidth, strokeWidth);
             }
             return;
         }
 
+        strokePath(g, renderPath(c, n));
+    }
+
+    private void strokePath(Graphics2D g, java.awt.Shape path) {
         // 保存原始设置
         Stroke originalStroke = g.getStroke();
         Color originalColor = g.getColor();
@@ -42,14 +115,10 @@ public class FreeDrawing extends Shape {
         try {
             // 设置绘制属性
             g.setColor(getDrawColor());
-            g.setStroke(new BasicStroke(strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            g.setStroke(getRenderStroke());
 
             // 绘制路径
-            for (int i = 0; i < points.size() - 1; i++) {
-                Point p1 = points.get(i);
-                Point p2 = points.get(i + 1);
-                g.drawLine(p1.x, p1.y, p2.x, p2.y);
-            }
+            g.draw(path);
         } finally {
             // 恢复原始设置
             g.setStroke(originalStroke);
@@ -57,26 +126,284 @@ public class FreeDrawing extends Shape {
         }
     }
 
+    /**
+     * 按比例所在的档绘制简化后的路径，简化的偏差不到半个设备像素。
+     * 各档的路径在第一次使用时生成并缓存，点改变后重新生成
+     */
     @Override
-    public boolean contains(Point p) {
-        for (int i = 0; i < points.size() - 1; i++) {
-            Point p1 = points.get(i);
-            Point p2 = points.get(i + 1);
-            double dist = distanceToLine(p, p1, p2);
-            if (dist <= strokeWidth + 2) return true;
+    public void draw(Graphics2D g, double scale) {
+        int n = pointCount;
+        int[] c = coordinates;
+        int bucket = LevelOfDetail.bucket(scale);
+        java.awt.Rectangle box = renderBounds();
+        if (n < LOD_MIN_POINTS || bucket >= LevelOfDetail.MAX_BUCKET
+                || LevelOfDetail.isSubPixel(Math.max(box.width, box.height), scale)) {
+            super.draw(g, scale);
+            return;
+        }
+        strokePath(g, lodPath(bucket, c, n));
+    }
+
+    // 只在绘制线程中调用
+    private Path2D lodPath(int bucket, int[] c, int n) {
+        Path2D.Float[] paths = lodPaths;
+        if (paths == null || lodCoordinates != c || lodPointCount != n) {
+            paths = new Path2D.Float[LevelOfDetail.MAX_BUCKET - LevelOfDetail.MIN_BUCKET];
+            lodPaths = paths;
+            lodCoordinates = c;
+            lodPointCount = n;
+        }
+        int slot = bucket - LevelOfDetail.MIN_BUCKET;
+        Path2D.Float p = paths[slot];
+        if (p == null) {
+            int[] simplified = Arrays.copyOf(c, n * 2);
+            int kept = StrokeSimplifier.simplify(simplified, n, LevelOfDetail.tolerance(bucket));
+            p = new Path2D.Float(Path2D.WIND_NON_ZERO, kept);
+            p.moveTo(simplified[0], simplified[1]);
+            for (int i = 1; i < kept; i++) {
+                p.lineTo(simplified[i * 2], simplified[i * 2 + 1]);
+            }
+            paths[slot] = p;
+        }
+        return p;
+    }
+
+    /**
+     * 绘制用的路径，缓存在对象中；追加了点时在原路径上延长，简化后重新创建。
+     * 只在绘制线程中调用
+     */
+    private Path2D renderPath(int[] c, int n) {
+        Path2D.Float p = path;
+        if (p == null || pathPointCount > n) {
+            p = new Path2D.Float(Path2D.WIND_NON_ZERO, n);
+            p.moveTo(c[0], c[1]);
+            pathPointCount = 1;
+            path = p;
+        }
+        for (int i = pathPointCount; i < n; i++) {
+            p.lineTo(c[i * 2], c[i * 2 + 1]);
+        }
+        pathPointCount = n;
+        return p;
+    }
+
+    @Override
+    protected Stroke createStroke() {
+        return new BasicStroke(strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    }
+
+    @Override
+    protected boolean hitTest(Point p) {
+        int n = pointCount;
+        int[] c = coordinates;
+        double limit = hitTolerance();
+        double limitSquared = limit * limit;
+        if (n == 1) {
+            return p.distanceSq(c[0], c[1]) <= limitSquared;
+        }
+        if (n - 1 >= SegmentGrid.MIN_SEGMENTS) {
+            // 长笔迹只检查点所在网格单元中的线段
+            SegmentGrid grid = segmentGrid;
+            if (grid == null || grid.coordinates != c || grid.pointCount != n) {
+                grid = new SegmentGrid(c, n, hitTolerance());
+                segmentGrid = grid;
+            }
+            return grid.hits(p.x, p.y, limitSquared);
+        }
+        for (int i = 0; i < n - 1; i++) {
+            if (segmentDistanceSquared(p.x, p.y, c[i * 2], c[i * 2 + 1], c[i * 2 + 2], c[i * 2 + 3]) <= limitSquared) {
+                return true;
+            }
         }
         return false;
     }
 
-    private double distanceToLine(Point p, Point start, Point end) {
-        double normalLength = Math.sqrt((end.x-start.x)*(end.x-start.x) +
-                (end.y-start.y)*(end.y-start.y));
-        if (normalLength == 0) return p.distance(start);
-        return Math.abs((p.x-start.x)*(end.y-start.y)-(p.y-start.y)*(end.x-start.x))/normalLength;
+    @Override
+    public synchronized java.awt.Rectangle getBounds() {
+        if (!hasBounds) {
+            for (int i = 0; i < pointCount; i++) {
+                includeInBounds(coordinates[i * 2], coordinates[i * 2 + 1]);
+            }
+        }
+        return outset(minX, minY, maxX, maxY, strokePadding());
     }
 
-    // 新增：获取点列表（用于调试或其他用途）
+    /**
+     * 获取从指定下标开始的路径范围（包含前一个点，以覆盖连接它的线段），
+     * 用于只重绘新追加的部分
+     * @param fromIndex 起始点下标
+     * @return 范围，没有点时返回 null
+     */
+    public synchronized java.awt.Rectangle getBounds(int fromIndex) {
+        int start = Math.max(0, fromIndex - 1);
+        if (start >= pointCount) {
+            return null;
+        }
+        int x0 = coordinates[start * 2], y0 = coordinates[start * 2 + 1], x1 = x0, y1 = y0;
+        for (int i = start + 1; i < pointCount; i++) {
+            int x = coordinates[i * 2];
+            int y = coordinates[i * 2 + 1];
+            x0 = Math.min(x0, x);
+            y0 = Math.min(y0, y);
+            x1 = Math.max(x1, x);
+            y1 = Math.max(y1, y);
+        }
+        return outset(x0, y0, x1, y1, strokePadding());
+    }
+
+    // 圆头圆角的线段最多向外延伸半个线宽
+    private int strokePadding() {
+        return (strokeWidth + 1) / 2 + 2;
+    }
+
+    private void includeInBounds(int x, int y) {
+        if (!hasBounds) {
+            minX = maxX = x;
+            minY = maxY = y;
+            hasBounds = true;
+            return;
+        }
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        maxX = Math.max(maxX, x);
+        maxY = Math.max(maxY, y);
+    }
+
+    /**
+     * 获取点列表的只读视图，不复制坐标，每次访问元素时创建一个 Point。
+     * 视图随之后追加的点增长；需要固定内容时自行复制
+     */
     public List<Point> getPoints() {
-        return new ArrayList<>(points);
+        return new PointView();
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    public int getX(int index) {
+        checkIndex(index);
+        return coordinates[index * 2];
+    }
+
+    public int getY(int index) {
+        checkIndex(index);
+        return coordinates[index * 2 + 1];
+    }
+
+    /**
+     * 获取最后一个点
+     */
+    public synchronized Point getLastPoint() {
+        int n = pointCount;
+        return new Point(coordinates[n * 2 - 2], coordinates[n * 2 - 1]);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= pointCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + pointCount);
+        }
+    }
+
+    /**
+     * 获取从指定下标开始的点坐标，用于增量发送预览
+     * @param fromIndex 起始点下标
+     * @return 交错排列的坐标 x0, y0, x1, y1 ...
+     */
+    public synchronized int[] getCoordinates(int fromIndex) {
+        int start = Math.min(Math.max(0, fromIndex), pointCount);
+        return Arrays.copyOfRange(coordinates, start * 2, pointCount * 2);
+    }
+
+    /**
+     * 追加增量坐标，已存在的重叠部分会被跳过
+     * @param fromIndex 坐标中第一个点对应的下标
+     * @param coordinates 交错排列的坐标
+     * @return 追加后的点数；如果起始下标为负数或超出当前点数（中间有缺失），
+     *         或坐标数不是偶数，则不追加
+     */
+    public synchronized int appendCoordinates(int fromIndex, int[] coordinates) {
+        // 参数来自远程客户端，不可信
+        if (fromIndex < 0 || fromIndex > pointCount || coordinates == null || coordinates.length % 2 != 0) {
+            return pointCount;
+        }
+        int added = 0;
+        for (int i = pointCount - fromIndex; i * 2 + 1 < coordinates.length; i++) {
+            append(coordinates[i * 2], coordinates[i * 2 + 1]);
+            added++;
+        }
+        if (added > 0) {
+            endPoint = getLastPoint();
+        }
+        return pointCount;
+    }
+
+    /**
+     * 笔迹完成后压缩点列：可选地平滑，再删除偏差不超过容差的点，并释放多余的容量。
+     * 只在绘制该笔迹的线程中调用（绘制时不加锁）
+     * @param tolerance 允许的最大偏差（像素）
+     * @param smooth 是否先用曲线平滑
+     * @return 压缩后的点数
+     */
+    public synchronized int simplify(double tolerance, boolean smooth) {
+        int n = pointCount;
+        int[] c = Arrays.copyOf(coordinates, n * 2);
+        if (smooth && n > 2) {
+            n = StrokeSimplifier.simplify(c, n, tolerance);
+            c = StrokeSimplifier.smooth(c, n);
+            n = c.length / 2;
+        }
+        n = StrokeSimplifier.simplify(c, n, tolerance);
+        coordinates = Arrays.copyOf(c, n * 2);
+        pointCount = n;
+        hasBounds = false;
+        path = null;
+        segmentGrid = null;
+        invalidateBounds();
+        return n;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("coordinates", Arrays.copyOf(coordinates, pointCount * 2));
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        int[] packed = (int[]) fields.get("coordinates", null);
+        if (packed == null) {
+            List<Point> points = (List<Point>) fields.get("points", null);
+            if (points == null) {
+                throw new InvalidObjectException("Free drawing without points: " + id);
+            }
+            packed = new int[points.size() * 2];
+            for (int i = 0; i < points.size(); i++) {
+                packed[i * 2] = points.get(i).x;
+                packed[i * 2 + 1] = points.get(i).y;
+            }
+        }
+        if (packed.length < 2 || packed.length % 2 != 0) {
+            throw new InvalidObjectException("Invalid free drawing coordinates: " + id);
+        }
+        coordinates = packed;
+        pointCount = packed.length / 2;
+    }
+
+    // 点列表的只读视图
+    private final class PointView extends AbstractList<Point> implements RandomAccess {
+        @Override
+        public Point get(int index) {
+            synchronized (FreeDrawing.this) {
+                checkIndex(index);
+                return new Point(coordinates[index * 2], coordinates[index * 2 + 1]);
+            }
+        }
+
+        @Override
+        public int size() {
+            return pointCount;
+        }
     }
-}
\ No newline at end of file
+}
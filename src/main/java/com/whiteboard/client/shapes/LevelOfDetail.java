@@ -0,0 +1,49 @@
+package com.whiteboard.client.shapes;
+
+import java.awt.geom.AffineTransform;
+
+/**
+ * 绘制时的细节层次。
+ * 用户坐标到设备像素的比例按 2 的幂分档，每档对应一个简化容差（该档最大比例下的半个设备像素），
+ * 形状按档缓存简化后的几何，同一档内任意比例下的绘制结果与原始几何相差不到半个像素。
+ * 在设备上不到一个像素的形状只画一个点。
+ */
+public final class LevelOfDetail {
+    // 比例 [2^b, 2^(b+1)) 属于第 b 档；最高档及以上按原始几何绘制
+    public static final int MIN_BUCKET = -6;
+    public static final int MAX_BUCKET = 3;
+
+    // 外接矩形在设备上小于这个像素数的形状只画一个点
+    static final double MIN_PIXELS = 1.0;
+
+    private LevelOfDetail() {
+    }
+
+    /**
+     * 变换的缩放比例（面积缩放的平方根，旋转和切变不影响）
+     */
+    public static double scaleOf(AffineTransform transform) {
+        double scale = Math.sqrt(Math.abs(transform.getDeterminant()));
+        return scale > 0 ? scale : 1.0;
+    }
+
+    /**
+     * 比例所在的档
+     */
+    public static int bucket(double scale) {
+        int b = Math.getExponent(scale);
+        return Math.max(MIN_BUCKET, Math.min(MAX_BUCKET, b));
+    }
+
+    /**
+     * 该档的简化容差（用户坐标）
+     */
+    static double tolerance(int bucket) {
+        return 0.5 / Math.scalb(1.0, bucket + 1);
+    }
+
+    // 用户坐标下的尺寸在该比例下是否不到一个设备像素
+    static boolean isSubPixel(int size, double scale) {
+        return size * scale < MIN_PIXELS;
+    }
+}
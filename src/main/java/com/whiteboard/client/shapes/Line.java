@@ -3,26 +3,27 @@ package com.whiteboard.client.shapes;
 import java.awt.*;
 
 public class Line extends Shape {
+    // 固定为原先默认计算的值，保证旧的 .wbd 文件可以读取
+    private static final long serialVersionUID = -4437903862613383177L;
+
     public Line(Point start, Point end, Color color, int strokeWidth) {
         super(start, end, color, strokeWidth);
     }
 
+    Line(String id, Point start, Point end, Color color, int strokeWidth, long timestamp) {
+        super(id, start, end, color, strokeWidth, timestamp);
+    }
+
     @Override
     public void draw(Graphics2D g) {
         g.setColor(getDrawColor());
-        g.setStroke(new BasicStroke(strokeWidth));
+        g.setStroke(getRenderStroke());
         g.drawLine(startPoint.x, startPoint.y, endPoint.x, endPoint.y);
     }
 
     @Override
-    public boolean contains(Point p) {
-        double distanceToLine = distanceToLine(p, startPoint, endPoint);
-        return distanceToLine <= strokeWidth + 2;
-    }
-
-    private double distanceToLine(Point p, Point start, Point end) {
-        double normalLength = Math.sqrt((end.x-start.x)*(end.x-start.x) +
-                (end.y-start.y)*(end.y-start.y));
-        return Math.abs((p.x-start.x)*(end.y-start.y)-(p.y-start.y)*(end.x-start.x))/normalLength;
+    protected boolean hitTest(Point p) {
+        double limit = strokeWidth + 2;
+        return segmentDistanceSquared(p.x, p.y, startPoint.x, startPoint.y, endPoint.x, endPoint.y) <= limit * limit;
     }
 }
\ No newline at end of file
@@ -3,14 +3,21 @@ package com.whiteboard.client.shapes;
 import java.awt.*;
 
 public class Oval extends Shape {
+    // 固定为原先默认计算的值，保证旧的 .wbd 文件可以读取
+    private static final long serialVersionUID = 8444337968125937295L;
+
     public Oval(Point start, Point end, Color color, int strokeWidth) {
         super(start, end, color, strokeWidth);
     }
 
+    Oval(String id, Point start, Point end, Color color, int strokeWidth, long timestamp) {
+        super(id, start, end, color, strokeWidth, timestamp);
+    }
+
     @Override
     public void draw(Graphics2D g) {
         g.setColor(getDrawColor());
-        g.setStroke(new BasicStroke(strokeWidth));
+        g.setStroke(getRenderStroke());
 
         int x = Math.min(startPoint.x, endPoint.x);
         int y = Math.min(startPoint.y, endPoint.y);
@@ -21,7 +28,7 @@ public class Oval extends Shape {
     }
 
     @Override
-    public boolean contains(Point p) {
+    protected boolean hitTest(Point p) {
         int x = Math.min(startPoint.x, endPoint.x);
         int y = Math.min(startPoint.y, endPoint.y);
         int width = Math.abs(endPoint.x - startPoint.x);
@@ -0,0 +1,104 @@
+package com.whiteboard.client.shapes;
+
+/**
+ * 长笔迹的线段网格，命中测试时只检查点所在单元中的线段。
+ * 每条线段按命中容差扩展后的范围登记在它覆盖的所有单元中，单元内容存放在一个压缩的下标数组里。
+ * 创建后不可修改，笔迹的点改变后需要重新创建。
+ */
+final class SegmentGrid {
+    // 线段数不少于这个值时才使用网格
+    static final int MIN_SEGMENTS = 64;
+
+    private static final int MIN_CELL_SIZE = 16;
+    private static final int MAX_CELLS_PER_AXIS = 64;
+
+    final int[] coordinates;
+    final int pointCount;
+
+    private final int originX, originY;
+    private final int cellSize;
+    private final int columns, rows;
+    private final int[] cellStart;    // 第 i 个单元的线段为 segments[cellStart[i] .. cellStart[i + 1])
+    private final int[] segments;     // 线段起点的下标
+
+    /**
+     * @param coordinates 交错排列的坐标
+     * @param pointCount 点数
+     * @param tolerance 命中容差（像素）
+     */
+    SegmentGrid(int[] coordinates, int pointCount, int tolerance) {
+        this.coordinates = coordinates;
+        this.pointCount = pointCount;
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < pointCount; i++) {
+            minX = Math.min(minX, coordinates[i * 2]);
+            minY = Math.min(minY, coordinates[i * 2 + 1]);
+            maxX = Math.max(maxX, coordinates[i * 2]);
+            maxY = Math.max(maxY, coordinates[i * 2 + 1]);
+        }
+        originX = minX - tolerance;
+        originY = minY - tolerance;
+        int extent = Math.max(maxX - minX, maxY - minY) + 2 * tolerance + 1;
+        cellSize = Math.max(Math.max(MIN_CELL_SIZE, 2 * tolerance), (extent + MAX_CELLS_PER_AXIS - 1) / MAX_CELLS_PER_AXIS);
+        columns = (maxX - minX + 2 * tolerance) / cellSize + 1;
+        rows = (maxY - minY + 2 * tolerance) / cellSize + 1;
+
+        // 第一遍统计每个单元的线段数，第二遍填入
+        cellStart = new int[columns * rows + 1];
+        for (int s = 0; s < pointCount - 1; s++) {
+            forEachCell(s, tolerance, cell -> cellStart[cell + 1]++);
+        }
+        for (int i = 0; i < columns * rows; i++) {
+            cellStart[i + 1] += cellStart[i];
+        }
+        segments = new int[cellStart[columns * rows]];
+        int[] next = cellStart.clone();
+        for (int s = 0; s < pointCount - 1; s++) {
+            int segment = s;
+            forEachCell(s, tolerance, cell -> segments[next[cell]++] = segment);
+        }
+    }
+
+    private interface CellVisitor {
+        void visit(int cell);
+    }
+
+    private void forEachCell(int segment, int tolerance, CellVisitor visitor) {
+        int ax = coordinates[segment * 2], ay = coordinates[segment * 2 + 1];
+        int bx = coordinates[segment * 2 + 2], by = coordinates[segment * 2 + 3];
+        int fromColumn = (Math.min(ax, bx) - tolerance - originX) / cellSize;
+        int toColumn = (Math.max(ax, bx) + tolerance - originX) / cellSize;
+        int fromRow = (Math.min(ay, by) - tolerance - originY) / cellSize;
+        int toRow = (Math.max(ay, by) + tolerance - originY) / cellSize;
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int column = fromColumn; column <= toColumn; column++) {
+                visitor.visit(row * columns + column);
+            }
+        }
+    }
+
+    /**
+     * 点到笔迹的距离是否不超过 sqrt(limitSquared)
+     */
+    boolean hits(int x, int y, double limitSquared) {
+        if (x < originX || y < originY) {
+            return false;
+        }
+        int column = (x - originX) / cellSize;
+        int row = (y - originY) / cellSize;
+        if (column >= columns || row >= rows) {
+            return false;
+        }
+        int cell = row * columns + column;
+        for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+            int s = segments[i];
+            if (Shape.segmentDistanceSquared(x, y, coordinates[s * 2], coordinates[s * 2 + 1],
+                    coordinates[s * 2 + 2], coordinates[s * 2 + 3]) <= limitSquared) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
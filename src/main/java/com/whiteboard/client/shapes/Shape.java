@@ -1,6 +1,7 @@
 package com.whiteboard.client.shapes;
 
 import java.awt.*;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.UUID;
 
@@ -16,6 +17,12 @@ public abstract class Shape implements Serializable {
     // for temporary use
     protected int tempAlpha = -1;
     protected long timestamp;
+
+    // 绘制用的缓存，首次绘制时创建，不参与序列化
+    private transient Stroke renderStroke;
+    private transient Color alphaColor;
+    // 缓存的外接矩形，用于命中测试的预筛选和细节层次的选择，形状改变时清除
+    private transient java.awt.Rectangle cachedBounds;
 // constructor
     public Shape(Point startPoint, Point endPoint, Color color, int strokeWidth) {
         this.id = UUID.randomUUID().toString();
@@ -27,15 +34,112 @@ public abstract class Shape implements Serializable {
         this.timestamp = System.currentTimeMillis();
     }
 
+    // 解码时使用，保留原有ID和时间戳
+    Shape(String id, Point startPoint, Point endPoint, Color color, int strokeWidth, long timestamp) {
+        this.id = id;
+        this.startPoint = startPoint;
+        this.endPoint = endPoint;
+        this.color = color;
+        this.strokeWidth = strokeWidth;
+        this.timestamp = timestamp;
+    }
+
     public abstract void draw(Graphics2D g);
-    public abstract boolean contains(Point p);
+
+    /**
+     * 判断点是否落在形状上（包括命中容差）。
+     * 先用缓存的外接矩形在常数时间内排除远处的点，再由子类精确判断
+     */
+    public boolean contains(Point p) {
+        java.awt.Rectangle box = renderBounds();
+        int t = hitTolerance();
+        return p.x >= box.x - t && p.y >= box.y - t
+                && p.x < box.x + box.width + t && p.y < box.y + box.height + t
+                && hitTest(p);
+    }
+
+    /**
+     * 精确的命中测试，只对落在外接矩形内的点调用
+     */
+    protected abstract boolean hitTest(Point p);
+
+    // 命中测试允许的最大距离，不能小于子类实际使用的容差
+    protected int hitTolerance() {
+        return strokeWidth + 2;
+    }
+
+    // 形状的范围改变后调用
+    protected void invalidateBounds() {
+        cachedBounds = null;
+    }
+
+    /**
+     * 缓存的外接矩形，调用方不能修改
+     */
+    protected final java.awt.Rectangle renderBounds() {
+        java.awt.Rectangle box = cachedBounds;
+        if (box == null) {
+            box = getBounds();
+            cachedBounds = box;
+        }
+        return box;
+    }
+
+    /**
+     * 按绘制比例选择细节层次绘制。在设备上不到一个像素的形状只画一个点，
+     * 其余按原始几何绘制；有可简化几何的子类按比例的档绘制缓存的简化版本
+     * @param scale 用户坐标到设备像素的比例，见 {@link LevelOfDetail#scaleOf}
+     */
+    public void draw(Graphics2D g, double scale) {
+        java.awt.Rectangle box = renderBounds();
+        if (LevelOfDetail.isSubPixel(Math.max(box.width, box.height), scale)) {
+            // 画一个设备像素大小的点
+            int size = (int) Math.ceil(1.0 / scale);
+            g.setColor(getDrawColor());
+            g.fillRect(box.x + (box.width - size) / 2, box.y + (box.height - size) / 2, size, size);
+            return;
+        }
+        draw(g);
+    }
+
+    /**
+     * 点 (px, py) 到线段 (ax, ay)-(bx, by)（而不是所在直线）距离的平方
+     */
+    protected static double segmentDistanceSquared(double px, double py,
+                                                   double ax, double ay, double bx, double by) {
+        double dx = bx - ax, dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double ex = ax + t * dx - px, ey = ay + t * dy - py;
+        return ex * ex + ey * ey;
+    }
+
+    /**
+     * 获取形状在画布上覆盖的范围（包括线宽和抗锯齿的边缘），用于局部重绘
+     */
+    public java.awt.Rectangle getBounds() {
+        // 直角的斜接延伸不超过线宽的 0.71 倍
+        return outset(Math.min(startPoint.x, endPoint.x), Math.min(startPoint.y, endPoint.y),
+                Math.max(startPoint.x, endPoint.x), Math.max(startPoint.y, endPoint.y),
+                strokeWidth + 2);
+    }
+
+    // 将坐标范围向外扩展 padding 像素
+    protected static java.awt.Rectangle outset(int minX, int minY, int maxX, int maxY, int padding) {
+        return new java.awt.Rectangle(minX - padding, minY - padding,
+                maxX - minX + 2 * padding + 1, maxY - minY + 2 * padding + 1);
+    }
 
     // Getters and setters
     public String getId() { return id; }
     public Color getColor() { return color; }
     public Point getStartPoint() { return startPoint; }
     public Point getEndPoint() { return endPoint; }
-    public void setEndPoint(Point endPoint) { this.endPoint = endPoint; }
+    public void setEndPoint(Point endPoint) {
+        this.endPoint = endPoint;
+        invalidateBounds();
+    }
     public int getStrokeWidth() { return strokeWidth; }
 
     // 新增时间戳方法
@@ -50,16 +154,33 @@ public abstract class Shape implements Serializable {
     // 其余方法保持不变
     protected Color getDrawColor() {
         if (tempAlpha >= 0) {
-            return new Color(
-                    color.getRed(),
-                    color.getGreen(),
-                    color.getBlue(),
-                    tempAlpha
-            );
+            // 临时透明度不变时复用同一个颜色对象
+            Color c = alphaColor;
+            if (c == null || c.getAlpha() != tempAlpha) {
+                c = new Color(color.getRed(), color.getGreen(), color.getBlue(), tempAlpha);
+                alphaColor = c;
+            }
+            return c;
         }
         return color;
     }
 
+    /**
+     * 绘制线条使用的笔画。线宽创建后不会改变，首次使用时创建并缓存
+     */
+    protected Stroke getRenderStroke() {
+        Stroke s = renderStroke;
+        if (s == null) {
+            s = createStroke();
+            renderStroke = s;
+        }
+        return s;
+    }
+
+    protected Stroke createStroke() {
+        return new BasicStroke(strokeWidth);
+    }
+
     public int getAlpha() {
         return color.getAlpha();
     }
@@ -75,4 +196,9 @@ public abstract class Shape implements Serializable {
     public boolean hasTempAlpha() {
         return tempAlpha >= 0;
     }
+
+    // 序列化（包括RMI传输）时替换为紧凑的二进制编码
+    protected Object writeReplace() throws ObjectStreamException {
+        return ShapeCodec.supports(this) ? new EncodedShape(ShapeCodec.encode(this)) : this;
+    }
 }
\ No newline at end of file
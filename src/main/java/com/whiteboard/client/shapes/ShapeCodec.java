@@ -0,0 +1,307 @@
+package com.whiteboard.client.shapes;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Point;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * 形状的紧凑二进制编码（带版本号）。
+ * 坐标使用 zigzag 变长整数，终点和自由绘制的后续点按与前一点的差值编码，
+ * 颜色为一个 ARGB 整数，UUID 形式的ID编码为16字节。
+ * 临时透明度只用于本地预览，不参与编码。
+ * 版本 2 起文本内容写为变长长度加 UTF-8 字节，不受 writeUTF 的 64KB 限制；仍可读取版本 1 的文本。
+ */
+public final class ShapeCodec {
+    public static final int FORMAT_VERSION = 2;
+
+    private static final int TYPE_LINE = 1;
+    private static final int TYPE_RECTANGLE = 2;
+    private static final int TYPE_OVAL = 3;
+    private static final int TYPE_TRIANGLE = 4;
+    private static final int TYPE_TEXT_V1 = 5;       // 只读：文本内容用 writeUTF 写入
+    private static final int TYPE_FREE_DRAWING = 6;
+    private static final int TYPE_TEXT = 7;
+
+    private static final int ID_UUID = 0;
+    private static final int ID_STRING = 1;
+
+    // 解码的数据可能来自任意客户端，点数超过上限的自由绘制视为损坏
+    static final int MAX_POINTS = 1 << 22;
+    // 解码时按实际读到的点逐步扩容，声明的点数不可信
+    private static final int INITIAL_POINTS = 1 << 12;
+    // 文本内容的最大字节数
+    static final int MAX_TEXT_BYTES = 16 * 1024 * 1024;
+
+    private ShapeCodec() {
+    }
+
+    /**
+     * 是否支持该形状类型
+     */
+    public static boolean supports(Shape shape) {
+        return typeOf(shape) != 0;
+    }
+
+    /**
+     * 编码单个形状，包含格式版本号
+     */
+    public static byte[] encode(Shape shape) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT_VERSION);
+            writeShape(out, shape);
+            out.flush();
+        } catch (IOException e) {
+            // 写入内存流不会失败
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 解码由 encode 生成的数据
+     */
+    public static Shape decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        checkVersion(in.readUnsignedByte());
+        return readShape(in);
+    }
+
+    public static void checkVersion(int version) throws IOException {
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IOException("Unsupported shape format version: " + version);
+        }
+    }
+
+    /**
+     * 写入一个形状（不含版本号，由调用方在批量数据头部写入）
+     */
+    public static void writeShape(DataOutput out, Shape shape) throws IOException {
+        int type = typeOf(shape);
+        if (type == 0) {
+            throw new IOException("Unsupported shape type: " + shape.getClass().getName());
+        }
+
+        out.writeByte(type);
+        writeId(out, shape.getId());
+        out.writeInt(shape.getColor().getRGB());
+        writeVarLong(out, shape.getTimestamp());
+
+        if (type == TYPE_TEXT) {
+            Text text = (Text) shape;
+            writePoint(out, text.getStartPoint());
+            byte[] content = text.getText().getBytes(StandardCharsets.UTF_8);
+            if (content.length > MAX_TEXT_BYTES) {
+                throw new IOException("Text too long: " + content.length + " bytes");
+            }
+            writeVarInt(out, content.length);
+            out.write(content);
+            out.writeUTF(text.getFont().getName());
+            writeVarInt(out, text.getFont().getStyle());
+            writeVarInt(out, text.getFont().getSize());
+        } else if (type == TYPE_FREE_DRAWING) {
+            writeVarInt(out, shape.getStrokeWidth());
+            int[] coordinates = ((FreeDrawing) shape).getCoordinates(0);
+            writeVarInt(out, coordinates.length / 2);
+            int lastX = 0;
+            int lastY = 0;
+            for (int i = 0; i < coordinates.length; i += 2) {
+                writeSignedVarInt(out, coordinates[i] - lastX);
+                writeSignedVarInt(out, coordinates[i + 1] - lastY);
+                lastX = coordinates[i];
+                lastY = coordinates[i + 1];
+            }
+        } else {
+            writeVarInt(out, shape.getStrokeWidth());
+            Point start = shape.getStartPoint();
+            Point end = shape.getEndPoint();
+            writePoint(out, start);
+            writeSignedVarInt(out, end.x - start.x);
+            writeSignedVarInt(out, end.y - start.y);
+        }
+    }
+
+    /**
+     * 读取一个由 writeShape 写入的形状
+     */
+    public static Shape readShape(DataInput in) throws IOException {
+        int type = in.readUnsignedByte();
+        String id = readId(in);
+        Color color = new Color(in.readInt(), true);
+        long timestamp = readVarLong(in);
+
+        switch (type) {
+            case TYPE_TEXT_V1:
+            case TYPE_TEXT: {
+                Point position = readPoint(in);
+                String text = type == TYPE_TEXT ? readText(in) : in.readUTF();
+                String fontName = in.readUTF();
+                int style = readVarInt(in);
+                int size = readVarInt(in);
+                return new Text(id, position, text, color, new Font(fontName, style, size), timestamp);
+            }
+            case TYPE_FREE_DRAWING: {
+                int strokeWidth = readVarInt(in);
+                int count = readVarInt(in);
+                if (count <= 0 || count > MAX_POINTS) {
+                    throw new IOException("Invalid free drawing point count " + count + ": " + id);
+                }
+                int[] coordinates = new int[Math.min(count, INITIAL_POINTS) * 2];
+                int x = 0;
+                int y = 0;
+                for (int i = 0; i < count; i++) {
+                    if (i * 2 == coordinates.length) {
+                        coordinates = Arrays.copyOf(coordinates, Math.min(count, i * 2) * 2);
+                    }
+                    x += readSignedVarInt(in);
+                    y += readSignedVarInt(in);
+                    coordinates[i * 2] = x;
+                    coordinates[i * 2 + 1] = y;
+                }
+                return new FreeDrawing(id, coordinates, count, color, strokeWidth, timestamp);
+            }
+            case TYPE_LINE:
+            case TYPE_RECTANGLE:
+            case TYPE_OVAL:
+            case TYPE_TRIANGLE: {
+                int strokeWidth = readVarInt(in);
+                Point start = readPoint(in);
+                Point end = new Point(start.x + readSignedVarInt(in), start.y + readSignedVarInt(in));
+                if (type == TYPE_LINE) {
+                    return new Line(id, start, end, color, strokeWidth, timestamp);
+                } else if (type == TYPE_RECTANGLE) {
+                    return new Rectangle(id, start, end, color, strokeWidth, timestamp);
+                } else if (type == TYPE_OVAL) {
+                    return new Oval(id, start, end, color, strokeWidth, timestamp);
+                }
+                return new Triangle(id, start, end, color, strokeWidth, timestamp);
+            }
+            default:
+                throw new IOException("Unknown shape type: " + type);
+        }
+    }
+
+    private static int typeOf(Shape shape) {
+        // 只处理精确的类型，子类使用默认序列化
+        Class<?> type = shape.getClass();
+        if (type == Line.class) return TYPE_LINE;
+        if (type == Rectangle.class) return TYPE_RECTANGLE;
+        if (type == Oval.class) return TYPE_OVAL;
+        if (type == Triangle.class) return TYPE_TRIANGLE;
+        if (type == Text.class) return TYPE_TEXT;
+        if (type == FreeDrawing.class) return TYPE_FREE_DRAWING;
+        return 0;
+    }
+
+    private static String readText(DataInput in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0 || length > MAX_TEXT_BYTES) {
+            throw new IOException("Invalid text length: " + length);
+        }
+        byte[] content = new byte[length];
+        in.readFully(content);
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    private static void writeId(DataOutput out, String id) throws IOException {
+        UUID uuid = parseUuid(id);
+        if (uuid != null) {
+            out.writeByte(ID_UUID);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        } else {
+            out.writeByte(ID_STRING);
+            out.writeUTF(id);
+        }
+    }
+
+    private static String readId(DataInput in) throws IOException {
+        int kind = in.readUnsignedByte();
+        if (kind == ID_UUID) {
+            return new UUID(in.readLong(), in.readLong()).toString();
+        }
+        return in.readUTF();
+    }
+
+    // 只有规范形式的UUID才能无损编码为16字节
+    private static UUID parseUuid(String id) {
+        if (id == null || id.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void writePoint(DataOutput out, Point p) throws IOException {
+        writeSignedVarInt(out, p.x);
+        writeSignedVarInt(out, p.y);
+    }
+
+    private static Point readPoint(DataInput in) throws IOException {
+        return new Point(readSignedVarInt(in), readSignedVarInt(in));
+    }
+
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varlong");
+    }
+
+    private static void writeSignedVarInt(DataOutput out, int value) throws IOException {
+        writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    private static int readSignedVarInt(DataInput in) throws IOException {
+        int raw = readVarInt(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+}
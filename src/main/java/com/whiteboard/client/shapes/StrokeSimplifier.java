@@ -0,0 +1,142 @@
+package com.whiteboard.client.shapes;
+
+import java.util.Arrays;
+
+/**
+ * 自由绘制笔迹的后处理，在笔迹完成时调用。
+ * 简化使用 Ramer–Douglas–Peucker 算法：删除到相邻保留点所连线段的距离不超过容差的点，
+ * 容差不超过一个像素，因此简化后的折线与原始笔迹的差别在一个像素以内。
+ * 鼠标采样和橡皮擦插值产生的大量共线点都会被删除。
+ * 平滑（默认关闭）用 Catmull-Rom 曲线穿过简化后的点重新采样，再以同样的容差简化一次，
+ * 结果仍然是折线，绘制和编码方式不变。
+ * 坐标均为交错排列的 x0, y0, x1, y1 ...
+ */
+public final class StrokeSimplifier {
+
+    public static final boolean SMOOTHING = Boolean.getBoolean("whiteboard.stroke.smoothing");
+
+    // 容差范围（像素）：细线对偏差更敏感，使用较小的容差
+    static final double MIN_TOLERANCE = 0.5;
+    static final double MAX_TOLERANCE = 1.0;
+
+    // 平滑时曲线上相邻采样点的最大间距（像素）
+    private static final double SMOOTHING_STEP = 2.0;
+
+    private StrokeSimplifier() {
+    }
+
+    /**
+     * 按线宽选择简化容差
+     */
+    public static double toleranceFor(int strokeWidth) {
+        return Math.max(MIN_TOLERANCE, Math.min(MAX_TOLERANCE, strokeWidth / 4.0));
+    }
+
+    /**
+     * 简化点列，保留的点原地移到数组前部
+     * @param coordinates 交错排列的坐标
+     * @param count 点数
+     * @param tolerance 允许的最大偏差（像素）
+     * @return 保留的点数，首尾两点总是保留
+     */
+    public static int simplify(int[] coordinates, int count, double tolerance) {
+        if (count <= 2) {
+            return count;
+        }
+        boolean[] keep = new boolean[count];
+        keep[0] = true;
+        keep[count - 1] = true;
+        double toleranceSquared = tolerance * tolerance;
+
+        // 用显式栈代替递归，长笔迹不会栈溢出
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double maxDistance = -1;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                double d = segmentDistanceSquared(coordinates, i, first, last);
+                if (d > maxDistance) {
+                    maxDistance = d;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0 && maxDistance > toleranceSquared) {
+                keep[farthest] = true;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                coordinates[kept * 2] = coordinates[i * 2];
+                coordinates[kept * 2 + 1] = coordinates[i * 2 + 1];
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * 用经过所有点的 Catmull-Rom 曲线重新采样
+     * @param coordinates 交错排列的坐标
+     * @param count 点数
+     * @return 曲线上的采样点，首尾与原始点相同
+     */
+    public static int[] smooth(int[] coordinates, int count) {
+        if (count <= 2) {
+            return Arrays.copyOf(coordinates, count * 2);
+        }
+        int[] result = new int[count * 8];
+        int n = 0;
+        for (int i = 0; i < count - 1; i++) {
+            // 首尾两段用端点本身作为缺少的控制点
+            int p0 = Math.max(0, i - 1);
+            int p3 = Math.min(count - 1, i + 2);
+            double x0 = coordinates[p0 * 2], y0 = coordinates[p0 * 2 + 1];
+            double x1 = coordinates[i * 2], y1 = coordinates[i * 2 + 1];
+            double x2 = coordinates[i * 2 + 2], y2 = coordinates[i * 2 + 3];
+            double x3 = coordinates[p3 * 2], y3 = coordinates[p3 * 2 + 1];
+
+            int steps = Math.max(1, (int) Math.ceil(Math.hypot(x2 - x1, y2 - y1) / SMOOTHING_STEP));
+            for (int s = 0; s < steps; s++) {
+                double t = (double) s / steps;
+                if (n * 2 + 1 >= result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+                result[n * 2] = (int) Math.round(catmullRom(x0, x1, x2, x3, t));
+                result[n * 2 + 1] = (int) Math.round(catmullRom(y0, y1, y2, y3, t));
+                n++;
+            }
+        }
+        result = Arrays.copyOf(result, n * 2 + 2);
+        result[n * 2] = coordinates[count * 2 - 2];
+        result[n * 2 + 1] = coordinates[count * 2 - 1];
+        return result;
+    }
+
+    // 均匀 Catmull-Rom 样条在 p1 和 p2 之间的插值
+    private static double catmullRom(double p0, double p1, double p2, double p3, double t) {
+        double t2 = t * t;
+        double t3 = t2 * t;
+        return 0.5 * (2 * p1 + (p2 - p0) * t
+                + (2 * p0 - 5 * p1 + 4 * p2 - p3) * t2
+                + (3 * p1 - p0 - 3 * p2 + p3) * t3);
+    }
+
+    private static double segmentDistanceSquared(int[] c, int point, int start, int end) {
+        return Shape.segmentDistanceSquared(c[point * 2], c[point * 2 + 1],
+                c[start * 2], c[start * 2 + 1], c[end * 2], c[end * 2 + 1]);
+    }
+}
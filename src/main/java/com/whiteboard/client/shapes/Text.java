@@ -1,10 +1,17 @@
 package com.whiteboard.client.shapes;
 
 import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.Rectangle2D;
 
 public class Text extends Shape {
+    // 固定为原先默认计算的值，保证旧的 .wbd 文件可以读取
+    private static final long serialVersionUID = 1846328400376311572L;
+
     private String text;
     private Font font;
+    private transient java.awt.Rectangle bounds;
+    private transient Font renderFont;
 
     public Text(Point position, String text, Color color, Font font) {
         super(position, position, color, 1);
@@ -12,6 +19,12 @@ public class Text extends Shape {
         this.font = font;
     }
 
+    Text(String id, Point position, String text, Color color, Font font, long timestamp) {
+        super(id, position, position, color, 1, timestamp);
+        this.text = text;
+        this.font = font;
+    }
+
     @Override
     public void draw(Graphics2D g) {
         // 保存原始字体
@@ -21,7 +34,7 @@ public class Text extends Shape {
         g.setColor(getDrawColor());
 
         // 确保使用原始的Unicode支持字体
-        Font unicodeFont = new Font("Arial Unicode MS", font.getStyle(), font.getSize());
+        Font unicodeFont = renderFont();
         try {
             g.setFont(unicodeFont);
         } catch (Exception e) {
@@ -37,13 +50,37 @@ public class Text extends Shape {
     }
 
     @Override
-    public boolean contains(Point p) {
-        FontMetrics metrics = new FontMetrics(font) {};
-        int textWidth = metrics.stringWidth(text);
-        int textHeight = metrics.getHeight();
+    public java.awt.Rectangle getBounds() {
+        if (bounds == null) {
+            Rectangle2D textBounds = renderFont().getStringBounds(text, new FontRenderContext(null, true, true));
+            bounds = outset(startPoint.x + (int) Math.floor(textBounds.getX()),
+                    startPoint.y + (int) Math.floor(textBounds.getY()),
+                    startPoint.x + (int) Math.ceil(textBounds.getMaxX()),
+                    startPoint.y + (int) Math.ceil(textBounds.getMaxY()),
+                    2);
+        }
+        return new java.awt.Rectangle(bounds);
+    }
+
+    // 外接矩形就是文字的范围，预筛选已经是精确判断
+    @Override
+    protected boolean hitTest(Point p) {
+        return true;
+    }
 
-        return p.x >= startPoint.x && p.x <= startPoint.x + textWidth &&
-                p.y >= startPoint.y - textHeight && p.y <= startPoint.y;
+    @Override
+    protected int hitTolerance() {
+        return 0;
+    }
+
+    // 绘制使用的字体，首次使用时创建并缓存
+    private Font renderFont() {
+        Font f = renderFont;
+        if (f == null) {
+            f = new Font("Arial Unicode MS", font.getStyle(), font.getSize());
+            renderFont = f;
+        }
+        return f;
     }
 
     public String getText() {
@@ -3,18 +3,31 @@ package com.whiteboard.client.shapes;
 import java.awt.*;
 
 public class Triangle extends Shape {
+    // 固定为原先默认计算的值，保证旧的 .wbd 文件可以读取
+    private static final long serialVersionUID = -8641502737222681052L;
+
+    private transient int[] drawX, drawY;
+
     public Triangle(Point start, Point end, Color color, int strokeWidth) {
         super(start, end, color, strokeWidth);
     }
 
+    Triangle(String id, Point start, Point end, Color color, int strokeWidth, long timestamp) {
+        super(id, start, end, color, strokeWidth, timestamp);
+    }
+
     @Override
     public void draw(Graphics2D g) {
         g.setColor(getDrawColor());
-        g.setStroke(new BasicStroke(strokeWidth));
+        g.setStroke(getRenderStroke());
 
-        // 计算三角形的三个点
-        int[] xPoints = new int[3];
-        int[] yPoints = new int[3];
+        // 计算三角形的三个点；顶点数组复用，只在绘制线程中使用
+        if (drawX == null) {
+            drawX = new int[3];
+            drawY = new int[3];
+        }
+        int[] xPoints = drawX;
+        int[] yPoints = drawY;
 
         xPoints[0] = startPoint.x;
         yPoints[0] = endPoint.y;
@@ -29,32 +42,23 @@ public class Triangle extends Shape {
     }
 
     @Override
-    public boolean contains(Point p) {
-        int[] xPoints = new int[3];
-        int[] yPoints = new int[3];
-
-        xPoints[0] = startPoint.x;
-        yPoints[0] = endPoint.y;
-
-        xPoints[1] = (startPoint.x + endPoint.x) / 2;
-        yPoints[1] = startPoint.y;
-
-        xPoints[2] = endPoint.x;
-        yPoints[2] = endPoint.y;
-
-        for (int i = 0; i < 3; i++) {
-            int j = (i + 1) % 3;
-            Point lineStart = new Point(xPoints[i], yPoints[i]);
-            Point lineEnd = new Point(xPoints[j], yPoints[j]);
-            double dist = distanceToLine(p, lineStart, lineEnd);
-            if (dist <= strokeWidth) return true;
-        }
-        return false;
+    public java.awt.Rectangle getBounds() {
+        // 默认斜接限制为10，顶点处的尖角最多延伸 5 倍线宽
+        return outset(Math.min(startPoint.x, endPoint.x), Math.min(startPoint.y, endPoint.y),
+                Math.max(startPoint.x, endPoint.x), Math.max(startPoint.y, endPoint.y),
+                strokeWidth * 5 + 2);
     }
 
-    private double distanceToLine(Point p, Point start, Point end) {
-        double normalLength = Math.sqrt((end.x-start.x)*(end.x-start.x) +
-                (end.y-start.y)*(end.y-start.y));
-        return Math.abs((p.x-start.x)*(end.y-start.y)-(p.y-start.y)*(end.x-start.x))/normalLength;
+    @Override
+    protected boolean hitTest(Point p) {
+        // 顶点：左下、上边中点、右下
+        int x0 = startPoint.x, y0 = endPoint.y;
+        int x1 = (startPoint.x + endPoint.x) / 2, y1 = startPoint.y;
+        int x2 = endPoint.x, y2 = endPoint.y;
+
+        double limit = (double) strokeWidth * strokeWidth;
+        return segmentDistanceSquared(p.x, p.y, x0, y0, x1, y1) <= limit
+                || segmentDistanceSquared(p.x, p.y, x1, y1, x2, y2) <= limit
+                || segmentDistanceSquared(p.x, p.y, x2, y2, x0, y0) <= limit;
     }
 }
\ No newline at end of file
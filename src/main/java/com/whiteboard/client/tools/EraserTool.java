@@ -2,6 +2,7 @@ package com.whiteboard.client.tools;
 
 import com.whiteboard.client.shapes.Shape;
 import com.whiteboard.client.shapes.FreeDrawing;
+import com.whiteboard.client.shapes.StrokeSimplifier;
 import java.awt.Point;
 import java.awt.Color;
 import java.util.ArrayList;
@@ -55,6 +56,8 @@ public class EraserTool implements DrawingTool {
         if (currentErasure != null) {
             currentErasure.addPoint(p);
             currentPoint = p;
+            // 插值产生的共线点在提交前删除
+            currentErasure.simplify(StrokeSimplifier.toleranceFor(eraserSize), StrokeSimplifier.SMOOTHING);
         }
 
         System.out.println("EraserTool mouseReleased, shape ready for sending");
@@ -74,14 +77,8 @@ public class EraserTool implements DrawingTool {
     private void addPointWithInterpolation(Point newPoint) {
         if (currentErasure == null) return;
 
-        List<Point> existingPoints = currentErasure.getPoints();
-        if (existingPoints.isEmpty()) {
-            currentErasure.addPoint(newPoint);
-            return;
-        }
-
-        // 获取最后一个点
-        Point lastPoint = existingPoints.get(existingPoints.size() - 1);
+        // 获取最后一个点，不复制整个点列表
+        Point lastPoint = currentErasure.getLastPoint();
 
         // 计算距离
         double distance = lastPoint.distance(newPoint);
@@ -95,8 +92,7 @@ public class EraserTool implements DrawingTool {
                 int x = (int)(lastPoint.x + (newPoint.x - lastPoint.x) * ratio);
                 int y = (int)(lastPoint.y + (newPoint.y - lastPoint.y) * ratio);
 
-                Point interpolatedPoint = new Point(x, y);
-                currentErasure.addPoint(interpolatedPoint);
+                currentErasure.addPoint(x, y);
             }
         }
 
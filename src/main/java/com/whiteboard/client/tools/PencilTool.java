@@ -2,6 +2,7 @@ package com.whiteboard.client.tools;
 
 import com.whiteboard.client.shapes.FreeDrawing;
 import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.client.shapes.StrokeSimplifier;
 import java.awt.Color;
 import java.awt.Point;
 
@@ -28,6 +29,8 @@ public class PencilTool implements DrawingTool {
     @Override
     public void mouseReleased(Point p) {
         currentFreeDraw.addPoint(p);
+        // 删除多余的采样点后再提交
+        currentFreeDraw.simplify(StrokeSimplifier.toleranceFor(strokeWidth), StrokeSimplifier.SMOOTHING);
     }
 
     @Override
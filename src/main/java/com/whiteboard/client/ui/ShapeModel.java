@@ -0,0 +1,164 @@
+package com.whiteboard.client.ui;
+
+import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.common.spatial.SpatialIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 客户端的形状集合。
+ * 形状按时间戳排序保存，并用 id 哈希索引做 O(1) 查重。
+ * 服务器广播的形状几乎总是按时间戳顺序到达，此时直接追加；
+ * 乱序到达时用二分查找确定插入位置。
+ * 时间戳相同的形状保持到达顺序。另外维护按形状范围的空间索引，用于区域查询。
+ * 只在 EDT 上访问，不做同步。
+ */
+final class ShapeModel {
+    private static final Comparator<Shape> BY_TIMESTAMP = Comparator.comparingLong(Shape::getTimestamp);
+
+    private final List<Shape> ordered = new ArrayList<>();
+    private final Map<String, Shape> byId = new HashMap<>();
+    private final SpatialIndex<Shape> spatialIndex = new SpatialIndex<>();
+
+    /**
+     * 添加形状
+     * @return 插入位置，已存在相同ID的形状时返回 -1
+     */
+    int add(Shape shape) {
+        if (byId.putIfAbsent(shape.getId(), shape) != null) {
+            return -1;
+        }
+        spatialIndex.insert(shape, shape.getBounds());
+
+        int size = ordered.size();
+        if (size == 0 || ordered.get(size - 1).getTimestamp() <= shape.getTimestamp()) {
+            ordered.add(shape);
+            return size;
+        }
+
+        int index = upperBound(shape.getTimestamp());
+        ordered.add(index, shape);
+        return index;
+    }
+
+    /**
+     * 根据ID移除形状
+     * @return 被移除的形状，不存在时返回 null
+     */
+    Shape remove(String shapeId) {
+        Shape shape = byId.remove(shapeId);
+        if (shape == null) {
+            return null;
+        }
+
+        spatialIndex.remove(shape);
+        int index = indexOf(shape);
+        if (index >= 0) {
+            ordered.remove(index);
+        }
+        return shape;
+    }
+
+    /**
+     * 替换全部形状，按时间戳稳定排序，重复ID只保留第一个
+     * @param shapes 新的形状
+     * @param sorted 调用方能保证已按时间戳排序时为 true（例如服务器快照）
+     */
+    void replaceAll(List<Shape> shapes, boolean sorted) {
+        clear();
+        for (Shape shape : shapes) {
+            if (shape != null && byId.putIfAbsent(shape.getId(), shape) == null) {
+                ordered.add(shape);
+                spatialIndex.insert(shape, shape.getBounds());
+            }
+        }
+        if (!sorted) {
+            ordered.sort(BY_TIMESTAMP);
+        }
+    }
+
+    void clear() {
+        ordered.clear();
+        byId.clear();
+        spatialIndex.clear();
+    }
+
+    boolean contains(String shapeId) {
+        return byId.containsKey(shapeId);
+    }
+
+    Shape get(String shapeId) {
+        return byId.get(shapeId);
+    }
+
+    int size() {
+        return ordered.size();
+    }
+
+    /**
+     * 按时间戳排序的只读视图
+     */
+    List<Shape> shapes() {
+        return Collections.unmodifiableList(ordered);
+    }
+
+    /**
+     * 获取范围与区域相交的形状
+     * @param area 查询区域
+     * @return 按时间戳排序的形状
+     */
+    List<Shape> query(java.awt.Rectangle area) {
+        List<Shape> found = spatialIndex.query(area);
+        if (found.size() == ordered.size()) {
+            return new ArrayList<>(ordered);
+        }
+
+        // 按在有序列表中的位置排序，保证与完整绘制时的层次一致
+        long[] keyed = new long[found.size()];
+        for (int i = 0; i < keyed.length; i++) {
+            keyed[i] = ((long) indexOf(found.get(i)) << 32) | i;
+        }
+        Arrays.sort(keyed);
+
+        List<Shape> result = new ArrayList<>(keyed.length);
+        for (long key : keyed) {
+            result.add(found.get((int) key));
+        }
+        return result;
+    }
+
+    // 在相同时间戳的区间内按引用查找
+    private int indexOf(Shape shape) {
+        for (int i = upperBound(shape.getTimestamp()) - 1; i >= 0; i--) {
+            Shape candidate = ordered.get(i);
+            if (candidate == shape) {
+                return i;
+            }
+            if (candidate.getTimestamp() != shape.getTimestamp()) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    // 第一个时间戳大于 timestamp 的位置
+    private int upperBound(long timestamp) {
+        int low = 0;
+        int high = ordered.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ordered.get(mid).getTimestamp() <= timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
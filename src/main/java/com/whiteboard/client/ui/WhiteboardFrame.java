@@ -6,10 +6,10 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.List;
 import com.whiteboard.client.WhiteboardClient;
+import com.whiteboard.common.schedule.Scheduler;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class WhiteboardFrame extends JFrame {
@@ -30,12 +30,14 @@ public class WhiteboardFrame extends JFrame {
     private ColorSelectionPanel colorSelectionPanel; // 新添加
     private boolean useNewColorSelector = true; // 控制开关
     private Map<String, JDialog> pendingUserDialogs = new HashMap<>();
+    private final String baseTitle;
 
     //
     private static final Logger logger = Logger.getLogger(WhiteboardFrame.class.getName());
 
     public WhiteboardFrame(String title, boolean isManager, WhiteboardClient client) {
         super(title);
+        this.baseTitle = title;
         this.isManager = isManager;
         this.client = client;
         initComponents();
@@ -311,6 +313,9 @@ public class WhiteboardFrame extends JFrame {
         JMenuItem saveAsItem = new JMenuItem("Save As");
         saveAsItem.addActionListener(e -> saveWhiteboardAs());
 
+        JMenuItem restoreItem = new JMenuItem("Restore Version...");
+        restoreItem.addActionListener(e -> restoreVersion());
+
         JMenuItem closeItem = new JMenuItem("Close");
         closeItem.addActionListener(e -> closeApplication());
 
@@ -320,6 +325,8 @@ public class WhiteboardFrame extends JFrame {
         fileMenu.add(saveItem);
         fileMenu.add(saveAsItem);
         fileMenu.addSeparator();
+        fileMenu.add(restoreItem);
+        fileMenu.addSeparator();
         fileMenu.add(closeItem);
 
         menuBar.add(fileMenu);
@@ -420,6 +427,33 @@ public class WhiteboardFrame extends JFrame {
         }
     }
 
+    private void restoreVersion() {
+        if (client != null && client.isManager()) {
+            client.restoreVersion(); // 结果信息在client中显示
+        } else {
+            JOptionPane.showMessageDialog(this,
+                    "Only the manager can restore versions.",
+                    "Permission Denied",
+                    JOptionPane.WARNING_MESSAGE);
+        }
+    }
+
+    /**
+     * 在标题栏显示后台保存的进度
+     */
+    public void showSaveProgress(String filename, int percent) {
+        setTitle(baseTitle + " - Saving " + filename + " (" + percent + "%)");
+    }
+
+    public void clearSaveProgress() {
+        setTitle(baseTitle);
+    }
+
+    // 连接状态（例如正在重连）显示在标题栏，null 表示恢复正常
+    public void showConnectionStatus(String status) {
+        setTitle(status != null ? baseTitle + " - " + status : baseTitle);
+    }
+
     private void closeApplication() {
         int response = JOptionPane.showConfirmDialog(this,
                 "Are you sure you want to exit?",
@@ -564,24 +598,24 @@ public class WhiteboardFrame extends JFrame {
      * 启动对话框自动关闭计时器
      */
     private void startAutoCloseTimer(JDialog dialog, JLabel statusLabel, String username) {
-        Timer timer = new Timer(true);
         final int[] secondsLeft = {5};
+        final Scheduler.ScheduledTask[] timer = new Scheduler.ScheduledTask[1];
 
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                SwingUtilities.invokeLater(() -> {
-                    secondsLeft[0]--;
-                    statusLabel.setText("Status: disconnected (close after " + secondsLeft[0] + "s)");
-
-                    if (secondsLeft[0] <= 0) {
-                        timer.cancel();
-                        dialog.dispose();
-                        pendingUserDialogs.remove(username);
-                    }
-                });
-            }
-        }, 1000, 1000);
+        timer[0] = Scheduler.shared().scheduleAtFixedRate("close-join-dialog", () -> {
+            SwingUtilities.invokeLater(() -> {
+                if (secondsLeft[0] <= 0) {
+                    return;
+                }
+                secondsLeft[0]--;
+                statusLabel.setText("Status: disconnected (close after " + secondsLeft[0] + "s)");
+
+                if (secondsLeft[0] <= 0) {
+                    timer[0].cancel();
+                    dialog.dispose();
+                    pendingUserDialogs.remove(username);
+                }
+            });
+        }, 1, 1, TimeUnit.SECONDS);
     }
 
 
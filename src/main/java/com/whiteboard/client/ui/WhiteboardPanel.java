@@ -1,5 +1,7 @@
 package com.whiteboard.client.ui;
 import com.whiteboard.client.shapes.ErasureShape;
+import com.whiteboard.client.shapes.FreeDrawing;
+import com.whiteboard.client.shapes.LevelOfDetail;
 import com.whiteboard.client.shapes.Shape;
 import com.whiteboard.client.shapes.Text;
 import com.whiteboard.client.shapes.Rectangle;
@@ -13,6 +15,8 @@ import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.security.KeyStore;
 import java.util.List;
 import java.util.function.Consumer;
@@ -25,7 +29,7 @@ import com.whiteboard.client.tools.*;
 import java.util.ArrayList;
 
 public class WhiteboardPanel extends JPanel {
-    private List<Shape> shapes;
+    private final ShapeModel shapes = new ShapeModel();
     private DrawingTool currentTool;
     private Color currentColor;
     private int currentStrokeWidth;
@@ -42,6 +46,17 @@ public class WhiteboardPanel extends JPanel {
 
     // 临时形状显示 - 用于显示当前正在绘制但尚未提交的形状
     private Shape currentDrawingShape = null;
+    // 上次重绘时当前形状和工具UI覆盖的范围，用于局部重绘
+    private java.awt.Rectangle currentDrawingBounds = null;
+    private int currentDrawingPointCount = 0;
+    private java.awt.Rectangle toolUIBounds = null;
+
+    // 已提交形状的缓存图层：按顺序的前 finalLayerCount 个形状已经绘制在图像中，
+    // 追加的形状增量绘制，删除、清空或乱序插入时整体重建
+    private BufferedImage finalLayer;
+    private double finalLayerScaleX = 1;
+    private double finalLayerScaleY = 1;
+    private int finalLayerCount = 0;
 
     private static final Logger logger = Logger.getLogger(WhiteboardPanel.class.getName());
     // 新增：预览形状按时间戳排序存储
@@ -59,7 +74,6 @@ public class WhiteboardPanel extends JPanel {
     }
 
     public WhiteboardPanel() {
-        shapes = new ArrayList<>();
         currentColor = Color.BLACK;
         currentStrokeWidth = 2;
         currentFont = new Font("Arial Unicode MS", Font.PLAIN, 14);
@@ -90,14 +104,14 @@ public class WhiteboardPanel extends JPanel {
                     isDrawing = true;
 
                     // 显示当前正在绘制的形状作为临时预览
-                    currentDrawingShape = currentTool.getCreatedShape();
+                    updateCurrentDrawingShape(currentTool.getCreatedShape());
 
                     // 向服务器发送预览开始请求
                     if (enablePreview && currentDrawingShape != null && drawingListener != null) {
                         sendPreviewStart(currentDrawingShape);
                     }
 
-                    repaint();
+                    updateToolUIBounds();
                 }
             }
 
@@ -111,14 +125,14 @@ public class WhiteboardPanel extends JPanel {
                     currentTool.mouseDragged(e.getPoint());
 
                     // 更新当前绘制形状的预览
-                    currentDrawingShape = currentTool.getCreatedShape();
+                    updateCurrentDrawingShape(currentTool.getCreatedShape());
 
                     // 发送预览更新
                     if (enablePreview && currentDrawingShape != null) {
                         sendPreviewUpdate(currentDrawingShape);
                     }
 
-                    repaint();
+                    updateToolUIBounds();
                 }
             }
 
@@ -141,7 +155,7 @@ public class WhiteboardPanel extends JPanel {
                     Shape shape = currentTool.getCreatedShape();
                     if (shape != null) {
                         // 清除本地临时形状
-                        currentDrawingShape = null;
+                        updateCurrentDrawingShape(null);
 
                         // 发送到服务器，等待服务器返回带正确时间戳的版本
                         if (drawingListener != null) {
@@ -153,7 +167,7 @@ public class WhiteboardPanel extends JPanel {
                             ((EraserTool) currentTool).resetErasureShape();
                         }
                     }
-                    repaint();
+                    updateToolUIBounds();
                 }
             }
 
@@ -402,10 +416,125 @@ public class WhiteboardPanel extends JPanel {
     }
 
     private void renderFinalLayer(Graphics2D g2d) {
-        // 绘制所有完成的形状，完全不透明
-        for (Shape shape : shapes) {
-            shape.draw(g2d);
+        int width = getWidth();
+        int height = getHeight();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        // 按设备缩放比例创建图层，避免高分屏上模糊
+        AffineTransform deviceTransform = g2d.getDeviceConfiguration().getDefaultTransform();
+        double scaleX = deviceTransform.getScaleX();
+        double scaleY = deviceTransform.getScaleY();
+        int imageWidth = (int) Math.ceil(width * scaleX);
+        int imageHeight = (int) Math.ceil(height * scaleY);
+
+        if (finalLayer == null || finalLayer.getWidth() != imageWidth || finalLayer.getHeight() != imageHeight
+                || finalLayerScaleX != scaleX || finalLayerScaleY != scaleY) {
+            GraphicsConfiguration config = getGraphicsConfiguration();
+            finalLayer = config != null
+                    ? config.createCompatibleImage(imageWidth, imageHeight, Transparency.OPAQUE)
+                    : new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+            finalLayerScaleX = scaleX;
+            finalLayerScaleY = scaleY;
+            finalLayerCount = 0;
+        }
+
+        List<Shape> ordered = shapes.shapes();
+        if (finalLayerCount > ordered.size()) {
+            finalLayerCount = 0;
+        }
+
+        if (finalLayerCount == 0 || finalLayerCount < ordered.size()) {
+            Graphics2D layer = finalLayer.createGraphics();
+            try {
+                if (finalLayerCount == 0) {
+                    layer.setColor(getBackground());
+                    layer.fillRect(0, 0, imageWidth, imageHeight);
+                }
+                layer.scale(scaleX, scaleY);
+                layer.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+                // 绘制尚未进入图层的形状，完全不透明；画布以外的形状跳过。
+                // 已提交的形状按图层的缩放比例选择细节层次，设备上的小形状和长笔迹不按原始精度绘制
+                java.awt.Rectangle canvas = new java.awt.Rectangle(0, 0, width, height);
+                double detailScale = LevelOfDetail.scaleOf(layer.getTransform());
+                if (finalLayerCount == 0) {
+                    // 整体重建时通过空间索引只取画布内的形状
+                    for (Shape shape : shapes.query(canvas)) {
+                        shape.draw(layer, detailScale);
+                    }
+                } else {
+                    for (int i = finalLayerCount; i < ordered.size(); i++) {
+                        Shape shape = ordered.get(i);
+                        if (isVisible(shape, canvas)) {
+                            shape.draw(layer, detailScale);
+                        }
+                    }
+                }
+                finalLayerCount = ordered.size();
+            } finally {
+                layer.dispose();
+            }
+        }
+
+        g2d.drawImage(finalLayer, 0, 0, width, height, null);
+    }
+
+    // 使缓存图层失效，下次绘制时整体重建
+    private void invalidateFinalLayer() {
+        finalLayerCount = 0;
+    }
+
+    private static boolean isVisible(Shape shape, java.awt.Rectangle clip) {
+        return clip == null || shape.getBounds().intersects(clip);
+    }
+
+    // 重绘两个范围的并集，为 null 的范围忽略
+    private void repaintRegion(java.awt.Rectangle oldBounds, java.awt.Rectangle newBounds) {
+        if (oldBounds == null && newBounds == null) {
+            return;
         }
+        if (oldBounds == null) {
+            repaint(newBounds);
+        } else if (newBounds == null) {
+            repaint(oldBounds);
+        } else {
+            repaint(oldBounds.union(newBounds));
+        }
+    }
+
+    // 更新当前正在绘制的形状，只重绘变化的范围
+    private void updateCurrentDrawingShape(Shape shape) {
+        if (shape instanceof FreeDrawing && shape == currentDrawingShape && currentDrawingBounds != null) {
+            // 同一笔画只重绘新追加的线段
+            FreeDrawing stroke = (FreeDrawing) shape;
+            repaintRegion(null, stroke.getBounds(currentDrawingPointCount));
+            currentDrawingPointCount = stroke.getPointCount();
+            currentDrawingBounds = stroke.getBounds();
+            return;
+        }
+
+        java.awt.Rectangle newBounds = shape != null ? shape.getBounds() : null;
+        repaintRegion(currentDrawingBounds, newBounds);
+        currentDrawingShape = shape;
+        currentDrawingBounds = newBounds;
+        currentDrawingPointCount = shape instanceof FreeDrawing ? ((FreeDrawing) shape).getPointCount() : 0;
+    }
+
+    // 橡皮擦指示器移动时重绘新旧位置
+    private void updateToolUIBounds() {
+        java.awt.Rectangle newBounds = null;
+        if (currentTool instanceof EraserTool) {
+            EraserTool eraserTool = (EraserTool) currentTool;
+            Point p = eraserTool.getCurrentPoint();
+            if (p != null) {
+                int size = eraserTool.getEraserSize();
+                newBounds = new java.awt.Rectangle(p.x - size / 2 - 2, p.y - size / 2 - 2, size + 4, size + 4);
+            }
+        }
+        repaintRegion(toolUIBounds, newBounds);
+        toolUIBounds = newBounds;
     }
 
     private void renderPreviewLayer(Graphics2D g2d) {
@@ -417,8 +546,10 @@ public class WhiteboardPanel extends JPanel {
         Composite originalComposite = g2d.getComposite();
         g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.6f));
 
-        // 按时间戳排序渲染预览形状
+        // 按时间戳排序渲染预览形状，跳过不在重绘区域内的
+        java.awt.Rectangle clip = g2d.getClipBounds();
         userPreviewsWithTimestamp.values().stream()
+                .filter(previewShape -> isVisible(previewShape.shape, clip))
                 .sorted((a, b) -> Long.compare(a.timestamp, b.timestamp))
                 .forEach(previewShape -> previewShape.shape.draw(g2d));
 
@@ -427,7 +558,7 @@ public class WhiteboardPanel extends JPanel {
     }
 
     private void renderCurrentDrawingLayer(Graphics2D g2d) {
-        if (currentDrawingShape != null) {
+        if (currentDrawingShape != null && isVisible(currentDrawingShape, g2d.getClipBounds())) {
             // 当前绘制形状稍微透明
             Composite originalComposite = g2d.getComposite();
             g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.8f));
@@ -458,6 +589,8 @@ public class WhiteboardPanel extends JPanel {
 
         // 清除当前绘制的临时形状
         currentDrawingShape = null;
+        currentDrawingBounds = null;
+        toolUIBounds = null;
         isDrawing = false;
 
         this.currentTool = tool;
@@ -550,7 +683,10 @@ public class WhiteboardPanel extends JPanel {
     public void clearCanvas() {
         logger.info("Clearing canvas in WhiteboardPanel");
         shapes.clear();
+        invalidateFinalLayer();
         currentDrawingShape = null; // 也清除临时形状
+        currentDrawingBounds = null;
+        toolUIBounds = null;
 
         // 重置当前工具状态，取消任何正在进行的绘制操作
         if (currentTool != null) {
@@ -584,12 +720,13 @@ public class WhiteboardPanel extends JPanel {
 
     // 获取所有形状
     public List<Shape> getShapes() {
-        return new ArrayList<>(shapes);
+        return new ArrayList<>(shapes.shapes());
     }
 
     // 设置形状列表
     public void setShapes(List<Shape> shapes) {
-        this.shapes = new ArrayList<>(shapes);
+        this.shapes.replaceAll(shapes, false);
+        invalidateFinalLayer();
         repaint();
     }
 
@@ -648,21 +785,17 @@ public class WhiteboardPanel extends JPanel {
                     " timestamp: " + shape.getTimestamp() +
                     " thread: " + Thread.currentThread().getName());
 
-        // 检查是否已存在相同ID的形状，防止重复添加
-        boolean alreadyExists = shapes.stream()
-                .anyMatch(existingShape -> existingShape.getId().equals(shape.getId()));
-
-            if (!alreadyExists) {
-                System.out.println("Client: Adding new shape, current shapes count: " + shapes.size());
-
-                shapes.add(shape);
-
-            // 按时间戳排序 - 这是关键，确保所有客户端的显示顺序一致
-            shapes.sort((s1, s2) -> Long.compare(s1.getTimestamp(), s2.getTimestamp()));
+            // 按时间戳插入 - 这是关键，确保所有客户端的显示顺序一致；相同ID的形状不重复添加
+            int index = shapes.add(shape);
 
-                System.out.println("After sorting - Total shapes: " + shapes.size());
+            if (index >= 0) {
+                // 插入到已绘制部分之前时需要重建图层，追加则在下次绘制时增量绘制
+                if (index < finalLayerCount) {
+                    invalidateFinalLayer();
+                }
+                System.out.println("Client: Added new shape at index " + index + ", total shapes: " + shapes.size());
 
-                repaint();
+                repaint(shape.getBounds());
             } else {
                 System.out.println("DUPLICATE: Shape with ID " + shape.getId().substring(0, 8) +
                                  "... already exists, skipping");
@@ -671,11 +804,25 @@ public class WhiteboardPanel extends JPanel {
         }
     }
 
-    public void removeShape(String shapeId) {
-        shapes.removeIf(shape -> shape.getId().equals(shapeId));
+    /**
+     * 用服务器快照替换所有形状，快照已按时间戳排序，无需再排序
+     * @param snapshotShapes 快照中的形状
+     */
+    public void installSnapshot(List<Shape> snapshotShapes) {
+        shapes.replaceAll(snapshotShapes, true);
+        invalidateFinalLayer();
+        logger.info("Installed snapshot with " + shapes.size() + " shapes");
         repaint();
     }
 
+    public void removeShape(String shapeId) {
+        Shape removed = shapes.remove(shapeId);
+        if (removed != null) {
+            invalidateFinalLayer();
+            repaint(removed.getBounds());
+        }
+    }
+
     // 在 WhiteboardPanel.java 中添加这个方法
     public Consumer<Shape> getDrawingListener() {
         return drawingListener;
@@ -684,8 +831,8 @@ public class WhiteboardPanel extends JPanel {
     // 新增：预览管理方法
     public void addPreview(String fromUser, Shape previewShape, long timestamp) {
         if (enablePreview) {
-            userPreviewsWithTimestamp.put(fromUser, new PreviewShape(previewShape, timestamp));
-            repaint();
+            PreviewShape old = userPreviewsWithTimestamp.put(fromUser, new PreviewShape(previewShape, timestamp));
+            repaintRegion(old != null ? old.shape.getBounds() : null, previewShape.getBounds());
         }
     }
 
@@ -694,14 +841,30 @@ public class WhiteboardPanel extends JPanel {
             PreviewShape existing = userPreviewsWithTimestamp.get(fromUser);
             // 保持原有时间戳，只更新形状
             userPreviewsWithTimestamp.put(fromUser, new PreviewShape(previewShape, existing.timestamp));
-            repaint();
+            repaintRegion(existing.shape.getBounds(), previewShape.getBounds());
+        }
+    }
+
+    // 自由绘制预览的增量点追加到已有预览上
+    public void appendPreviewPoints(String fromUser, int fromIndex, int[] coordinates) {
+        if (enablePreview) {
+            PreviewShape existing = userPreviewsWithTimestamp.get(fromUser);
+            if (existing != null && existing.shape instanceof FreeDrawing) {
+                FreeDrawing stroke = (FreeDrawing) existing.shape;
+                int before = stroke.getPointCount();
+                if (stroke.appendCoordinates(fromIndex, coordinates) > before) {
+                    repaintRegion(null, stroke.getBounds(before));
+                }
+            }
         }
     }
 
     public void clearPreview(String fromUser) {
         if (enablePreview) {
-            userPreviewsWithTimestamp.remove(fromUser);
-            repaint();
+            PreviewShape removed = userPreviewsWithTimestamp.remove(fromUser);
+            if (removed != null) {
+                repaint(removed.shape.getBounds());
+            }
         }
     }
 
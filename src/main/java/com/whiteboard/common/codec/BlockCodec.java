@@ -0,0 +1,32 @@
+package com.whiteboard.common.codec;
+
+import java.io.IOException;
+
+/**
+ * 数据块压缩算法。
+ * 编号会写入文件头，已分配的编号不能改变含义。
+ * 实现必须是无状态的，可以被多个线程同时使用。
+ */
+public interface BlockCodec {
+    /**
+     * 写入文件头的算法编号
+     */
+    int id();
+
+    /**
+     * 算法名称，用于配置和日志
+     */
+    String name();
+
+    /**
+     * 压缩一个数据块
+     * @return 压缩后的数据，长度即为数组长度
+     */
+    byte[] compress(byte[] data, int offset, int length);
+
+    /**
+     * 解压一个数据块，raw 的长度必须等于原始数据长度，解压结果必须恰好填满 raw
+     * @throws IOException 数据损坏
+     */
+    void decompress(byte[] stored, int offset, int length, byte[] raw) throws IOException;
+}
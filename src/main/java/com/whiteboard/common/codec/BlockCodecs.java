@@ -0,0 +1,140 @@
+package com.whiteboard.common.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 可用的数据块压缩算法
+ */
+public final class BlockCodecs {
+    /** 不压缩 */
+    public static final BlockCodec NONE = new NoneCodec();
+    /** JDK 的 Deflate，压缩率较高，默认使用 */
+    public static final BlockCodec DEFLATE = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+    /** 纯 Java 实现的 LZ4 块格式，压缩率较低但编解码很快 */
+    public static final BlockCodec LZ4 = new Lz4BlockCodec();
+
+    public static final BlockCodec DEFAULT = DEFLATE;
+
+    private static final BlockCodec[] ALL = {NONE, DEFLATE, LZ4};
+
+    private BlockCodecs() {
+    }
+
+    /**
+     * 按文件头中的编号查找算法
+     */
+    public static BlockCodec forId(int id) throws IOException {
+        for (BlockCodec codec : ALL) {
+            if (codec.id() == id) {
+                return codec;
+            }
+        }
+        throw new IOException("Unknown compression codec: " + id);
+    }
+
+    /**
+     * 按名称查找算法（不区分大小写）
+     * @throws IllegalArgumentException 没有该名称的算法
+     */
+    public static BlockCodec forName(String name) {
+        for (BlockCodec codec : ALL) {
+            if (codec.name().equalsIgnoreCase(name.trim())) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression codec: " + name);
+    }
+
+    public static BlockCodec[] all() {
+        return ALL.clone();
+    }
+
+    private static final class NoneCodec implements BlockCodec {
+        @Override
+        public int id() {
+            return 0;
+        }
+
+        @Override
+        public String name() {
+            return "none";
+        }
+
+        @Override
+        public byte[] compress(byte[] data, int offset, int length) {
+            return Arrays.copyOfRange(data, offset, offset + length);
+        }
+
+        @Override
+        public void decompress(byte[] stored, int offset, int length, byte[] raw) throws IOException {
+            if (length != raw.length) {
+                throw new IOException("Stored block length " + length + " does not match " + raw.length);
+            }
+            System.arraycopy(stored, offset, raw, 0, length);
+        }
+    }
+
+    private static final class DeflateCodec implements BlockCodec {
+        private final int level;
+
+        DeflateCodec(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public int id() {
+            return 1;
+        }
+
+        @Override
+        public String name() {
+            return "deflate";
+        }
+
+        @Override
+        public byte[] compress(byte[] data, int offset, int length) {
+            Deflater deflater = new Deflater(level);
+            try {
+                deflater.setInput(data, offset, length);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length / 2));
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public void decompress(byte[] stored, int offset, int length, byte[] raw) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(stored, offset, length);
+                int total = 0;
+                while (total < raw.length) {
+                    int n = inflater.inflate(raw, total, raw.length - total);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    total += n;
+                }
+                if (total != raw.length) {
+                    throw new IOException("Deflate block decompressed to " + total + " of " + raw.length + " bytes");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflate block: " + e.getMessage(), e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
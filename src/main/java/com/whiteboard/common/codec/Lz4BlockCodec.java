@@ -0,0 +1,192 @@
+package com.whiteboard.common.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZ4 块格式的纯 Java 实现（不含帧格式）。
+ * 用 4 字节哈希表贪心查找 64KB 窗口内的匹配，没有复杂的匹配搜索，
+ * 压缩率低于 Deflate，但压缩和解压都只有简单的复制操作，速度快得多。
+ */
+final class Lz4BlockCodec implements BlockCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;     // 块末尾至少保留的字面量字节数
+    private static final int MF_LIMIT = 12;         // 最后一个匹配开始位置距块末尾的最小距离
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 14;
+    private static final int SKIP_TRIGGER = 6;      // 连续未命中时加快跳过
+
+    @Override
+    public int id() {
+        return 2;
+    }
+
+    @Override
+    public String name() {
+        return "lz4";
+    }
+
+    @Override
+    public byte[] compress(byte[] src, int offset, int length) {
+        byte[] dst = new byte[length + length / 255 + 16];
+        int end = offset + length;
+        int op = 0;
+        int anchor = offset;
+
+        if (length >= MF_LIMIT + 1) {
+            int[] table = new int[1 << HASH_LOG];    // 保存位置 + 1，0 表示空
+            int matchLimit = end - LAST_LITERALS;
+            int mfLimit = end - MF_LIMIT;
+            int ip = offset;
+
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = table[h] - 1;
+                table[h] = ip + 1;
+
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+
+                // 向前扩展匹配
+                while (ip > anchor && ref > offset && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+
+                op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, matchLength);
+                ip += matchLength;
+                anchor = ip;
+                if (ip - 2 >= offset && ip - 2 < mfLimit) {
+                    table[hash(readInt(src, ip - 2))] = ip - 2 + 1;
+                }
+            }
+        }
+
+        op = writeLastLiterals(dst, op, src, anchor, end - anchor);
+        return Arrays.copyOf(dst, op);
+    }
+
+    @Override
+    public void decompress(byte[] src, int offset, int length, byte[] raw) throws IOException {
+        int ip = offset;
+        int end = offset + length;
+        int op = 0;
+
+        while (ip < end) {
+            int token = src[ip++] & 0xFF;
+
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (ip >= end) {
+                        throw new IOException("Truncated LZ4 literal length");
+                    }
+                    b = src[ip++] & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (literalLength > end - ip || literalLength > raw.length - op) {
+                throw new IOException("LZ4 literals out of bounds");
+            }
+            System.arraycopy(src, ip, raw, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+
+            if (ip == end) {
+                break;                               // 最后一个序列只有字面量
+            }
+
+            if (end - ip < 2) {
+                throw new IOException("Truncated LZ4 match offset");
+            }
+            int matchOffset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            if (matchOffset == 0 || matchOffset > op) {
+                throw new IOException("Invalid LZ4 match offset: " + matchOffset);
+            }
+
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= end) {
+                        throw new IOException("Truncated LZ4 match length");
+                    }
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > raw.length - op) {
+                throw new IOException("LZ4 match out of bounds");
+            }
+
+            // 匹配可能与输出重叠（例如重复的短模式），不重叠时直接整段复制
+            int from = op - matchOffset;
+            if (matchOffset >= matchLength) {
+                System.arraycopy(raw, from, raw, op, matchLength);
+                op += matchLength;
+            } else {
+                for (int i = 0; i < matchLength; i++) {
+                    raw[op++] = raw[from + i];
+                }
+            }
+        }
+
+        if (op != raw.length) {
+            throw new IOException("LZ4 block decompressed to " + op + " of " + raw.length + " bytes");
+        }
+    }
+
+    private static int writeSequence(byte[] dst, int op, byte[] src, int literalStart, int literalLength,
+                                     int matchOffset, int matchLength) {
+        int tokenPos = op++;
+        int extraMatch = matchLength - MIN_MATCH;
+        dst[tokenPos] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(extraMatch, 15));
+        if (literalLength >= 15) {
+            op = writeLength(dst, op, literalLength - 15);
+        }
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+        dst[op++] = (byte) matchOffset;
+        dst[op++] = (byte) (matchOffset >>> 8);
+        if (extraMatch >= 15) {
+            op = writeLength(dst, op, extraMatch - 15);
+        }
+        return op;
+    }
+
+    private static int writeLastLiterals(byte[] dst, int op, byte[] src, int literalStart, int literalLength) {
+        dst[op++] = (byte) (Math.min(literalLength, 15) << 4);
+        if (literalLength >= 15) {
+            op = writeLength(dst, op, literalLength - 15);
+        }
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        return op + literalLength;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
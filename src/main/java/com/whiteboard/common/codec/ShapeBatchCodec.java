@@ -0,0 +1,86 @@
+package com.whiteboard.common.codec;
+
+import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.client.shapes.ShapeCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 形状批量编解码。
+ * 用于白板快照的分块传输：一批形状以 ShapeCodec 编码后压缩为一个字节块，
+ * 客户端按块顺序解码即可得到按时间戳排好序的形状。
+ */
+public final class ShapeBatchCodec {
+    // 每个快照块包含的形状数
+    public static final int SHAPES_PER_CHUNK = 512;
+
+    private ShapeBatchCodec() {
+    }
+
+    /**
+     * 将形状序列按固定大小分块并压缩编码
+     * @param shapes 按时间戳排序的形状
+     * @return 编码后的块，至少包含一个（可能为空的）块
+     */
+    public static List<byte[]> encodeChunks(Iterable<Shape> shapes) throws IOException {
+        List<byte[]> chunks = new ArrayList<>();
+        List<Shape> batch = new ArrayList<>(SHAPES_PER_CHUNK);
+        for (Shape shape : shapes) {
+            batch.add(shape);
+            if (batch.size() == SHAPES_PER_CHUNK) {
+                chunks.add(encode(batch));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty() || chunks.isEmpty()) {
+            chunks.add(encode(batch));
+        }
+        return chunks;
+    }
+
+    /**
+     * 编码一批形状
+     */
+    public static byte[] encode(List<Shape> shapes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+            out.writeByte(ShapeCodec.FORMAT_VERSION);
+            ShapeCodec.writeVarInt(out, shapes.size());
+            for (Shape shape : shapes) {
+                ShapeCodec.writeShape(out, shape);
+            }
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 解码一批形状
+     */
+    public static List<Shape> decode(byte[] data) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            ShapeCodec.checkVersion(in.readUnsignedByte());
+            int count = ShapeCodec.readVarInt(in);
+            if (count < 0) {
+                throw new IOException("Invalid shape count: " + count);
+            }
+            // 声明的数量不可信，预分配不超过一个块的容量，数据不足时读取会失败
+            List<Shape> shapes = new ArrayList<>(Math.min(count, SHAPES_PER_CHUNK));
+            for (int i = 0; i < count; i++) {
+                shapes.add(ShapeCodec.readShape(in));
+            }
+            return shapes;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.whiteboard.common.codec;
+
+import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.client.shapes.ShapeCodec;
+import com.whiteboard.common.model.ShapeSnapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 白板增量文件格式。
+ * 记录相对于上一次保存的修改（删除的ID、原位替换的形状、追加的形状），
+ * 文件头中保存所属基准文件的标识（基准的版本号和保存时间）和在增量链中的序号，
+ * 读取时据此判断增量是否属于当前的基准文件。修改内容作为一个数据块压缩存储。
+ */
+public final class WhiteboardDelta {
+    public static final int MAGIC = 0x57424444;      // "WBDD"
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int MAX_PAYLOAD_SIZE = 64 * 1024 * 1024;
+
+    private final long baseVersion;
+    private final long baseSavedAt;
+    private final int sequence;
+    private final long boardVersion;
+    private final long savedAt;
+    private final String createdBy;
+    private final ShapeSnapshot.Delta changes;
+
+    private WhiteboardDelta(long baseVersion, long baseSavedAt, int sequence, long boardVersion, long savedAt,
+                            String createdBy, ShapeSnapshot.Delta changes) {
+        this.baseVersion = baseVersion;
+        this.baseSavedAt = baseSavedAt;
+        this.sequence = sequence;
+        this.boardVersion = boardVersion;
+        this.savedAt = savedAt;
+        this.createdBy = createdBy;
+        this.changes = changes;
+    }
+
+    /**
+     * 写入增量文件
+     * @param baseVersion 基准文件的白板版本号
+     * @param baseSavedAt 基准文件的保存时间
+     * @param sequence 在增量链中的序号，从1开始
+     * @param boardVersion 应用本增量后的白板版本号
+     * @return 写入的字节数
+     */
+    public static long write(File file, long baseVersion, long baseSavedAt, int sequence, long boardVersion,
+                             long savedAt, String createdBy, ShapeSnapshot.Delta changes,
+                             BlockCodec codec) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        ShapeCodec.writeVarInt(payloadOut, changes.getRemovedIds().size());
+        for (String id : changes.getRemovedIds()) {
+            payloadOut.writeUTF(id);
+        }
+        writeShapes(payloadOut, changes.getReplaced());
+        writeShapes(payloadOut, changes.getAppended());
+        payloadOut.flush();
+        if (payload.size() > MAX_PAYLOAD_SIZE) {
+            throw new IOException("Delta too large: " + payload.size() + " bytes");
+        }
+        byte[] raw = payload.toByteArray();
+        byte[] stored = codec.compress(raw, 0, raw.length);
+
+        try (FileOutputStream fileOut = new FileOutputStream(file)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeByte(ShapeCodec.FORMAT_VERSION);
+            out.writeByte(codec.id());
+            out.writeByte(0);                        // 保留
+            out.writeLong(baseVersion);
+            out.writeLong(baseSavedAt);
+            out.writeInt(sequence);
+            out.writeLong(boardVersion);
+            out.writeLong(savedAt);
+            out.writeUTF(createdBy != null ? createdBy : "");
+            out.writeInt(raw.length);
+            out.writeInt(stored.length);
+            out.write(stored);
+            out.flush();
+            fileOut.getFD().sync();
+            return fileOut.getChannel().size();
+        }
+    }
+
+    /**
+     * 读取增量文件
+     */
+    public static WhiteboardDelta read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a whiteboard delta file");
+            }
+            int formatVersion = in.readUnsignedByte();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported whiteboard delta version: " + formatVersion);
+            }
+            ShapeCodec.checkVersion(in.readUnsignedByte());
+            BlockCodec codec = BlockCodecs.forId(in.readUnsignedByte());
+            in.readUnsignedByte();
+            long baseVersion = in.readLong();
+            long baseSavedAt = in.readLong();
+            int sequence = in.readInt();
+            long boardVersion = in.readLong();
+            long savedAt = in.readLong();
+            String createdBy = in.readUTF();
+            int rawLength = in.readInt();
+            int storedLength = in.readInt();
+            if (rawLength < 0 || rawLength > MAX_PAYLOAD_SIZE || storedLength < 0 || storedLength > MAX_PAYLOAD_SIZE) {
+                throw new IOException("Corrupt whiteboard delta");
+            }
+            byte[] stored = new byte[storedLength];
+            in.readFully(stored);
+            byte[] raw = new byte[rawLength];
+            codec.decompress(stored, 0, storedLength, raw);
+
+            DataInputStream payload = new DataInputStream(new ByteArrayInputStream(raw));
+            int removedCount = ShapeCodec.readVarInt(payload);
+            List<String> removed = new ArrayList<>(Math.min(removedCount, 1 << 16));
+            for (int i = 0; i < removedCount; i++) {
+                removed.add(payload.readUTF());
+            }
+            List<Shape> replaced = readShapes(payload);
+            List<Shape> appended = readShapes(payload);
+            return new WhiteboardDelta(baseVersion, baseSavedAt, sequence, boardVersion, savedAt, createdBy,
+                    new ShapeSnapshot.Delta(removed, replaced, appended));
+        }
+    }
+
+    private static void writeShapes(DataOutputStream out, List<Shape> shapes) throws IOException {
+        ShapeCodec.writeVarInt(out, shapes.size());
+        for (Shape shape : shapes) {
+            ShapeCodec.writeShape(out, shape);
+        }
+    }
+
+    private static List<Shape> readShapes(DataInputStream in) throws IOException {
+        int count = ShapeCodec.readVarInt(in);
+        List<Shape> shapes = new ArrayList<>(Math.min(count, 1 << 16));
+        for (int i = 0; i < count; i++) {
+            shapes.add(ShapeCodec.readShape(in));
+        }
+        return shapes;
+    }
+
+    /**
+     * 判断增量是否属于给定的基准文件
+     */
+    public boolean belongsTo(WhiteboardFile.Reader base) {
+        return baseVersion == base.getBoardVersion() && baseSavedAt == base.getSavedAt();
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public long getBoardVersion() {
+        return boardVersion;
+    }
+
+    public long getSavedAt() {
+        return savedAt;
+    }
+
+    public String getCreatedBy() {
+        return createdBy;
+    }
+
+    public ShapeSnapshot.Delta getChanges() {
+        return changes;
+    }
+}
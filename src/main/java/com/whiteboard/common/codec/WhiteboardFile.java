@@ -0,0 +1,431 @@
+package com.whiteboard.common.codec;
+
+import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.client.shapes.ShapeCodec;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+
+/**
+ * .wbd 白板文件格式（第2版）。
+ * 文件由三部分组成：定长的文件头、数据块区、块索引。
+ * 形状记录（变长长度加 ShapeCodec 编码）按顺序装入约 64KB 的数据块，每块用文件头中记录的
+ * 压缩算法单独压缩；索引记录每块的偏移和第一个形状的序号。
+ * 读取时内存映射整个文件，逐块解压并流式解码，也可以按序号只解压所在的块随机读取单个形状。
+ * 旧版本的文件是 Java 序列化的 WhiteboardSaveData，由调用方通过 isContainer 区分。
+ */
+public final class WhiteboardFile {
+    public static final int MAGIC = 0x57424432;      // "WBD2"
+    public static final int CONTAINER_VERSION = 2;
+
+    // 每个数据块未压缩时的目标大小
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+    // 文件头中各字段的位置
+    private static final int SHAPE_COUNT_OFFSET = 24;
+    private static final int INDEX_OFFSET_OFFSET = 28;
+    private static final int RECORDS_OFFSET_OFFSET = 36;
+    private static final int HEADER_SIZE = 44;       // 之后是 createdBy（UTF）
+    private static final int INDEX_ENTRY_SIZE = 12;  // 块偏移（long）+ 第一个形状序号（int）
+    private static final int BLOCK_HEADER_SIZE = 8;  // 原始长度（int）+ 压缩后长度（int）
+
+    private WhiteboardFile() {
+    }
+
+    /**
+     * 判断文件是否为新的容器格式（否则按旧的 Java 序列化格式读取）
+     */
+    public static boolean isContainer(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return file.length() >= HEADER_SIZE && in.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * 使用默认压缩算法写入白板文件
+     * @param file 目标文件
+     * @param shapes 按提交顺序排列的形状
+     * @param shapeCount 形状数量
+     * @param boardVersion 白板版本号
+     * @param savedAt 保存时间
+     * @param createdBy 保存者
+     */
+    public static void write(File file, Iterable<Shape> shapes, int shapeCount, long boardVersion,
+                             long savedAt, String createdBy) throws IOException {
+        write(file, shapes, shapeCount, boardVersion, savedAt, createdBy, BlockCodecs.DEFAULT, null);
+    }
+
+    /**
+     * 写入白板文件，并在写入过程中报告进度
+     * @param codec 数据块压缩算法
+     * @param progress 接收已写入的形状数，可以为 null
+     */
+    public static void write(File file, Iterable<Shape> shapes, int shapeCount, long boardVersion,
+                             long savedAt, String createdBy, BlockCodec codec, IntConsumer progress) throws IOException {
+        List<long[]> blocks = new ArrayList<>();
+        long indexOffset;
+        long recordsOffset;
+        int written = 0;
+
+        try (FileOutputStream fileOut = new FileOutputStream(file)) {
+            CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+            DataOutputStream out = new DataOutputStream(counter);
+
+            out.writeInt(MAGIC);
+            out.writeByte(CONTAINER_VERSION);
+            out.writeByte(ShapeCodec.FORMAT_VERSION);
+            out.writeByte(codec.id());
+            out.writeByte(0);                        // 保留
+            out.writeLong(boardVersion);
+            out.writeLong(savedAt);
+            out.writeInt(shapeCount);
+            out.writeLong(0);                        // 索引偏移，写完后回填
+            out.writeLong(0);                        // 数据块区偏移，写完后回填
+            out.writeUTF(createdBy != null ? createdBy : "");
+
+            recordsOffset = counter.count;
+            BlockBuffer block = new BlockBuffer(BLOCK_SIZE + BLOCK_SIZE / 4);
+            DataOutputStream blockOut = new DataOutputStream(block);
+            ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+            DataOutputStream recordOut = new DataOutputStream(record);
+            int blockFirstShape = 0;
+            for (Shape shape : shapes) {
+                if (written == shapeCount) {
+                    throw new IOException("More shapes than declared: " + shapeCount);
+                }
+                record.reset();
+                ShapeCodec.writeShape(recordOut, shape);
+                ShapeCodec.writeVarInt(blockOut, record.size());
+                record.writeTo(blockOut);
+                written++;
+
+                if (block.size() >= BLOCK_SIZE) {
+                    blocks.add(new long[]{counter.count, blockFirstShape});
+                    writeBlock(out, codec, block);
+                    blockFirstShape = written;
+                }
+                if (progress != null) {
+                    progress.accept(written);
+                }
+            }
+            if (written != shapeCount) {
+                throw new IOException("Expected " + shapeCount + " shapes but got " + written);
+            }
+            if (block.size() > 0) {
+                blocks.add(new long[]{counter.count, blockFirstShape});
+                writeBlock(out, codec, block);
+            }
+
+            indexOffset = counter.count;
+            out.writeInt(blocks.size());
+            for (long[] entry : blocks) {
+                out.writeLong(entry[0]);
+                out.writeInt((int) entry[1]);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        // 回填索引和数据块区的位置
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer patch = ByteBuffer.allocate(16);
+            patch.putLong(indexOffset);
+            patch.putLong(recordsOffset);
+            patch.flip();
+            while (patch.hasRemaining()) {
+                channel.write(patch, INDEX_OFFSET_OFFSET + (16 - patch.remaining()));
+            }
+            channel.force(true);
+        }
+    }
+
+    private static void writeBlock(DataOutputStream out, BlockCodec codec, BlockBuffer block) throws IOException {
+        byte[] stored = codec.compress(block.buffer(), 0, block.size());
+        out.writeInt(block.size());
+        out.writeInt(stored.length);
+        out.write(stored);
+        block.reset();
+    }
+
+    /**
+     * 以内存映射方式打开白板文件
+     */
+    public static Reader open(File file) throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * 内存映射的白板文件读取器。迭代时逐块解压并流式解码，不会一次性创建所有形状。
+     * 非线程安全。
+     */
+    public static final class Reader implements Iterable<Shape>, Closeable {
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final BlockCodec codec;
+        private final long boardVersion;
+        private final long savedAt;
+        private final int shapeCount;
+        private final int blockCount;
+        private final int indexOffset;
+        private final int recordsOffset;
+        private final String createdBy;
+
+        private Reader(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Whiteboard file too large: " + size + " bytes");
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+                if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                    throw new IOException("Not a whiteboard container file");
+                }
+                int containerVersion = buffer.get(4) & 0xFF;
+                if (containerVersion != CONTAINER_VERSION) {
+                    throw new IOException("Unsupported whiteboard file version: " + containerVersion);
+                }
+                ShapeCodec.checkVersion(buffer.get(5) & 0xFF);
+                codec = BlockCodecs.forId(buffer.get(6) & 0xFF);
+                boardVersion = buffer.getLong(8);
+                savedAt = buffer.getLong(16);
+                shapeCount = buffer.getInt(SHAPE_COUNT_OFFSET);
+                long index = buffer.getLong(INDEX_OFFSET_OFFSET);
+                long records = buffer.getLong(RECORDS_OFFSET_OFFSET);
+                if (shapeCount < 0 || records < HEADER_SIZE || index < records || index + 4 > size) {
+                    throw new IOException("Corrupt whiteboard file header");
+                }
+                indexOffset = (int) index;
+                recordsOffset = (int) records;
+                blockCount = buffer.getInt(indexOffset);
+                if (blockCount < 0 || index + 4 + (long) blockCount * INDEX_ENTRY_SIZE > size) {
+                    throw new IOException("Corrupt whiteboard file index");
+                }
+                createdBy = new DataInputStream(streamAt(HEADER_SIZE, recordsOffset)).readUTF();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public int getShapeCount() {
+            return shapeCount;
+        }
+
+        public long getBoardVersion() {
+            return boardVersion;
+        }
+
+        public long getSavedAt() {
+            return savedAt;
+        }
+
+        public String getCreatedBy() {
+            return createdBy;
+        }
+
+        public BlockCodec getCodec() {
+            return codec;
+        }
+
+        /**
+         * 按序号读取单个形状，只解压它所在的数据块
+         */
+        public Shape readShape(int index) throws IOException {
+            if (index < 0 || index >= shapeCount) {
+                throw new IndexOutOfBoundsException("Shape index " + index + " of " + shapeCount);
+            }
+            // 找到第一个形状序号不大于 index 的最后一个块
+            int low = 0;
+            int high = blockCount - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (blockFirstShape(mid) <= index) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (blockCount == 0 || blockFirstShape(low) > index) {
+                throw new IOException("Shape " + index + " not found in block index");
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(readBlock(low)));
+            for (int i = blockFirstShape(low); i < index; i++) {
+                int length = ShapeCodec.readVarInt(in);
+                if (in.skipBytes(length) != length) {
+                    throw new IOException("Truncated shape record " + i);
+                }
+            }
+            ShapeCodec.readVarInt(in);
+            return ShapeCodec.readShape(in);
+        }
+
+        /**
+         * 顺序解码所有形状。解码失败时抛出 UncheckedIOException
+         */
+        @Override
+        public Iterator<Shape> iterator() {
+            return new Iterator<Shape>() {
+                private int next = 0;
+                private int nextBlock = 0;
+                private DataInputStream in;
+
+                @Override
+                public boolean hasNext() {
+                    return next < shapeCount;
+                }
+
+                @Override
+                public Shape next() {
+                    if (next >= shapeCount) {
+                        throw new NoSuchElementException();
+                    }
+                    try {
+                        while (in == null || in.available() == 0) {
+                            if (nextBlock >= blockCount) {
+                                throw new IOException("Missing data block for shape " + next);
+                            }
+                            in = new DataInputStream(new ByteArrayInputStream(readBlock(nextBlock++)));
+                        }
+                        ShapeCodec.readVarInt(in);
+                        Shape shape = ShapeCodec.readShape(in);
+                        next++;
+                        return shape;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Corrupt shape record " + next, e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private int blockFirstShape(int block) {
+            return buffer.getInt(indexOffset + 4 + block * INDEX_ENTRY_SIZE + 8);
+        }
+
+        // 解压一个数据块；不压缩时也复制一份，解码只在堆内数组上进行
+        private byte[] readBlock(int block) throws IOException {
+            long offset = buffer.getLong(indexOffset + 4 + block * INDEX_ENTRY_SIZE);
+            if (offset < recordsOffset || offset + BLOCK_HEADER_SIZE > indexOffset) {
+                throw new IOException("Corrupt data block offset: " + offset);
+            }
+            int position = (int) offset;
+            int rawLength = buffer.getInt(position);
+            int storedLength = buffer.getInt(position + 4);
+            if (rawLength < 0 || rawLength > MAX_BLOCK_SIZE || storedLength < 0
+                    || storedLength > indexOffset - position - BLOCK_HEADER_SIZE) {
+                throw new IOException("Corrupt data block " + block);
+            }
+
+            byte[] stored = new byte[storedLength];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + BLOCK_HEADER_SIZE);
+            view.get(stored);
+            if (codec == BlockCodecs.NONE) {
+                if (storedLength != rawLength) {
+                    throw new IOException("Corrupt data block " + block);
+                }
+                return stored;
+            }
+            byte[] raw = new byte[rawLength];
+            codec.decompress(stored, 0, storedLength, raw);
+            return raw;
+        }
+
+        private InputStream streamAt(int position, int limit) {
+            ByteBuffer view = buffer.duplicate();
+            view.limit(limit);
+            view.position(position);
+            return new ByteBufferInputStream(view);
+        }
+    }
+
+    // 可以直接访问内部数组的缓冲区，压缩时不再复制
+    private static final class BlockBuffer extends ByteArrayOutputStream {
+        BlockBuffer(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    // 从映射的缓冲区读取，不复制数据
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static final class CountingOutputStream extends java.io.FilterOutputStream {
+        long count;
+
+        CountingOutputStream(java.io.OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
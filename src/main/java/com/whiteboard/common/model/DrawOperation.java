@@ -6,20 +6,31 @@ import com.whiteboard.client.shapes.Shape;
 public class DrawOperation implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    // 序号会写入操作日志，只能在末尾添加新类型
+    // LOAD 表示整体替换为加载的白板文件，操作本身不携带形状
     public enum OperationType {
-        ADD_SHAPE, REMOVE_SHAPE, CLEAR, UPDATE_SHAPE
+        ADD_SHAPE, REMOVE_SHAPE, CLEAR, UPDATE_SHAPE, LOAD
     }
 
     private OperationType type;
     private Shape shape;
+    private String shapeId;
     private String sessionId;
     private long timestamp;
+    private long version;   // 执行该操作后的白板版本号
 
     public DrawOperation(OperationType type, Shape shape, String sessionId) {
+        this(type, shape, shape != null ? shape.getId() : null, sessionId, 0, System.currentTimeMillis());
+    }
+
+    public DrawOperation(OperationType type, Shape shape, String shapeId, String sessionId,
+                         long version, long timestamp) {
         this.type = type;
         this.shape = shape;
+        this.shapeId = shapeId;
         this.sessionId = sessionId;
-        this.timestamp = System.currentTimeMillis();
+        this.version = version;
+        this.timestamp = timestamp;
     }
 
     // Getters
@@ -31,6 +42,10 @@ public class DrawOperation implements Serializable {
         return shape;
     }
 
+    public String getShapeId() {
+        return shapeId;
+    }
+
     public String getSessionId() {
         return sessionId;
     }
@@ -38,4 +53,8 @@ public class DrawOperation implements Serializable {
     public long getTimestamp() {
         return timestamp;
     }
-}
\ No newline at end of file
+
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,165 @@
+package com.whiteboard.common.model;
+
+import com.whiteboard.client.shapes.Shape;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * 白板形状的不可变快照。
+ * 与 WhiteboardState 共享底层的分块数组，创建快照只复制块表，不复制形状；
+ * 之后对白板的修改不会影响已创建的快照。按服务器时间戳（即提交顺序）迭代。
+ */
+public final class ShapeSnapshot implements Iterable<Shape> {
+    private final Shape[][] chunks;
+    private final int slotCount;   // 已使用的槽位数，包括已删除的空槽
+    private final int shapeCount;  // 实际形状数
+    private final long version;
+    private final long layout;     // 创建时白板的槽位布局
+
+    ShapeSnapshot(Shape[][] chunks, int slotCount, int shapeCount, long version, long layout) {
+        this.chunks = chunks;
+        this.slotCount = slotCount;
+        this.shapeCount = shapeCount;
+        this.version = version;
+        this.layout = layout;
+    }
+
+    public int size() {
+        return shapeCount;
+    }
+
+    public boolean isEmpty() {
+        return shapeCount == 0;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * 复制为可修改的列表（例如需要通过RMI发送时）
+     */
+    public List<Shape> toList() {
+        List<Shape> list = new ArrayList<>(shapeCount);
+        for (Shape shape : this) {
+            list.add(shape);
+        }
+        return list;
+    }
+
+    /**
+     * 与同一白板较早的快照比较，得到之间的修改。
+     * 两个快照之间槽位没有重排时逐槽比较，仍然共享的块直接跳过，耗时与修改涉及的块数成正比；
+     * 槽位重排过（压缩、清空、加载）时无法比较
+     * @param base 较早的快照
+     * @return 修改内容，无法比较时返回 null
+     */
+    public Delta changesSince(ShapeSnapshot base) {
+        if (base.layout != layout || base.slotCount > slotCount || base.version > version) {
+            return null;
+        }
+
+        int chunkSize = WhiteboardState.CHUNK_SIZE;
+        List<String> removed = new ArrayList<>();
+        List<Shape> replaced = new ArrayList<>();
+        List<Shape> appended = new ArrayList<>();
+        for (int chunk = 0; chunk * chunkSize < base.slotCount; chunk++) {
+            // 修改已有槽位前会先复制块，共享的块在基准可见的范围内一定没有变化
+            if (chunks[chunk] == base.chunks[chunk]) {
+                continue;
+            }
+            int end = Math.min(base.slotCount, (chunk + 1) * chunkSize);
+            for (int slot = chunk * chunkSize; slot < end; slot++) {
+                Shape before = base.slotAt(slot);
+                Shape after = slotAt(slot);
+                if (before == after) {
+                    continue;
+                }
+                if (after == null) {
+                    removed.add(before.getId());
+                } else if (before == null) {
+                    return null;                    // 同一布局下空槽不会被重新使用
+                } else {
+                    replaced.add(after);
+                }
+            }
+        }
+        for (int slot = base.slotCount; slot < slotCount; slot++) {
+            Shape shape = slotAt(slot);
+            if (shape != null) {
+                appended.add(shape);
+            }
+        }
+        return new Delta(removed, replaced, appended);
+    }
+
+    /**
+     * 两个快照之间的修改。应用时先删除，再原位替换，最后按顺序追加
+     */
+    public static final class Delta {
+        private final List<String> removedIds;
+        private final List<Shape> replaced;
+        private final List<Shape> appended;
+
+        public Delta(List<String> removedIds, List<Shape> replaced, List<Shape> appended) {
+            this.removedIds = removedIds;
+            this.replaced = replaced;
+            this.appended = appended;
+        }
+
+        public List<String> getRemovedIds() {
+            return removedIds;
+        }
+
+        // 基准中已有、被同ID的新形状原位替换的形状
+        public List<Shape> getReplaced() {
+            return replaced;
+        }
+
+        // 新追加到末尾的形状，按提交顺序
+        public List<Shape> getAppended() {
+            return appended;
+        }
+
+        public boolean isEmpty() {
+            return removedIds.isEmpty() && replaced.isEmpty() && appended.isEmpty();
+        }
+    }
+
+    @Override
+    public Iterator<Shape> iterator() {
+        return new Iterator<Shape>() {
+            private int slot = advance(0);
+
+            private int advance(int from) {
+                int i = from;
+                while (i < slotCount && slotAt(i) == null) {
+                    i++;
+                }
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return slot < slotCount;
+            }
+
+            @Override
+            public Shape next() {
+                if (slot >= slotCount) {
+                    throw new NoSuchElementException();
+                }
+                Shape shape = slotAt(slot);
+                slot = advance(slot + 1);
+                return shape;
+            }
+        };
+    }
+
+    private Shape slotAt(int slot) {
+        return chunks[slot / WhiteboardState.CHUNK_SIZE][slot % WhiteboardState.CHUNK_SIZE];
+    }
+}
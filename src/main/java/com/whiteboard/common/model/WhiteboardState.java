@@ -1,34 +1,160 @@
 package com.whiteboard.common.model;
 
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.common.spatial.SpatialIndex;
 
+/**
+ * 白板状态。
+ * 形状按提交顺序保存在分块数组中，并用 id -> 槽位 的哈希索引支持 O(1) 查找和删除。
+ * 快照与当前状态共享数据块，删除时才复制被修改的块（写时复制），
+ * 因此读取方无需复制整个白板。另有按形状范围建立的空间索引，用于区域查询。
+ * 所有修改方法都是线程安全的。每次修改都会生成带新版本号的 DrawOperation，
+ * 在锁内按版本顺序交给操作监听器（例如操作日志）。
+ */
 public class WhiteboardState implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    private List<Shape> shapes;
+    static final int CHUNK_SIZE = 1024;
+
+    private Shape[][] chunks;
+    private boolean[] ownedChunks;          // false 表示该块可能被快照共享，修改前需要复制
+    private int slotCount;                  // 已使用的槽位数，包括已删除的空槽
+    private long layout;                    // 槽位重排（压缩、清空、加载）的次数，相同时快照可以逐槽比较
+    private Map<String, Integer> positions; // 形状ID -> 槽位
+    private SpatialIndex<Shape> spatialIndex;
+    private long lastTimestamp;
     private long version;
+    private transient List<Consumer<DrawOperation>> operationListeners = new ArrayList<>();
 
     public WhiteboardState() {
-        shapes = new ArrayList<>();
+        resetStorage();
         version = 0;
     }
 
+    /**
+     * 获取当前形状列表的副本
+     */
     public List<Shape> getShapes() {
-        return new ArrayList<>(shapes);
+        return snapshot().toList();
+    }
+
+    /**
+     * 获取当前状态的不可变快照，只复制块表
+     */
+    public synchronized ShapeSnapshot snapshot() {
+        Arrays.fill(ownedChunks, false);
+        Shape[][] table = Arrays.copyOf(chunks, chunks.length);
+        return new ShapeSnapshot(table, slotCount, positions.size(), version, layout);
+    }
+
+    /**
+     * 添加操作监听器。监听器在锁内按添加顺序调用，必须尽快返回（例如只入队）
+     */
+    public synchronized void addOperationListener(Consumer<DrawOperation> listener) {
+        if (operationListeners == null) {
+            operationListeners = new ArrayList<>();
+        }
+        operationListeners.add(listener);
+    }
+
+    public synchronized void setShapes(List<Shape> shapes) {
+        clear();
+        for (Shape shape : shapes) {
+            addShape(shape);
+        }
     }
 
-    public void setShapes(List<Shape> shapes) {
-        this.shapes = new ArrayList<>(shapes);
+    /**
+     * 按给定顺序追加形状（例如从文件加载时），形状的时间戳保持不变
+     */
+    public synchronized void addShape(Shape shape) {
+        boolean replaced = put(shape);
         version++;
+        emit(replaced ? DrawOperation.OperationType.UPDATE_SHAPE : DrawOperation.OperationType.ADD_SHAPE,
+                shape, shape.getId(), null);
+    }
+
+    /**
+     * 提交新形状：在锁内分配单调递增的服务器时间戳后追加到末尾（同ID的旧形状先被移除），
+     * 保证存储顺序与时间戳顺序一致
+     * @param shape 新形状
+     * @return 分配的时间戳
+     */
+    public synchronized long commitShape(Shape shape) {
+        return commitShape(shape, null);
     }
 
-    public void addShape(Shape shape) {
-        shapes.add(shape);
+    /**
+     * 提交新形状，并在生成的操作中记录来源会话
+     */
+    public synchronized long commitShape(Shape shape, String sessionId) {
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+        shape.setTimestamp(timestamp);
+        boolean replaced = put(shape);
         version++;
+        emit(replaced ? DrawOperation.OperationType.UPDATE_SHAPE : DrawOperation.OperationType.ADD_SHAPE,
+                shape, shape.getId(), sessionId);
+        return timestamp;
+    }
+
+    /**
+     * 根据ID获取形状
+     * @param shapeId 形状ID
+     * @return 形状，不存在时返回null
+     */
+    public synchronized Shape getShape(String shapeId) {
+        Integer slot = positions.get(shapeId);
+        return slot != null ? slotAt(slot) : null;
+    }
+
+    /**
+     * 获取范围与区域相交的形状
+     * @param area 查询区域
+     * @return 按提交顺序排列的形状
+     */
+    public synchronized List<Shape> getShapesIn(Rectangle area) {
+        return spatialIndex.query(area).stream()
+                .sorted((a, b) -> Integer.compare(positions.get(a.getId()), positions.get(b.getId())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 获取某点处最上层的形状
+     * @param p 查询点
+     * @return 包含该点的最后提交的形状，没有时返回null
+     */
+    public synchronized Shape getShapeAt(Point p) {
+        Shape top = null;
+        int topSlot = -1;
+        for (Shape shape : spatialIndex.query(new Rectangle(p.x, p.y, 1, 1))) {
+            int slot = positions.get(shape.getId());
+            if (slot > topSlot && shape.contains(p)) {
+                top = shape;
+                topSlot = slot;
+            }
+        }
+        return top;
+    }
+
+    /**
+     * 查找距离某点最近的形状（按形状范围计算距离）
+     * @param p 查询点
+     * @param maxDistance 最大距离（像素）
+     * @return 最近的形状，没有时返回null
+     */
+    public synchronized Shape findNearestShape(Point p, int maxDistance) {
+        return spatialIndex.nearest(p, maxDistance, null);
     }
 
     /**
@@ -36,25 +162,225 @@ public class WhiteboardState implements Serializable {
      * @param shapeId 要移除的形状ID
      * @return 是否成功移除
      */
-    public boolean removeShape(String shapeId) {
-        Iterator<Shape> iterator = shapes.iterator();
-        while (iterator.hasNext()) {
-            Shape shape = iterator.next();
-            if (shape.getId().equals(shapeId)) {
-                iterator.remove();
-                version++;
-                return true;
-            }
+    public synchronized boolean removeShape(String shapeId) {
+        return removeShape(shapeId, null);
+    }
+
+    public synchronized boolean removeShape(String shapeId, String sessionId) {
+        if (!remove(shapeId)) {
+            return false;
         }
-        return false;
+        version++;
+        emit(DrawOperation.OperationType.REMOVE_SHAPE, null, shapeId, sessionId);
+        return true;
     }
 
-    public void clear() {
-        shapes.clear();
+    public synchronized void clear() {
+        clear(null);
+    }
+
+    public synchronized void clear(String sessionId) {
+        resetStorage();
         version++;
+        emit(DrawOperation.OperationType.CLEAR, null, null, sessionId);
     }
 
-    public long getVersion() {
+    /**
+     * 整体替换为加载的形状，版本号只增加一次并产生一个 LOAD 操作。
+     * 形状可以边解码边传入。解码和建立存储、空间索引都在锁外进行，不阻塞其他读写，
+     * 完成后在锁内一次性替换；迭代中途失败时白板保持不变并重新抛出异常
+     * @param shapes 按提交顺序排列的形状
+     * @return 加载完成时的快照
+     */
+    public ShapeSnapshot load(Iterable<Shape> shapes, String sessionId) {
+        // 暂存的状态只有当前线程可见，不需要加锁
+        WhiteboardState staged = new WhiteboardState();
+        for (Shape shape : shapes) {
+            staged.put(shape);
+        }
+
+        synchronized (this) {
+            layout++;
+            chunks = staged.chunks;
+            ownedChunks = staged.ownedChunks;
+            slotCount = staged.slotCount;
+            positions = staged.positions;
+            spatialIndex = staged.spatialIndex;
+            lastTimestamp = Math.max(lastTimestamp, staged.lastTimestamp);
+            version++;
+            emit(DrawOperation.OperationType.LOAD, null, null, sessionId);
+            return snapshot();
+        }
+    }
+
+    /**
+     * 把白板替换为给定的形状（例如恢复到历史版本），同 load 只增加一次版本号并产生一个 LOAD 操作
+     * @param shapes 按提交顺序排列的形状
+     * @return 与替换前相比的修改：删除的ID（包括内容变化的形状）和新增的形状，没有原位替换
+     */
+    public synchronized ShapeSnapshot.Delta revert(List<Shape> shapes, String sessionId) {
+        ShapeSnapshot.Delta changes = diff(shapes);
+        load(shapes, sessionId);
+        return changes;
+    }
+
+    /**
+     * 与当前状态相比，替换为给定形状需要的修改，不修改状态
+     * @param shapes 按提交顺序排列的形状
+     * @return 删除的ID（包括内容变化的形状）和新增的形状，没有原位替换
+     */
+    public synchronized ShapeSnapshot.Delta diff(List<Shape> shapes) {
+        Map<String, Shape> before = new HashMap<>(positions.size() * 2);
+        for (Integer slot : positions.values()) {
+            Shape shape = slotAt(slot);
+            before.put(shape.getId(), shape);
+        }
+
+        List<String> removed = new ArrayList<>();
+        List<Shape> added = new ArrayList<>();
+        for (Shape shape : shapes) {
+            Shape existing = before.remove(shape.getId());
+            if (existing != shape) {
+                if (existing != null) {
+                    removed.add(shape.getId());
+                }
+                added.add(shape);
+            }
+        }
+        removed.addAll(before.keySet());
+        return new ShapeSnapshot.Delta(removed, Collections.emptyList(), added);
+    }
+
+    /**
+     * 从持久化数据恢复状态：替换全部形状并设置版本号，不产生操作
+     * @param shapes 按提交顺序排列的形状
+     * @param restoredVersion 数据对应的版本号
+     */
+    public synchronized void restore(Iterable<Shape> shapes, long restoredVersion) {
+        resetStorage();
+        for (Shape shape : shapes) {
+            put(shape);
+        }
+        version = restoredVersion;
+    }
+
+    /**
+     * 重放已记录的操作（例如从操作日志恢复），版本号取操作中的值，不产生新的操作
+     */
+    public synchronized void apply(DrawOperation operation) {
+        switch (operation.getType()) {
+            case ADD_SHAPE:
+            case UPDATE_SHAPE:
+                put(operation.getShape());
+                break;
+            case REMOVE_SHAPE:
+                remove(operation.getShapeId());
+                break;
+            case CLEAR:
+                resetStorage();
+                break;
+        }
+        version = operation.getVersion();
+    }
+
+    public synchronized int size() {
+        return positions.size();
+    }
+
+    public synchronized long getVersion() {
         return version;
     }
-}
\ No newline at end of file
+
+    private void emit(DrawOperation.OperationType type, Shape shape, String shapeId, String sessionId) {
+        if (operationListeners != null && !operationListeners.isEmpty()) {
+            DrawOperation operation = new DrawOperation(type, shape, shapeId, sessionId,
+                    version, System.currentTimeMillis());
+            for (Consumer<DrawOperation> listener : operationListeners) {
+                listener.accept(operation);
+            }
+        }
+    }
+
+    // 追加形状到末尾，相同ID的形状先从原位置移除，更新后的形状按新的时间戳排在最后；
+    // 返回是否替换了已有形状
+    private boolean put(Shape shape) {
+        lastTimestamp = Math.max(lastTimestamp, shape.getTimestamp());
+
+        boolean replaced = remove(shape.getId());
+        append(shape);
+        spatialIndex.insert(shape, shape.getBounds());
+        return replaced;
+    }
+
+    private boolean remove(String shapeId) {
+        Integer slot = positions.remove(shapeId);
+        if (slot == null) {
+            return false;
+        }
+
+        spatialIndex.remove(slotAt(slot));
+        writableChunk(slot / CHUNK_SIZE)[slot % CHUNK_SIZE] = null;
+
+        // 空槽过多时压缩
+        if (slotCount > CHUNK_SIZE && positions.size() < slotCount / 2) {
+            compact();
+        }
+        return true;
+    }
+
+    // 写入下一个空槽，不修改空间索引
+    private void append(Shape shape) {
+        int chunkIndex = slotCount / CHUNK_SIZE;
+        if (chunkIndex == chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(4, chunks.length * 2));
+            ownedChunks = Arrays.copyOf(ownedChunks, chunks.length);
+        }
+        if (chunks[chunkIndex] == null) {
+            chunks[chunkIndex] = new Shape[CHUNK_SIZE];
+            ownedChunks[chunkIndex] = true;
+        }
+
+        // 追加位置在所有快照的可见范围之外，共享的块也可以直接写入
+        chunks[chunkIndex][slotCount % CHUNK_SIZE] = shape;
+        positions.put(shape.getId(), slotCount);
+        slotCount++;
+    }
+
+    private Shape[] writableChunk(int chunkIndex) {
+        if (!ownedChunks[chunkIndex]) {
+            chunks[chunkIndex] = chunks[chunkIndex].clone();
+            ownedChunks[chunkIndex] = true;
+        }
+        return chunks[chunkIndex];
+    }
+
+    private Shape slotAt(int slot) {
+        return chunks[slot / CHUNK_SIZE][slot % CHUNK_SIZE];
+    }
+
+    // 去除空槽并重建ID索引，旧块仍可被快照继续使用；形状不变，空间索引无需重建
+    private void compact() {
+        Shape[][] oldChunks = chunks;
+        int oldSlotCount = slotCount;
+        resetSlots();
+        for (int i = 0; i < oldSlotCount; i++) {
+            Shape shape = oldChunks[i / CHUNK_SIZE][i % CHUNK_SIZE];
+            if (shape != null) {
+                append(shape);
+            }
+        }
+    }
+
+    private void resetStorage() {
+        resetSlots();
+        spatialIndex = new SpatialIndex<>();
+    }
+
+    private void resetSlots() {
+        layout++;
+        chunks = new Shape[4][];
+        ownedChunks = new boolean[4];
+        slotCount = 0;
+        positions = new HashMap<>();
+    }
+}
@@ -4,17 +4,23 @@ import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.List;
 import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.common.model.DrawOperation;
 
 public interface IWhiteboardClient extends Remote {
     // 原有方法
-    void updateShape(Shape shape) throws RemoteException;
-    void removeShape(String shapeId) throws RemoteException;
+    // 白板修改都带有修改后的版本号，同一客户端按版本顺序收到
+    void updateShape(Shape shape, long version) throws RemoteException;
+    void removeShape(String shapeId, long version) throws RemoteException;
     void updateUserList(List<String> users) throws RemoteException;
     void receiveMessage(String senderName, String message) throws RemoteException;
     void notifyManagerDecision(boolean approved) throws RemoteException;
     void notifyManagerLeft() throws RemoteException;
     void notifyKicked() throws RemoteException;
-    void receiveClearCanvas() throws RemoteException;
+    void receiveClearCanvas(long version) throws RemoteException;
+    // 分块接收白板快照，收到最后一块后替换整个画布
+    void receiveSnapshotChunk(long version, int chunkIndex, int chunkCount, byte[] data) throws RemoteException;
+    // 重新注册时补发客户端错过的操作，按版本顺序排列
+    void receiveOperations(List<DrawOperation> operations) throws RemoteException;
 
     // 新增方法
     void notifyPendingJoinRequest(String username, boolean isOnline) throws RemoteException;
@@ -26,8 +32,14 @@ public interface IWhiteboardClient extends Remote {
     void receivePreviewClear(String fromUser) throws RemoteException;
     // 添加预览开始回调
     void receivePreviewStart(Shape previewShape, String fromUser, long timestamp) throws RemoteException;
+    // 自由绘制预览的增量点，coordinates 为交错排列的 x, y
+    void receivePreviewAppend(String fromUser, int fromIndex, int[] coordinates) throws RemoteException;
 
     void notifyDuplicateUsername(String username) throws RemoteException;
 
+    // 后台保存的进度和结果，ticket 为 saveWhiteboard 返回的保存编号
+    void notifySaveProgress(long ticket, int percent) throws RemoteException;
+    void notifySaveCompleted(long ticket, boolean success, String error) throws RemoteException;
+
 
 }
\ No newline at end of file
@@ -19,22 +19,35 @@ public interface IWhiteboardServer extends Remote {
     void removeShape(String shapeId, String sessionId) throws RemoteException;
     void clearCanvas(String sessionId) throws RemoteException;
     List<Shape> getAllShapes() throws RemoteException;
-    void registerClient(String sessionId, IWhiteboardClient client) throws RemoteException;
+    // knownVersion 为客户端已应用到的白板版本（没有时为-1），服务器只补发之后的操作，差距过大时改发整个快照
+    void registerClient(String sessionId, IWhiteboardClient client, long knownVersion) throws RemoteException;
     void unregisterClient(String sessionId) throws RemoteException;
-    boolean saveWhiteboard(String filename, String sessionId) throws RemoteException;
+    // 在后台保存，立即返回保存编号（拒绝时返回-1），进度和结果通过客户端回调通知
+    long saveWhiteboard(String filename, String sessionId) throws RemoteException;
     boolean loadWhiteboard(String filename, String sessionId) throws RemoteException;
     void sendChatMessage(String message, String senderSessionId) throws RemoteException;
 
+    // 白板历史：当前版本号、某一时刻的版本号（早于保留的历史时为-1）、查看和恢复历史版本（仅管理员）
+    long getBoardVersion() throws RemoteException;
+    long findVersionAt(long timestamp, String managerId) throws RemoteException;
+    List<Shape> getShapesAtVersion(long version, String managerId) throws RemoteException;
+    boolean restoreVersion(long version, String managerId) throws RemoteException;
+
     // 新增方法
     void requestJoin(String username, String sessionId) throws RemoteException;
     void rejectUser(String username, String managerId) throws RemoteException;
-    void updateUserActivity(String sessionId) throws RemoteException;
+    // 会话已挂起或不存在时返回 false，客户端应调用 resumeSession
+    boolean updateUserActivity(String sessionId) throws RemoteException;
+    // 在宽限期内恢复断开的会话，用户名、批准状态和角色不变，只补发 knownVersion 之后的操作；会话已过期时返回 false
+    boolean resumeSession(String sessionId, IWhiteboardClient client, long knownVersion) throws RemoteException;
 
     // 新增预览方法
     void updatePreview(Shape previewShape, String sessionId) throws RemoteException;
     void clearPreview(String sessionId) throws RemoteException;
 
     long startPreview(Shape initialShape, String sessionId) throws RemoteException;
+    // 自由绘制预览只发送新增的点，返回服务器端已有的点数，没有进行中的预览时返回-1
+    int appendPreviewPoints(int fromIndex, int[] coordinates, String sessionId) throws RemoteException;
     void completeShape(Shape finalShape, String sessionId) throws RemoteException;
 
 // updatePreview 和 clearPreview 方法保持不变
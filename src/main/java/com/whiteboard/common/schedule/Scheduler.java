@@ -0,0 +1,227 @@
+package com.whiteboard.common.schedule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 定时任务调度器。
+ * 所有周期性工作共用少量命名的守护线程，代替每个用途各开一个 java.util.Timer 线程。
+ * 单个任务抛出的异常只记录日志，不会取消该任务或影响其他任务。
+ * 每个任务统计启动延迟（实际开始时间晚于计划时间的部分）和超时（执行时间超过周期）次数。
+ */
+public final class Scheduler {
+    private static final Logger logger = Logger.getLogger(Scheduler.class.getName());
+
+    public static final int DEFAULT_THREADS = Integer.getInteger("whiteboard.scheduler.threads",
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    private final String name;
+    private final ScheduledThreadPoolExecutor executor;
+    private final List<ScheduledTask> tasks = new CopyOnWriteArrayList<>();
+
+    private static final class Holder {
+        static final Scheduler SHARED = new Scheduler("whiteboard-scheduler", DEFAULT_THREADS);
+    }
+
+    /**
+     * 进程内共用的调度器
+     */
+    public static Scheduler shared() {
+        return Holder.SHARED;
+    }
+
+    public Scheduler(String name, int threads) {
+        this.name = name;
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        executor = new ScheduledThreadPoolExecutor(Math.max(1, threads), factory);
+        // 取消的任务立即移出队列
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * 延迟执行一次
+     */
+    public ScheduledTask schedule(String taskName, Runnable task, long delay, TimeUnit unit) {
+        ScheduledTask scheduled = register(new ScheduledTask(this, taskName, task, 0, false), delay, unit);
+        scheduled.future = executor.schedule(scheduled::run, delay, unit);
+        return scheduled;
+    }
+
+    /**
+     * 按固定频率执行，上一次执行超时时下一次会紧接着开始
+     */
+    public ScheduledTask scheduleAtFixedRate(String taskName, Runnable task, long initialDelay, long period, TimeUnit unit) {
+        ScheduledTask scheduled = register(new ScheduledTask(this, taskName, task, unit.toNanos(period), true), initialDelay, unit);
+        scheduled.future = executor.scheduleAtFixedRate(scheduled::run, initialDelay, period, unit);
+        return scheduled;
+    }
+
+    /**
+     * 每次执行结束后间隔固定时间再执行，适合执行时间不确定的任务（例如远程调用）
+     */
+    public ScheduledTask scheduleWithFixedDelay(String taskName, Runnable task, long initialDelay, long delay, TimeUnit unit) {
+        ScheduledTask scheduled = register(new ScheduledTask(this, taskName, task, unit.toNanos(delay), false), initialDelay, unit);
+        scheduled.future = executor.scheduleWithFixedDelay(scheduled::run, initialDelay, delay, unit);
+        return scheduled;
+    }
+
+    // 先登记再提交，第一次执行可能在提交返回前就开始
+    private ScheduledTask register(ScheduledTask scheduled, long initialDelay, TimeUnit unit) {
+        scheduled.expectedNanos = System.nanoTime() + unit.toNanos(initialDelay);
+        tasks.add(scheduled);
+        return scheduled;
+    }
+
+    /**
+     * 当前仍在调度中的任务
+     */
+    public List<ScheduledTask> getTasks() {
+        return new ArrayList<>(tasks);
+    }
+
+    /**
+     * 所有任务的统计，每个任务一行
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder(name).append(": ").append(tasks.size()).append(" task(s)");
+        for (ScheduledTask task : tasks) {
+            sb.append("\n  ").append(task);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 停止调度器，正在执行的任务会被中断
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        tasks.clear();
+    }
+
+    /**
+     * 调度中的一个任务及其统计
+     */
+    public static final class ScheduledTask {
+        private final String name;
+        private final Runnable task;
+        private final long periodNanos;
+        private final boolean fixedRate;
+        private final Scheduler owner;
+        private volatile ScheduledFuture<?> future;
+
+        // 只在执行线程中修改；同一任务不会并发执行
+        private volatile long expectedNanos;
+        private volatile long runs;
+        private volatile long failures;
+        private volatile long overruns;
+        private volatile long totalLagNanos;
+        private volatile long maxLagNanos;
+        private volatile long lastDurationNanos;
+
+        private ScheduledTask(Scheduler owner, String name, Runnable task, long periodNanos, boolean fixedRate) {
+            this.owner = owner;
+            this.name = name;
+            this.task = task;
+            this.periodNanos = periodNanos;
+            this.fixedRate = fixedRate;
+        }
+
+        private void run() {
+            long start = System.nanoTime();
+            long lag = Math.max(0, start - expectedNanos);
+            try {
+                task.run();
+            } catch (RuntimeException | Error e) {
+                failures++;
+                logger.log(Level.SEVERE, "Scheduled task " + name + " failed", e);
+            } finally {
+                long end = System.nanoTime();
+                long duration = end - start;
+                runs++;
+                totalLagNanos += lag;
+                maxLagNanos = Math.max(maxLagNanos, lag);
+                lastDurationNanos = duration;
+
+                if (periodNanos > 0) {
+                    if (fixedRate) {
+                        expectedNanos += periodNanos;
+                        if (duration > periodNanos) {
+                            overruns++;
+                            logger.fine("Scheduled task " + name + " overran its period: "
+                                    + TimeUnit.NANOSECONDS.toMillis(duration) + " ms");
+                        }
+                    } else {
+                        expectedNanos = end + periodNanos;
+                    }
+                } else {
+                    owner.tasks.remove(this);
+                }
+            }
+        }
+
+        /**
+         * 取消任务，正在进行的执行不会被中断
+         */
+        public void cancel() {
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+            owner.tasks.remove(this);
+        }
+
+        public boolean isCancelled() {
+            ScheduledFuture<?> f = future;
+            return f != null && f.isCancelled();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getRunCount() {
+            return runs;
+        }
+
+        public long getFailureCount() {
+            return failures;
+        }
+
+        // 执行时间超过周期的次数（只统计固定频率任务）
+        public long getOverrunCount() {
+            return overruns;
+        }
+
+        public long getMaxLagMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxLagNanos);
+        }
+
+        public double getAverageLagMillis() {
+            long n = runs;
+            return n == 0 ? 0 : totalLagNanos / 1e6 / n;
+        }
+
+        public long getLastDurationMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(lastDurationNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: runs=%d failures=%d overruns=%d lag avg=%.1fms max=%dms last=%dms",
+                    name, runs, failures, overruns, getAverageLagMillis(), getMaxLagMillis(), getLastDurationMillis());
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.whiteboard.common.spatial;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * 基于均匀网格的空间索引，按对象的外接矩形回答"哪些对象与这个区域相交"。
+ * 每个对象登记在它覆盖的所有网格单元中；覆盖单元过多的大对象单独存放，每次查询都检查。
+ * 对象按引用区分。非线程安全，由调用方加锁（查询也会修改内部的去重标记）。
+ *
+ * @param <T> 被索引的对象类型
+ */
+public class SpatialIndex<T> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_CELL_SIZE = 256;
+    // 超过这么多单元的对象放入大对象列表，避免插入和删除时遍历大量单元
+    private static final int MAX_CELLS_PER_ITEM = 64;
+
+    private final int cellSize;
+    private final Map<T, Entry<T>> entries = new IdentityHashMap<>();
+    private final Map<Long, List<Entry<T>>> cells = new HashMap<>();
+    private final List<Entry<T>> oversized = new ArrayList<>();
+    private long nextSequence = 0;
+    private int queryStamp = 0;
+
+    private static final class Entry<T> implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final T item;
+        final Rectangle bounds;
+        final long sequence;      // 插入顺序，用于在距离相同时选择最后插入的对象
+        final int minCellX, minCellY, maxCellX, maxCellY;
+        final boolean isOversized;
+        int stamp;                // 最近一次返回该对象的查询，避免跨单元重复
+
+        Entry(T item, Rectangle bounds, long sequence, int cellSize) {
+            this.item = item;
+            this.bounds = new Rectangle(bounds);
+            this.sequence = sequence;
+            this.minCellX = Math.floorDiv(bounds.x, cellSize);
+            this.minCellY = Math.floorDiv(bounds.y, cellSize);
+            this.maxCellX = Math.floorDiv(bounds.x + Math.max(bounds.width, 1) - 1, cellSize);
+            this.maxCellY = Math.floorDiv(bounds.y + Math.max(bounds.height, 1) - 1, cellSize);
+            long cellCount = (long) (maxCellX - minCellX + 1) * (maxCellY - minCellY + 1);
+            this.isOversized = cellCount > MAX_CELLS_PER_ITEM;
+        }
+    }
+
+    public SpatialIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    public SpatialIndex(int cellSize) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+        }
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * 插入对象，已存在时按新的范围重新登记
+     * @param item 对象
+     * @param bounds 对象的外接矩形
+     */
+    public void insert(T item, Rectangle bounds) {
+        remove(item);
+        Entry<T> entry = new Entry<>(item, bounds, nextSequence++, cellSize);
+        entries.put(item, entry);
+
+        if (entry.isOversized) {
+            oversized.add(entry);
+            return;
+        }
+        for (int cx = entry.minCellX; cx <= entry.maxCellX; cx++) {
+            for (int cy = entry.minCellY; cy <= entry.maxCellY; cy++) {
+                cells.computeIfAbsent(cellKey(cx, cy), key -> new ArrayList<>(4)).add(entry);
+            }
+        }
+    }
+
+    /**
+     * 移除对象
+     * @return 对象是否存在
+     */
+    public boolean remove(T item) {
+        Entry<T> entry = entries.remove(item);
+        if (entry == null) {
+            return false;
+        }
+
+        if (entry.isOversized) {
+            removeFrom(oversized, entry);
+            return true;
+        }
+        for (int cx = entry.minCellX; cx <= entry.maxCellX; cx++) {
+            for (int cy = entry.minCellY; cy <= entry.maxCellY; cy++) {
+                Long key = cellKey(cx, cy);
+                List<Entry<T>> cell = cells.get(key);
+                if (cell != null && removeFrom(cell, entry) && cell.isEmpty()) {
+                    cells.remove(key);
+                }
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        entries.clear();
+        cells.clear();
+        oversized.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean contains(T item) {
+        return entries.containsKey(item);
+    }
+
+    /**
+     * 获取对象登记时的外接矩形
+     * @return 外接矩形的副本，对象不存在时返回 null
+     */
+    public Rectangle getBounds(T item) {
+        Entry<T> entry = entries.get(item);
+        return entry != null ? new Rectangle(entry.bounds) : null;
+    }
+
+    /**
+     * 查询外接矩形与区域相交的所有对象，结果无特定顺序
+     * @param area 查询区域
+     * @return 相交的对象
+     */
+    public List<T> query(Rectangle area) {
+        List<T> result = new ArrayList<>();
+        if (area.width <= 0 || area.height <= 0 || entries.isEmpty()) {
+            return result;
+        }
+
+        int stamp = nextStamp();
+        int minCellX = Math.floorDiv(area.x, cellSize);
+        int minCellY = Math.floorDiv(area.y, cellSize);
+        int maxCellX = Math.floorDiv(area.x + area.width - 1, cellSize);
+        int maxCellY = Math.floorDiv(area.y + area.height - 1, cellSize);
+        long cellCount = (long) (maxCellX - minCellX + 1) * (maxCellY - minCellY + 1);
+
+        if (cellCount > cells.size()) {
+            // 查询区域比已使用的单元还多，直接遍历已使用的单元
+            for (List<Entry<T>> cell : cells.values()) {
+                collect(cell, area, stamp, result);
+            }
+        } else {
+            for (int cx = minCellX; cx <= maxCellX; cx++) {
+                for (int cy = minCellY; cy <= maxCellY; cy++) {
+                    List<Entry<T>> cell = cells.get(cellKey(cx, cy));
+                    if (cell != null) {
+                        collect(cell, area, stamp, result);
+                    }
+                }
+            }
+        }
+        collect(oversized, area, stamp, result);
+        return result;
+    }
+
+    /**
+     * 查找距离某点最近的对象（按到外接矩形的距离，点在矩形内时距离为0）。
+     * 距离相同时返回最后插入的对象，即通常位于最上层的对象。
+     * @param p 查询点
+     * @param maxDistance 最大距离
+     * @param filter 额外条件（例如精确的命中测试），可为 null
+     * @return 最近的对象，没有时返回 null
+     */
+    public T nearest(Point p, int maxDistance, Predicate<? super T> filter) {
+        int reach = Math.max(0, maxDistance);
+        Rectangle area = new Rectangle(p.x - reach, p.y - reach, 2 * reach + 1, 2 * reach + 1);
+        long maxDistanceSq = (long) reach * reach;
+
+        Entry<T> best = null;
+        long bestDistanceSq = Long.MAX_VALUE;
+        for (T item : query(area)) {
+            Entry<T> entry = entries.get(item);
+            long distanceSq = distanceSq(entry.bounds, p);
+            if (distanceSq > maxDistanceSq) {
+                continue;
+            }
+            if (distanceSq < bestDistanceSq || (distanceSq == bestDistanceSq && entry.sequence > best.sequence)) {
+                if (filter == null || filter.test(item)) {
+                    best = entry;
+                    bestDistanceSq = distanceSq;
+                }
+            }
+        }
+        return best != null ? best.item : null;
+    }
+
+    private void collect(List<Entry<T>> candidates, Rectangle area, int stamp, List<T> result) {
+        for (Entry<T> entry : candidates) {
+            if (entry.stamp != stamp && entry.bounds.intersects(area)) {
+                entry.stamp = stamp;
+                result.add(entry.item);
+            }
+        }
+    }
+
+    private int nextStamp() {
+        queryStamp++;
+        if (queryStamp == 0) {
+            // 计数回绕时重置所有标记
+            for (Entry<T> entry : entries.values()) {
+                entry.stamp = 0;
+            }
+            queryStamp = 1;
+        }
+        return queryStamp;
+    }
+
+    // 交换删除，单元内的顺序不重要
+    private static <T> boolean removeFrom(List<Entry<T>> list, Entry<T> entry) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == entry) {
+                int last = list.size() - 1;
+                list.set(i, list.get(last));
+                list.remove(last);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long distanceSq(Rectangle r, Point p) {
+        long dx = Math.max(0, Math.max(r.x - p.x, p.x - (r.x + r.width - 1)));
+        long dy = Math.max(0, Math.max(r.y - p.y, p.y - (r.y + r.height - 1)));
+        return dx * dx + dy * dy;
+    }
+
+    private static Long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+}
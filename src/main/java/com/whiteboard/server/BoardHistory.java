@@ -0,0 +1,219 @@
+package com.whiteboard.server;
+
+import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.common.model.DrawOperation;
+import com.whiteboard.common.model.ShapeSnapshot;
+import com.whiteboard.common.model.WhiteboardState;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * 白板的近期历史。
+ * 保存最近的操作和每隔一定数量操作获取的快照（检查点）。快照与白板共享数据块，
+ * 只有之后被修改的块才会各自保留一份，因此检查点的内存开销与修改量成正比。
+ * 任意保留范围内的版本都可以由不晚于它的最近检查点加上之间的操作重建。
+ * 操作数超过上限时丢弃最早的检查点及其之后到下一个检查点的操作。
+ */
+public class BoardHistory {
+    private static final Logger logger = Logger.getLogger(BoardHistory.class.getName());
+
+    // 保留的最大操作数和两个检查点之间的操作数
+    public static final int DEFAULT_MAX_OPERATIONS = Integer.getInteger("whiteboard.history.operations", 10000);
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = Integer.getInteger("whiteboard.history.checkpointInterval", 500);
+
+    private final WhiteboardState state;
+    private final int maxOperations;
+    private final int checkpointInterval;
+
+    private final ArrayDeque<DrawOperation> operations = new ArrayDeque<>();
+    private final ArrayDeque<Checkpoint> checkpoints = new ArrayDeque<>();
+    private int operationsSinceCheckpoint;
+
+    private static final class Checkpoint {
+        final ShapeSnapshot snapshot;
+        final long timestamp;
+
+        Checkpoint(ShapeSnapshot snapshot, long timestamp) {
+            this.snapshot = snapshot;
+            this.timestamp = timestamp;
+        }
+
+        long version() {
+            return snapshot.getVersion();
+        }
+    }
+
+    public BoardHistory(WhiteboardState state) {
+        this(state, DEFAULT_MAX_OPERATIONS, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    public BoardHistory(WhiteboardState state, int maxOperations, int checkpointInterval) {
+        this.state = state;
+        this.maxOperations = Math.max(1, maxOperations);
+        this.checkpointInterval = Math.max(1, checkpointInterval);
+    }
+
+    /**
+     * 以白板当前状态作为第一个检查点，开始记录之后的操作
+     */
+    public void attach() {
+        synchronized (this) {
+            checkpoints.add(new Checkpoint(state.snapshot(), System.currentTimeMillis()));
+        }
+        state.addOperationListener(this::record);
+    }
+
+    // 在白板锁内调用
+    private synchronized void record(DrawOperation operation) {
+        operations.add(operation);
+        // LOAD 操作不带形状，无法重放，直接在加载后的状态上建立检查点
+        if (operation.getType() == DrawOperation.OperationType.LOAD
+                || ++operationsSinceCheckpoint >= checkpointInterval) {
+            addCheckpoint(operation.getTimestamp());
+        }
+
+        while (operations.size() > maxOperations && checkpoints.size() > 1) {
+            checkpoints.removeFirst();
+            long oldest = checkpoints.getFirst().version();
+            while (!operations.isEmpty() && operations.getFirst().getVersion() <= oldest) {
+                operations.removeFirst();
+            }
+        }
+    }
+
+    private void addCheckpoint(long timestamp) {
+        // 白板锁已由调用方持有，快照就是该操作之后的状态
+        checkpoints.add(new Checkpoint(state.snapshot(), timestamp));
+        operationsSinceCheckpoint = 0;
+    }
+
+    /**
+     * 可以查询的最早版本
+     */
+    public synchronized long getOldestVersion() {
+        return checkpoints.getFirst().version();
+    }
+
+    /**
+     * 查找某一时刻的白板版本
+     * @param timestamp 服务器时间（毫秒）
+     * @return 该时刻之前最后一次修改后的版本，早于保留的历史时返回 -1
+     */
+    public synchronized long findVersionAt(long timestamp) {
+        long found = -1;
+        Checkpoint first = checkpoints.getFirst();
+        if (first.timestamp <= timestamp) {
+            found = first.version();
+        }
+        for (DrawOperation operation : operations) {
+            if (operation.getTimestamp() > timestamp) {
+                break;
+            }
+            if (operation.getVersion() > first.version()) {
+                found = operation.getVersion();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 重建某个版本的白板
+     * @param version 要重建的版本
+     * @return 该版本的形状，按提交顺序
+     * @throws IllegalArgumentException 版本不在保留的历史范围内
+     */
+    public List<Shape> getShapesAt(long version) {
+        Checkpoint base = null;
+        List<DrawOperation> replay = new ArrayList<>();
+        synchronized (this) {
+            long current = checkpoints.getLast().version();
+            if (!operations.isEmpty()) {
+                current = Math.max(current, operations.getLast().getVersion());
+            }
+            if (version < checkpoints.getFirst().version() || version > current) {
+                throw new IllegalArgumentException("Version " + version + " is outside the retained history ["
+                        + checkpoints.getFirst().version() + ", " + current + "]");
+            }
+            for (Checkpoint checkpoint : checkpoints) {
+                if (checkpoint.version() > version) {
+                    break;
+                }
+                base = checkpoint;
+            }
+            for (DrawOperation operation : operations) {
+                if (operation.getVersion() > version) {
+                    break;
+                }
+                if (operation.getVersion() > base.version()) {
+                    replay.add(operation);
+                }
+            }
+        }
+
+        // 在锁外重放，避免阻塞新的操作
+        Map<String, Shape> shapes = new LinkedHashMap<>(base.snapshot.size() * 2);
+        for (Shape shape : base.snapshot) {
+            shapes.put(shape.getId(), shape);
+        }
+        for (DrawOperation operation : replay) {
+            switch (operation.getType()) {
+                case ADD_SHAPE:
+                case UPDATE_SHAPE:
+                    // 与 WhiteboardState 一致，已有ID的形状移到末尾
+                    shapes.remove(operation.getShapeId());
+                    shapes.put(operation.getShapeId(), operation.getShape());
+                    break;
+                case REMOVE_SHAPE:
+                    shapes.remove(operation.getShapeId());
+                    break;
+                case CLEAR:
+                    shapes.clear();
+                    break;
+                default:
+                    // LOAD 之后一定有检查点，不会出现在重放范围内
+                    logger.warning("Unexpected operation in history replay: " + operation.getType());
+                    break;
+            }
+        }
+        return new ArrayList<>(shapes.values());
+    }
+
+    /**
+     * 取出某个版本之后的操作，供重新注册的客户端补齐错过的修改
+     * @param after 客户端已应用到的版本
+     * @param upTo 最多取到的版本（包含）
+     * @return 版本在 (after, upTo] 内的操作，按版本顺序；after 不在保留范围内或其间有 LOAD 操作时返回 null
+     */
+    public synchronized List<DrawOperation> getOperationsSince(long after, long upTo) {
+        if (after < checkpoints.getFirst().version() || after > upTo) {
+            return null;
+        }
+        List<DrawOperation> result = new ArrayList<>();
+        for (DrawOperation operation : operations) {
+            if (operation.getVersion() <= after) {
+                continue;
+            }
+            if (operation.getVersion() > upTo) {
+                break;
+            }
+            if (operation.getType() == DrawOperation.OperationType.LOAD) {
+                return null;
+            }
+            result.add(operation);
+        }
+        return result;
+    }
+
+    public synchronized int getOperationCount() {
+        return operations.size();
+    }
+
+    public synchronized int getCheckpointCount() {
+        return checkpoints.size();
+    }
+}
@@ -0,0 +1,199 @@
+package com.whiteboard.server;
+
+import com.whiteboard.common.remote.IWhiteboardClient;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * 客户端回调分发器。
+ * 为每个客户端会话维护一个有界发送队列和一个独立的发送线程，
+ * 广播只负责入队，单个慢速或失联的客户端不会阻塞其他客户端或调用方的RMI线程。
+ * 同一客户端的回调按入队顺序依次执行。
+ */
+public class ClientDispatcher {
+    private static final Logger logger = Logger.getLogger(ClientDispatcher.class.getName());
+
+    // 每个客户端最多积压的回调数，超出视为客户端已失去响应
+    private static final int QUEUE_CAPACITY = 1024;
+
+    /**
+     * 对单个客户端执行的一次远程回调
+     */
+    @FunctionalInterface
+    public interface ClientCall {
+        void invoke(IWhiteboardClient client) throws RemoteException;
+    }
+
+    private final Map<String, ClientChannel> channels = new ConcurrentHashMap<>();
+    private final Consumer<String> failureHandler;
+    // 断连处理在独立线程执行，避免占用发送线程或广播调用方
+    private final ExecutorService failureExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "whiteboard-dispatch-failures");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param failureHandler 客户端回调失败或队列溢出时调用，参数为会话ID
+     */
+    public ClientDispatcher(Consumer<String> failureHandler) {
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * 为会话注册客户端，已存在的旧通道会被关闭
+     * @param sessionId 会话ID
+     * @param client 客户端回调
+     */
+    public void register(String sessionId, IWhiteboardClient client) {
+        ClientChannel existing = channels.get(sessionId);
+        if (existing != null && existing.client.equals(client)) {
+            // 同一客户端重复注册时保留原通道及其中排队的回调
+            return;
+        }
+
+        ClientChannel channel = new ClientChannel(sessionId, client);
+        ClientChannel previous = channels.put(sessionId, channel);
+        if (previous != null) {
+            previous.close();
+        }
+        channel.start();
+    }
+
+    /**
+     * 注销会话并停止其发送线程，队列中未发送的回调被丢弃
+     * @param sessionId 会话ID
+     */
+    public void unregister(String sessionId) {
+        ClientChannel channel = channels.remove(sessionId);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * 向单个客户端发送回调
+     * @return 是否成功入队
+     */
+    public boolean send(String sessionId, ClientCall call) {
+        ClientChannel channel = channels.get(sessionId);
+        return channel != null && channel.offer(call);
+    }
+
+    /**
+     * 向所有客户端广播回调
+     */
+    public void broadcast(ClientCall call) {
+        broadcastExcept(null, call);
+    }
+
+    /**
+     * 向除指定会话外的所有客户端广播回调
+     * @param excludeSessionId 不接收回调的会话ID，可以为null
+     */
+    public void broadcastExcept(String excludeSessionId, ClientCall call) {
+        for (ClientChannel channel : channels.values()) {
+            if (!channel.sessionId.equals(excludeSessionId)) {
+                channel.offer(call);
+            }
+        }
+    }
+
+    public Set<String> getSessionIds() {
+        return channels.keySet();
+    }
+
+    public int getQueuedCount(String sessionId) {
+        ClientChannel channel = channels.get(sessionId);
+        return channel != null ? channel.queue.size() : 0;
+    }
+
+    /**
+     * 停止所有发送线程
+     */
+    public void shutdown() {
+        for (String sessionId : channels.keySet()) {
+            unregister(sessionId);
+        }
+        failureExecutor.shutdownNow();
+    }
+
+    private void handleFailure(ClientChannel channel, String reason) {
+        // 只有仍在注册表中的通道才触发断连处理，避免重复处理
+        if (channels.remove(channel.sessionId, channel)) {
+            channel.close();
+            logger.warning("Client channel failed: " + channel.sessionId + ", " + reason);
+            failureExecutor.execute(() -> failureHandler.accept(channel.sessionId));
+        }
+    }
+
+    /**
+     * 单个客户端的发送通道
+     */
+    private class ClientChannel implements Runnable {
+        final String sessionId;
+        final IWhiteboardClient client;
+        final BlockingQueue<ClientCall> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final Thread sender;
+        volatile boolean closed = false;
+
+        ClientChannel(String sessionId, IWhiteboardClient client) {
+            this.sessionId = sessionId;
+            this.client = client;
+            this.sender = new Thread(this, "whiteboard-sender-" + sessionId);
+            this.sender.setDaemon(true);
+        }
+
+        void start() {
+            sender.start();
+        }
+
+        boolean offer(ClientCall call) {
+            if (closed) {
+                return false;
+            }
+            if (!queue.offer(call)) {
+                handleFailure(this, "outbound queue full (" + QUEUE_CAPACITY + ")");
+                return false;
+            }
+            return true;
+        }
+
+        void close() {
+            closed = true;
+            queue.clear();
+            sender.interrupt();
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                ClientCall call;
+                try {
+                    call = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                try {
+                    call.invoke(client);
+                } catch (RemoteException e) {
+                    handleFailure(this, e.getMessage());
+                    break;
+                } catch (RuntimeException e) {
+                    // 单个回调的异常不影响后续回调
+                    logger.warning("Error dispatching callback to " + sessionId + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.whiteboard.server;
+
+import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.common.codec.WhiteboardDelta;
+import com.whiteboard.common.codec.WhiteboardFile;
+import com.whiteboard.common.model.ShapeSnapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * 白板文件的增量链。
+ * 基准文件 board.wbd 之后的增量依次保存为 board.wbd.d0001、board.wbd.d0002……
+ * 读取时把链上的所有增量合并为对基准的一组修改（删除、原位替换、追加），
+ * 再在流式读取基准时应用，内存占用只与修改量有关。
+ * 序号不连续或不属于当前基准的增量（例如重写基准时没来得及删除的旧增量）会被忽略。
+ */
+final class DeltaChain {
+    private static final Logger logger = Logger.getLogger(DeltaChain.class.getName());
+
+    private final Set<String> removedFromBase = new HashSet<>();
+    private final Map<String, Shape> replacedInBase = new HashMap<>();
+    private final LinkedHashMap<String, Shape> appended = new LinkedHashMap<>();
+    private int length;
+    private long bytes;
+    private long boardVersion;
+
+    private DeltaChain() {
+    }
+
+    static File deltaFile(File base, int sequence) {
+        return new File(base.getParentFile(), String.format("%s.d%04d", base.getName(), sequence));
+    }
+
+    /**
+     * 读取属于该基准的增量链
+     */
+    static DeltaChain read(File baseFile, WhiteboardFile.Reader base) {
+        DeltaChain chain = new DeltaChain();
+        chain.boardVersion = base.getBoardVersion();
+        for (int sequence = 1; ; sequence++) {
+            File file = deltaFile(baseFile, sequence);
+            if (!file.exists()) {
+                break;
+            }
+            try {
+                WhiteboardDelta delta = WhiteboardDelta.read(file);
+                if (!delta.belongsTo(base) || delta.getSequence() != sequence) {
+                    logger.info("Ignoring stale delta " + file.getName());
+                    break;
+                }
+                chain.add(delta.getChanges());
+                chain.length = sequence;
+                chain.bytes += file.length();
+                chain.boardVersion = delta.getBoardVersion();
+            } catch (IOException e) {
+                logger.warning("Ignoring unreadable delta " + file.getName() + ": " + e.getMessage());
+                break;
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * 删除基准的所有增量文件（重写基准之后调用）
+     */
+    static void deleteDeltas(File base, int fromSequence) {
+        for (int sequence = fromSequence; ; sequence++) {
+            File file = deltaFile(base, sequence);
+            if (!file.exists()) {
+                break;
+            }
+            if (!file.delete()) {
+                logger.warning("Cannot delete delta " + file.getName());
+            }
+        }
+    }
+
+    // 合并一个增量：先删除，再原位替换，最后追加
+    private void add(ShapeSnapshot.Delta delta) {
+        for (String id : delta.getRemovedIds()) {
+            if (appended.remove(id) == null) {
+                removedFromBase.add(id);
+                replacedInBase.remove(id);
+            }
+        }
+        for (Shape shape : delta.getReplaced()) {
+            if (appended.containsKey(shape.getId())) {
+                appended.put(shape.getId(), shape);   // 保持原来的追加位置
+            } else {
+                replacedInBase.put(shape.getId(), shape);
+            }
+        }
+        for (Shape shape : delta.getAppended()) {
+            appended.put(shape.getId(), shape);
+        }
+    }
+
+    int length() {
+        return length;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    // 应用整个链之后的白板版本号
+    long boardVersion() {
+        return boardVersion;
+    }
+
+    /**
+     * 在基准形状序列上应用合并后的修改
+     */
+    Iterable<Shape> apply(Iterable<Shape> base) {
+        if (length == 0) {
+            return base;
+        }
+        return () -> new Iterator<Shape>() {
+            private final Iterator<Shape> baseShapes = base.iterator();
+            private final Iterator<Shape> appendedShapes = appended.values().iterator();
+            private Shape next = advance();
+
+            private Shape advance() {
+                while (baseShapes.hasNext()) {
+                    Shape shape = baseShapes.next();
+                    if (removedFromBase.contains(shape.getId())) {
+                        continue;
+                    }
+                    Shape replacement = replacedInBase.get(shape.getId());
+                    return replacement != null ? replacement : shape;
+                }
+                return appendedShapes.hasNext() ? appendedShapes.next() : null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Shape next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Shape shape = next;
+                next = advance();
+                return shape;
+            }
+        };
+    }
+}
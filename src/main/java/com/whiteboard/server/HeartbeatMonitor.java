@@ -0,0 +1,268 @@
+package com.whiteboard.server;
+
+import com.whiteboard.common.remote.IWhiteboardClient;
+import com.whiteboard.common.schedule.Scheduler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * 客户端主动心跳检测。
+ * 每轮同时向所有客户端发送心跳，整轮只等待一个超时时间，失去响应的客户端不会拖慢对其他客户端的检测。
+ * 每个客户端记录最近若干轮的结果，窗口内失败次数达到上限才视为断开，偶发的超时不会导致断开。
+ * 上一轮的心跳仍未返回的客户端本轮直接记为失败，不再重复发送。
+ */
+public class HeartbeatMonitor {
+    private static final Logger logger = Logger.getLogger(HeartbeatMonitor.class.getName());
+
+    public static final long DEFAULT_INTERVAL_MS = Long.getLong("whiteboard.heartbeat.interval", 10000);
+    public static final long DEFAULT_TIMEOUT_MS = Long.getLong("whiteboard.heartbeat.timeout", 3000);
+    // 滑动窗口的轮数和窗口内允许的最多失败次数
+    public static final int DEFAULT_WINDOW = Integer.getInteger("whiteboard.heartbeat.window", 6);
+    public static final int DEFAULT_MAX_FAILURES = Integer.getInteger("whiteboard.heartbeat.maxFailures", 3);
+
+    private final Supplier<Map<String, IWhiteboardClient>> clients;
+    private final Consumer<String> failureHandler;
+    private final long timeoutNanos;
+    private final int window;
+    private final int maxFailures;
+
+    private final Map<String, ClientHealth> health = new ConcurrentHashMap<>();
+    // 心跳调用可能阻塞到RMI超时，每个客户端最多占用一个线程
+    private final ExecutorService callers;
+    private Scheduler.ScheduledTask task;
+
+    private volatile long sweeps;
+    private volatile long lastSweepNanos;
+    private volatile long maxSweepNanos;
+
+    /**
+     * @param clients 当前需要检测的客户端，会话ID -> 回调
+     * @param failureHandler 客户端被判定为断开时调用，参数为会话ID
+     */
+    public HeartbeatMonitor(Supplier<Map<String, IWhiteboardClient>> clients, Consumer<String> failureHandler) {
+        this(clients, failureHandler, DEFAULT_TIMEOUT_MS, DEFAULT_WINDOW, DEFAULT_MAX_FAILURES);
+    }
+
+    public HeartbeatMonitor(Supplier<Map<String, IWhiteboardClient>> clients, Consumer<String> failureHandler,
+                            long timeoutMs, int window, int maxFailures) {
+        this.clients = clients;
+        this.failureHandler = failureHandler;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeoutMs));
+        this.window = Math.max(1, window);
+        this.maxFailures = Math.max(1, Math.min(maxFailures, this.window));
+
+        AtomicInteger counter = new AtomicInteger();
+        callers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "whiteboard-heartbeat-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 按固定间隔开始检测
+     */
+    public void start() {
+        task = Scheduler.shared().scheduleWithFixedDelay("client-heartbeat", this::sweep,
+                DEFAULT_INTERVAL_MS, DEFAULT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        if (task != null) {
+            task.cancel();
+        }
+        callers.shutdownNow();
+    }
+
+    /**
+     * 清除会话的历史结果，例如会话恢复后重新开始计数
+     */
+    public void reset(String sessionId) {
+        health.remove(sessionId);
+    }
+
+    /**
+     * 执行一轮检测
+     */
+    void sweep() {
+        long start = System.nanoTime();
+        Map<String, IWhiteboardClient> current = new HashMap<>(clients.get());
+        health.keySet().retainAll(current.keySet());
+
+        Map<String, Future<Long>> pending = new HashMap<>();
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<String, IWhiteboardClient> entry : current.entrySet()) {
+            ClientHealth h = health.computeIfAbsent(entry.getKey(), id -> new ClientHealth(window));
+            Future<Long> previous = h.inFlight;
+            if (previous != null && !previous.isDone()) {
+                failed.add(entry.getKey());
+                continue;
+            }
+            IWhiteboardClient client = entry.getValue();
+            h.inFlight = callers.submit(() -> {
+                long sent = System.nanoTime();
+                client.heartbeat();
+                return System.nanoTime() - sent;
+            });
+            pending.put(entry.getKey(), h.inFlight);
+        }
+
+        // 所有心跳共用一个截止时间
+        long deadline = start + timeoutNanos;
+        for (Map.Entry<String, Future<Long>> entry : pending.entrySet()) {
+            String sessionId = entry.getKey();
+            ClientHealth h = health.get(sessionId);
+            try {
+                long rtt = entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (h != null) {
+                    h.record(true, rtt);
+                }
+            } catch (TimeoutException e) {
+                logger.warning("Heartbeat timed out: " + sessionId);
+                failed.add(sessionId);
+            } catch (ExecutionException e) {
+                logger.warning("Client failed heartbeat check: " + sessionId + ", " + e.getCause().getMessage());
+                failed.add(sessionId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        List<String> disconnected = new ArrayList<>();
+        for (String sessionId : failed) {
+            ClientHealth h = health.get(sessionId);
+            if (h != null && h.record(false, 0) >= maxFailures) {
+                disconnected.add(sessionId);
+            }
+        }
+
+        long duration = System.nanoTime() - start;
+        sweeps++;
+        lastSweepNanos = duration;
+        maxSweepNanos = Math.max(maxSweepNanos, duration);
+        logger.fine("Heartbeat sweep of " + current.size() + " clients took "
+                + TimeUnit.NANOSECONDS.toMillis(duration) + " ms, " + failed.size() + " failed");
+
+        for (String sessionId : disconnected) {
+            logger.warning("Client missed " + maxFailures + " of the last " + window + " heartbeats: " + sessionId);
+            health.remove(sessionId);
+            failureHandler.accept(sessionId);
+        }
+    }
+
+    public long getLastSweepMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastSweepNanos);
+    }
+
+    public long getMaxSweepMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxSweepNanos);
+    }
+
+    /**
+     * 客户端最近一次心跳的往返时间
+     * @return 毫秒，还没有成功的心跳时返回 -1
+     */
+    public double getRoundTripMillis(String sessionId) {
+        ClientHealth h = health.get(sessionId);
+        return h != null ? h.lastRttMillis() : -1;
+    }
+
+    /**
+     * 客户端往返时间的滑动平均
+     * @return 毫秒，还没有成功的心跳时返回 -1
+     */
+    public double getAverageRoundTripMillis(String sessionId) {
+        ClientHealth h = health.get(sessionId);
+        return h != null ? h.averageRttMillis() : -1;
+    }
+
+    /**
+     * 客户端在当前窗口内的失败次数
+     */
+    public int getRecentFailures(String sessionId) {
+        ClientHealth h = health.get(sessionId);
+        return h != null ? h.failures() : 0;
+    }
+
+    /**
+     * 检测的统计，每个客户端一行
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder(String.format("heartbeat: sweeps=%d last=%dms max=%dms",
+                sweeps, getLastSweepMillis(), getMaxSweepMillis()));
+        for (Map.Entry<String, ClientHealth> entry : health.entrySet()) {
+            ClientHealth h = entry.getValue();
+            sb.append(String.format("%n  %s: rtt=%.1fms avg=%.1fms failures=%d/%d",
+                    entry.getKey(), h.lastRttMillis(), h.averageRttMillis(), h.failures(), window));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 单个客户端最近若干轮的检测结果
+     */
+    private static final class ClientHealth {
+        // 往返时间滑动平均的权重
+        private static final double RTT_SMOOTHING = 0.2;
+
+        private final boolean[] results;    // true 表示失败，环形
+        private int next;
+        private int failureCount;
+        private long lastRttNanos = -1;
+        private double averageRttNanos = -1;
+        volatile Future<Long> inFlight;
+
+        ClientHealth(int window) {
+            results = new boolean[window];
+        }
+
+        /**
+         * 记录一轮结果
+         * @return 窗口内的失败次数
+         */
+        synchronized int record(boolean success, long rttNanos) {
+            if (results[next]) {
+                failureCount--;
+            }
+            results[next] = !success;
+            if (!success) {
+                failureCount++;
+            }
+            next = (next + 1) % results.length;
+
+            if (success) {
+                lastRttNanos = rttNanos;
+                averageRttNanos = averageRttNanos < 0 ? rttNanos
+                        : averageRttNanos + RTT_SMOOTHING * (rttNanos - averageRttNanos);
+            }
+            return failureCount;
+        }
+
+        synchronized int failures() {
+            return failureCount;
+        }
+
+        synchronized double lastRttMillis() {
+            return lastRttNanos < 0 ? -1 : lastRttNanos / 1e6;
+        }
+
+        synchronized double averageRttMillis() {
+            return averageRttNanos < 0 ? -1 : averageRttNanos / 1e6;
+        }
+    }
+}
@@ -0,0 +1,608 @@
+package com.whiteboard.server;
+
+import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.client.shapes.ShapeCodec;
+import com.whiteboard.common.codec.ShapeBatchCodec;
+import com.whiteboard.common.model.DrawOperation;
+import com.whiteboard.common.model.ShapeSnapshot;
+import com.whiteboard.common.model.WhiteboardState;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 白板操作日志。
+ * 每个 DrawOperation 编码为一条带长度和 CRC 的记录，追加到当前段文件；
+ * 写线程把积累的记录一次写入并只 fsync 一次（组提交），等待方在记录落盘后返回。
+ * 每记录一定数量的操作，后台写出整个白板的快照，并删除快照已覆盖的旧段文件。
+ * 启动时读取最新的快照，再按顺序重放之后的记录。重放要求版本号连续，
+ * 遇到缺口（写入失败或记录损坏丢失的操作）时停止，不跨过缺口应用之后的记录。
+ */
+public class OperationJournal {
+    private static final Logger logger = Logger.getLogger(OperationJournal.class.getName());
+
+    // 两次快照之间的默认记录数
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = Integer.getInteger("whiteboard.journal.snapshotInterval", 10000);
+
+    private static final int SEGMENT_MAGIC = 0x57424A4C;   // "WBJL"
+    private static final int SNAPSHOT_MAGIC = 0x57425350;  // "WBSP"
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".wbs";
+    private static final String DISCARDED_SUFFIX = ".discarded";
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    private static final long SYNC_TIMEOUT_MS = 5000;
+
+    private final File directory;
+    private final int snapshotInterval;
+
+    private final Object lock = new Object();
+    private List<DrawOperation> pending = new ArrayList<>();
+    private long appendedVersion;
+    private long durableVersion;
+    private long failedVersion = -1;       // 写入失败的最大版本号，快照覆盖后清除
+    private boolean closed = false;
+
+    // 以下字段只由写线程访问
+    private FileChannel segment;
+    private long lastWrittenVersion;
+    private int recordsSinceSnapshot;
+
+    private Supplier<ShapeSnapshot> snapshotSource;
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    private Thread writer;
+    private ExecutorService compactor;
+
+    public OperationJournal(File directory) {
+        this(directory, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    public OperationJournal(File directory, int snapshotInterval) {
+        this.directory = directory;
+        this.snapshotInterval = Math.max(1, snapshotInterval);
+    }
+
+    /**
+     * 从快照和日志恢复白板状态，然后开始记录之后的所有操作
+     * @param state 要恢复并监听的白板状态
+     */
+    public void open(WhiteboardState state) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory: " + directory.getAbsolutePath());
+        }
+
+        long snapshotVersion = loadLatestSnapshot(state);
+        List<File> discarded = new ArrayList<>();
+        int replayed = replaySegments(state, discarded);
+        long version = state.getVersion();
+        if (!discarded.isEmpty()) {
+            // 先写快照覆盖已重放的记录，再移走缺口所在及之后的段，这些记录以后不会再被当作连续的操作重放
+            writeSnapshot(state.snapshot());
+            for (File file : discarded) {
+                File target = new File(directory, file.getName() + DISCARDED_SUFFIX);
+                if (!file.renameTo(target)) {
+                    throw new IOException("Cannot set aside journal segment: " + file.getName());
+                }
+            }
+            deleteObsoleteFiles(version, version + 1);
+            replayed = 0;
+        }
+        logger.info("Recovered whiteboard version " + version + " (" + state.size() + " shapes) from snapshot "
+                + snapshotVersion + " and " + replayed + " journal records");
+
+        lastWrittenVersion = version;
+        appendedVersion = version;
+        durableVersion = version;
+        recordsSinceSnapshot = replayed;
+        segment = openSegment(version + 1);
+        snapshotSource = state::snapshot;
+
+        compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "whiteboard-journal-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        writer = new Thread(this::writeLoop, "whiteboard-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        state.addOperationListener(this::append);
+    }
+
+    /**
+     * 追加操作，只入队，由写线程写入。在白板状态的锁内调用，保证版本顺序
+     */
+    public void append(DrawOperation operation) {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            pending.add(operation);
+            appendedVersion = operation.getVersion();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 等待目前已追加的操作全部落盘
+     * @return 是否在超时前成功写入
+     */
+    public boolean sync() {
+        synchronized (lock) {
+            long target = appendedVersion;
+            long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MS;
+            while (durableVersion < target && failedVersion < target && !closed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return durableVersion >= target && failedVersion < 0;
+        }
+    }
+
+    /**
+     * 写出剩余的记录并停止后台线程
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            if (writer != null) {
+                writer.join(SYNC_TIMEOUT_MS);
+            }
+            if (compactor != null) {
+                compactor.shutdown();
+                compactor.awaitTermination(SYNC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<DrawOperation> batch;
+            synchronized (lock) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+
+            long batchVersion = batch.get(batch.size() - 1).getVersion();
+            if (containsLoad(batch)) {
+                writeLoadSnapshot(batchVersion);
+                continue;
+            }
+            try {
+                if (segment == null) {
+                    segment = openSegment(lastWrittenVersion + 1);
+                }
+                long skippedVersion = writeRecords(batch);
+                segment.force(false);
+                lastWrittenVersion = batchVersion;
+                recordsSinceSnapshot += batch.size();
+                if (skippedVersion >= 0) {
+                    // 无法编码的操作不在日志中，与写入失败一样尽快写快照，之前 sync 返回 false
+                    recordsSinceSnapshot = snapshotInterval;
+                }
+                synchronized (lock) {
+                    durableVersion = batchVersion;
+                    if (skippedVersion >= 0) {
+                        failedVersion = Math.max(failedVersion, skippedVersion);
+                    }
+                    lock.notifyAll();
+                }
+            } catch (IOException e) {
+                // 这批记录已丢失，换新段文件并尽快写快照，使日志重新完整
+                logger.severe("Error writing operation journal: " + e.getMessage());
+                closeQuietly(segment);
+                segment = null;
+                lastWrittenVersion = batchVersion;
+                recordsSinceSnapshot = snapshotInterval;
+                synchronized (lock) {
+                    failedVersion = batchVersion;
+                    lock.notifyAll();
+                }
+            }
+
+            if (recordsSinceSnapshot >= snapshotInterval) {
+                startCompaction();
+            }
+        }
+        closeQuietly(segment);
+        segment = null;
+    }
+
+    private static boolean containsLoad(List<DrawOperation> batch) {
+        for (DrawOperation operation : batch) {
+            if (operation.getType() == DrawOperation.OperationType.LOAD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 加载文件会替换整个白板，不逐条记录形状，而是在写线程上同步写出快照；
+    // 快照在取出这批操作之后获取，覆盖了这批中的所有操作
+    private void writeLoadSnapshot(long batchVersion) {
+        closeQuietly(segment);
+        segment = null;
+        ShapeSnapshot snapshot = snapshotSource.get();
+        try {
+            writeSnapshot(snapshot);
+            segment = openSegment(snapshot.getVersion() + 1);
+            deleteObsoleteFiles(snapshot.getVersion(), snapshot.getVersion() + 1);
+            lastWrittenVersion = snapshot.getVersion();
+            recordsSinceSnapshot = 0;
+            synchronized (lock) {
+                durableVersion = batchVersion;
+                if (failedVersion <= snapshot.getVersion()) {
+                    failedVersion = -1;
+                }
+                lock.notifyAll();
+            }
+            logger.info("Journal snapshot written for loaded whiteboard at version " + snapshot.getVersion()
+                    + " (" + snapshot.size() + " shapes)");
+        } catch (IOException e) {
+            logger.severe("Error writing journal snapshot for loaded whiteboard: " + e.getMessage());
+            closeQuietly(segment);
+            segment = null;
+            lastWrittenVersion = batchVersion;
+            recordsSinceSnapshot = snapshotInterval;
+            synchronized (lock) {
+                failedVersion = batchVersion;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 写出一批记录，无法编码的操作跳过
+     * @return 跳过的最大版本号，没有跳过时返回 -1
+     */
+    private long writeRecords(List<DrawOperation> batch) throws IOException {
+        List<byte[]> records = new ArrayList<>(batch.size());
+        int total = 0;
+        long skippedVersion = -1;
+        for (DrawOperation operation : batch) {
+            try {
+                byte[] record = encode(operation);
+                records.add(record);
+                total += record.length + 8;
+            } catch (IOException e) {
+                logger.severe("Operation cannot be journaled (version "
+                        + operation.getVersion() + "), a snapshot will cover it: " + e.getMessage());
+                skippedVersion = operation.getVersion();
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        CRC32 crc = new CRC32();
+        for (byte[] record : records) {
+            crc.reset();
+            crc.update(record);
+            buffer.putInt(record.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(record);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+        return skippedVersion;
+    }
+
+    // 在写线程上调用：切换段文件并获取快照，编码和写入交给后台线程
+    private void startCompaction() {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+
+        // 先切换到新段，旧段中的记录一定都包含在随后获取的快照中
+        long firstKeptVersion = lastWrittenVersion + 1;
+        try {
+            closeQuietly(segment);
+            segment = openSegment(firstKeptVersion);
+        } catch (IOException e) {
+            logger.severe("Error rolling operation journal segment: " + e.getMessage());
+            segment = null;
+            compacting.set(false);
+            return;
+        }
+        ShapeSnapshot snapshot = snapshotSource.get();
+        recordsSinceSnapshot = 0;
+
+        compactor.execute(() -> {
+            try {
+                writeSnapshot(snapshot);
+                deleteObsoleteFiles(snapshot.getVersion(), firstKeptVersion);
+                synchronized (lock) {
+                    if (failedVersion <= snapshot.getVersion()) {
+                        failedVersion = -1;
+                    }
+                }
+                logger.info("Journal compacted at version " + snapshot.getVersion()
+                        + " (" + snapshot.size() + " shapes)");
+            } catch (IOException e) {
+                logger.severe("Error writing journal snapshot: " + e.getMessage());
+            } finally {
+                compacting.set(false);
+            }
+        });
+    }
+
+    private FileChannel openSegment(long firstVersion) throws IOException {
+        // 同名文件只可能是上次崩溃时留下的没有有效记录的段，可以覆盖
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, firstVersion, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(5);
+        header.putInt(SEGMENT_MAGIC);
+        header.put((byte) ShapeCodec.FORMAT_VERSION);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        return channel;
+    }
+
+    private void writeSnapshot(ShapeSnapshot snapshot) throws IOException {
+        List<byte[]> chunks = ShapeBatchCodec.encodeChunks(snapshot);
+        File target = new File(directory, String.format("%s%020d%s", SNAPSHOT_PREFIX, snapshot.getVersion(), SNAPSHOT_SUFFIX));
+        File temp = new File(directory, target.getName() + ".tmp");
+
+        try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeByte(ShapeCodec.FORMAT_VERSION);
+            out.writeLong(snapshot.getVersion());
+            out.writeInt(chunks.size());
+            for (byte[] chunk : chunks) {
+                out.writeInt(chunk.length);
+                out.write(chunk);
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void deleteObsoleteFiles(long snapshotVersion, long firstKeptVersion) {
+        for (File file : listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (versionOf(file, SEGMENT_PREFIX, SEGMENT_SUFFIX) < firstKeptVersion && !file.delete()) {
+                logger.warning("Cannot delete journal segment: " + file.getName());
+            }
+        }
+        for (File file : listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (versionOf(file, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX) < snapshotVersion && !file.delete()) {
+                logger.warning("Cannot delete journal snapshot: " + file.getName());
+            }
+        }
+    }
+
+    // 读取最新的有效快照，返回其版本号；没有快照时返回0
+    private long loadLatestSnapshot(WhiteboardState state) {
+        List<File> snapshots = listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            File file = snapshots.get(i);
+            try {
+                List<Shape> shapes = new ArrayList<>();
+                long version = readSnapshot(file, shapes);
+                state.restore(shapes, version);
+                return version;
+            } catch (IOException e) {
+                logger.warning("Ignoring unreadable journal snapshot " + file.getName() + ": " + e.getMessage());
+            }
+        }
+        return 0;
+    }
+
+    private static long readSnapshot(File file, List<Shape> shapes) throws IOException {
+        try (FileInputStream fileIn = new FileInputStream(file)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(fileIn), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a journal snapshot");
+            }
+            ShapeCodec.checkVersion(in.readUnsignedByte());
+            long version = in.readLong();
+            int chunkCount = in.readInt();
+            for (int i = 0; i < chunkCount; i++) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    throw new IOException("Invalid snapshot chunk length: " + length);
+                }
+                byte[] chunk = new byte[length];
+                in.readFully(chunk);
+                shapes.addAll(ShapeBatchCodec.decode(chunk));
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("Snapshot checksum mismatch");
+            }
+            return version;
+        }
+    }
+
+    /**
+     * 按顺序重放所有段中版本号大于当前状态的记录。记录的版本号必须紧接当前状态，
+     * 出现缺口时停止重放，缺口所在及之后的段加入 discarded
+     * @return 重放的记录数
+     */
+    private int replaySegments(WhiteboardState state, List<File> discarded) {
+        int replayed = 0;
+        List<File> segments = listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        for (int index = 0; index < segments.size(); index++) {
+            File file = segments.get(index);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != SEGMENT_MAGIC) {
+                    logger.warning("Ignoring invalid journal segment: " + file.getName());
+                    continue;
+                }
+                ShapeCodec.checkVersion(in.readUnsignedByte());
+
+                CRC32 crc = new CRC32();
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    int checksum = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_SIZE) {
+                        throw new IOException("Invalid record length: " + length);
+                    }
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if ((int) crc.getValue() != checksum) {
+                        throw new IOException("Record checksum mismatch");
+                    }
+
+                    DrawOperation operation = decode(record);
+                    if (operation.getVersion() <= state.getVersion()) {
+                        continue;
+                    }
+                    if (operation.getVersion() != state.getVersion() + 1) {
+                        logger.severe("Journal is missing versions " + (state.getVersion() + 1) + " to "
+                                + (operation.getVersion() - 1) + " before " + file.getName()
+                                + "; recovery stops at version " + state.getVersion() + " and "
+                                + (segments.size() - index) + " segment(s) are set aside as *" + DISCARDED_SUFFIX);
+                        discarded.addAll(segments.subList(index, segments.size()));
+                        return replayed;
+                    }
+                    state.apply(operation);
+                    replayed++;
+                }
+            } catch (IOException e) {
+                // 崩溃时最后一条记录可能只写了一半，之后的内容丢弃；
+                // 下一段只有紧接着已重放的版本时才继续重放，否则在上面按缺口处理
+                logger.warning("Journal segment " + file.getName() + " ends with an incomplete record: " + e.getMessage());
+            }
+        }
+        return replayed;
+    }
+
+    private static byte[] encode(DrawOperation operation) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        ShapeCodec.writeVarLong(out, operation.getVersion());
+        out.writeByte(operation.getType().ordinal());
+        ShapeCodec.writeVarLong(out, operation.getTimestamp());
+        out.writeUTF(operation.getSessionId() != null ? operation.getSessionId() : "");
+        switch (operation.getType()) {
+            case ADD_SHAPE:
+            case UPDATE_SHAPE:
+                ShapeCodec.writeShape(out, operation.getShape());
+                break;
+            case REMOVE_SHAPE:
+                out.writeUTF(operation.getShapeId());
+                break;
+            default:
+                break;
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static DrawOperation decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        long version = ShapeCodec.readVarLong(in);
+        int typeIndex = in.readUnsignedByte();
+        DrawOperation.OperationType[] types = DrawOperation.OperationType.values();
+        if (typeIndex >= types.length) {
+            throw new IOException("Unknown operation type: " + typeIndex);
+        }
+        DrawOperation.OperationType type = types[typeIndex];
+        long timestamp = ShapeCodec.readVarLong(in);
+        String sessionId = in.readUTF();
+
+        Shape shape = null;
+        String shapeId = null;
+        if (type == DrawOperation.OperationType.ADD_SHAPE || type == DrawOperation.OperationType.UPDATE_SHAPE) {
+            shape = ShapeCodec.readShape(in);
+            shapeId = shape.getId();
+        } else if (type == DrawOperation.OperationType.REMOVE_SHAPE) {
+            shapeId = in.readUTF();
+        }
+        return new DrawOperation(type, shape, shapeId, sessionId.isEmpty() ? null : sessionId, version, timestamp);
+    }
+
+    // 按版本号排序的文件列表
+    private List<File> listFiles(String prefix, String suffix) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(suffix));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(versionOf(a, prefix, suffix), versionOf(b, prefix, suffix)));
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    private static long versionOf(File file, String prefix, String suffix) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // 忽略关闭时的异常
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.whiteboard.server;
+
+import com.whiteboard.client.shapes.FreeDrawing;
+import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.common.schedule.Scheduler;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * 预览更新中继。
+ * 每个(发送者, 接收者)对只保留最新的一帧预览，按固定帧率推送给接收者，
+ * 中间帧直接被覆盖丢弃，因此预览带宽与鼠标事件频率无关。
+ * 自由绘制预览只推送接收者尚未收到的新增点。
+ */
+public class PreviewRelay {
+    private static final Logger logger = Logger.getLogger(PreviewRelay.class.getName());
+
+    public static final int DEFAULT_FPS = Integer.getInteger("whiteboard.preview.fps", 30);
+
+    private final ClientDispatcher dispatcher;
+    private final Map<String, ReceiverSlots> receivers = new ConcurrentHashMap<>(); // 接收者会话ID -> 待发送预览
+    private final Scheduler.ScheduledTask flusher;
+
+    public PreviewRelay(ClientDispatcher dispatcher) {
+        this(dispatcher, DEFAULT_FPS);
+    }
+
+    public PreviewRelay(ClientDispatcher dispatcher, int framesPerSecond) {
+        this.dispatcher = dispatcher;
+        long periodMs = Math.max(1, 1000 / Math.max(1, framesPerSecond));
+
+        flusher = Scheduler.shared().scheduleAtFixedRate("preview-flush", this::flush, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        logger.info("Preview relay started at " + framesPerSecond + " fps");
+    }
+
+    /**
+     * 开始一次预览。预览开始消息已直接发送给接收者，这里记录接收者已有的点数作为增量基准
+     * @param fromUser 发送者用户名
+     * @param shape 服务器端保存的预览形状
+     * @param excludeSessionId 发送者会话ID
+     */
+    public void begin(String fromUser, Shape shape, String excludeSessionId) {
+        for (String sessionId : dispatcher.getSessionIds()) {
+            if (!sessionId.equals(excludeSessionId)) {
+                PreviewSlot slot = new PreviewSlot();
+                if (shape instanceof FreeDrawing) {
+                    slot.stroke = (FreeDrawing) shape;
+                    // 开始消息在发送时才序列化，接收者实际收到的点数不会少于此时的点数
+                    slot.sentCount = slot.stroke.getPointCount();
+                }
+                slotsFor(sessionId).latest.put(fromUser, slot);
+            }
+        }
+    }
+
+    /**
+     * 记录一帧完整预览，覆盖每个接收者尚未发出的旧帧
+     * @param fromUser 发送者用户名
+     * @param shape 最新预览形状
+     * @param excludeSessionId 发送者会话ID，不接收自己的预览
+     */
+    public void publish(String fromUser, Shape shape, String excludeSessionId) {
+        for (String sessionId : dispatcher.getSessionIds()) {
+            if (!sessionId.equals(excludeSessionId)) {
+                PreviewSlot slot = slotsFor(sessionId).latest.computeIfAbsent(fromUser, u -> new PreviewSlot());
+                synchronized (slot) {
+                    slot.pendingShape = shape;
+                    slot.stroke = shape instanceof FreeDrawing ? (FreeDrawing) shape : null;
+                    slot.dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 标记自由绘制预览有新增的点，下一帧只推送接收者尚未收到的部分
+     * @param fromUser 发送者用户名
+     * @param stroke 服务器端保存的预览笔画
+     * @param excludeSessionId 发送者会话ID
+     */
+    public void publishAppend(String fromUser, FreeDrawing stroke, String excludeSessionId) {
+        for (String sessionId : dispatcher.getSessionIds()) {
+            if (!sessionId.equals(excludeSessionId)) {
+                PreviewSlot slot = slotsFor(sessionId).latest.get(fromUser);
+                if (slot == null) {
+                    // 接收者在预览开始后才加入，没有收到开始消息
+                    continue;
+                }
+                synchronized (slot) {
+                    slot.stroke = stroke;
+                    slot.dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 丢弃某个发送者尚未发出的预览帧（预览结束或清除时调用）
+     * @param fromUser 发送者用户名
+     */
+    public void discard(String fromUser) {
+        for (ReceiverSlots slots : receivers.values()) {
+            slots.latest.remove(fromUser);
+        }
+    }
+
+    /**
+     * 移除接收者的全部待发送预览
+     * @param sessionId 接收者会话ID
+     */
+    public void removeReceiver(String sessionId) {
+        receivers.remove(sessionId);
+    }
+
+    public void shutdown() {
+        flusher.cancel();
+    }
+
+    private ReceiverSlots slotsFor(String sessionId) {
+        return receivers.computeIfAbsent(sessionId, id -> new ReceiverSlots());
+    }
+
+    private void flush() {
+        try {
+            Iterator<Map.Entry<String, ReceiverSlots>> iterator = receivers.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, ReceiverSlots> entry = iterator.next();
+                String sessionId = entry.getKey();
+                ReceiverSlots slots = entry.getValue();
+
+                // 每个接收者最多只有一次排队中的推送，排队期间到达的新帧直接覆盖槽位
+                if (!slots.hasDirty() || !slots.scheduled.compareAndSet(false, true)) {
+                    continue;
+                }
+
+                boolean queued = dispatcher.send(sessionId, client -> {
+                    slots.scheduled.set(false);
+                    for (Map.Entry<String, PreviewSlot> slotEntry : slots.latest.entrySet()) {
+                        String fromUser = slotEntry.getKey();
+                        PreviewSlot slot = slotEntry.getValue();
+
+                        Shape fullShape;
+                        int fromIndex;
+                        int[] coordinates;
+                        synchronized (slot) {
+                            if (!slot.dirty) {
+                                continue;
+                            }
+                            slot.dirty = false;
+                            fullShape = slot.pendingShape;
+                            slot.pendingShape = null;
+
+                            if (fullShape != null) {
+                                // 完整帧序列化时的点数不会少于现在的点数
+                                fromIndex = -1;
+                                coordinates = null;
+                                slot.sentCount = slot.stroke != null ? slot.stroke.getPointCount() : 0;
+                            } else if (slot.stroke != null) {
+                                fromIndex = slot.sentCount;
+                                coordinates = slot.stroke.getCoordinates(fromIndex);
+                                slot.sentCount += coordinates.length / 2;
+                            } else {
+                                continue;
+                            }
+                        }
+
+                        if (fullShape != null) {
+                            client.receivePreviewUpdate(fullShape, fromUser);
+                        } else if (coordinates.length > 0) {
+                            client.receivePreviewAppend(fromUser, fromIndex, coordinates);
+                        }
+                    }
+                });
+
+                if (!queued) {
+                    // 接收者已注销
+                    iterator.remove();
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warning("Error flushing preview updates: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 单个接收者的预览槽位
+     */
+    private static class ReceiverSlots {
+        final Map<String, PreviewSlot> latest = new ConcurrentHashMap<>(); // 发送者用户名 -> 预览槽位
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        boolean hasDirty() {
+            for (PreviewSlot slot : latest.values()) {
+                if (slot.dirty) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 一个发送者对一个接收者的预览状态
+     */
+    private static class PreviewSlot {
+        Shape pendingShape;     // 待发送的完整预览，新帧覆盖旧帧
+        FreeDrawing stroke;     // 增量发送的服务器端笔画
+        int sentCount;          // 接收者已收到的点数
+        volatile boolean dirty;
+    }
+}
@@ -0,0 +1,235 @@
+package com.whiteboard.server;
+
+import com.whiteboard.common.codec.BlockCodec;
+import com.whiteboard.common.codec.BlockCodecs;
+import com.whiteboard.common.codec.WhiteboardDelta;
+import com.whiteboard.common.codec.WhiteboardFile;
+import com.whiteboard.common.model.ShapeSnapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * 后台保存白板文件。
+ * 调用方传入已经获取的快照（O(1)，之后的修改不影响快照），立即得到保存编号；
+ * 编码和写入在专用的 I/O 线程上按提交顺序进行，先写临时文件再原子重命名为目标文件，
+ * 保存失败或中途退出都不会破坏已有的同名文件。
+ * 对本次运行中保存或加载过的文件再次保存时，只把之后的修改写为增量文件（见 DeltaChain），
+ * I/O 与修改量成正比；增量链过长或累计超过基准大小的一半时重写完整的基准文件。
+ */
+public class SaveService {
+    private static final Logger logger = Logger.getLogger(SaveService.class.getName());
+
+    // 进度每变化这么多百分比报告一次
+    private static final int PROGRESS_STEP = 5;
+    private static final long SHUTDOWN_TIMEOUT_MS = 30000;
+    // 增量链的最大长度，超过后下次保存重写基准
+    private static final int DEFAULT_MAX_DELTAS = Integer.getInteger("whiteboard.save.maxDeltas", 32);
+
+    /**
+     * 保存进度和结果的回调，在 I/O 线程上调用
+     */
+    public interface SaveListener {
+        void onProgress(long ticket, int percent);
+
+        void onComplete(long ticket, boolean success, String error);
+    }
+
+    private final AtomicLong nextTicket = new AtomicLong(1);
+    private final ExecutorService io;
+    private final BlockCodec codec;
+    private final int maxDeltas = DEFAULT_MAX_DELTAS;
+    // 文件绝对路径 -> 最近一次保存或加载的状态，只在 I/O 线程上访问
+    private final Map<String, SavedBoard> savedBoards = new HashMap<>();
+
+    /**
+     * 使用系统属性 whiteboard.save.codec 指定的压缩算法（none、deflate、lz4，默认 deflate）
+     */
+    public SaveService() {
+        this(configuredCodec());
+    }
+
+    public SaveService(BlockCodec codec) {
+        this.codec = codec;
+        io = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "whiteboard-save-io");
+            t.setDaemon(true);
+            return t;
+        });
+        logger.info("Whiteboard saves use " + codec.name() + " compression");
+    }
+
+    private static BlockCodec configuredCodec() {
+        String name = System.getProperty("whiteboard.save.codec", BlockCodecs.DEFAULT.name());
+        try {
+            return BlockCodecs.forName(name);
+        } catch (IllegalArgumentException e) {
+            logger.warning(e.getMessage() + ", using " + BlockCodecs.DEFAULT.name());
+            return BlockCodecs.DEFAULT;
+        }
+    }
+
+    /**
+     * 提交保存任务
+     * @param target 目标文件
+     * @param snapshot 要保存的白板快照
+     * @param createdBy 保存者用户名
+     * @param listener 进度和结果回调，可以为 null
+     * @return 保存编号
+     */
+    public long submit(File target, ShapeSnapshot snapshot, String createdBy, SaveListener listener) {
+        long ticket = nextTicket.getAndIncrement();
+        long savedAt = System.currentTimeMillis();
+        io.execute(() -> save(ticket, target, snapshot, createdBy, savedAt, listener));
+        return ticket;
+    }
+
+    /**
+     * 停止接受新任务，并等待已提交的保存完成
+     */
+    public void shutdown() {
+        io.shutdown();
+        try {
+            if (!io.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                logger.warning("Pending whiteboard saves did not finish before shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 记录从文件加载的白板，之后保存到同一文件时可以只写增量
+     * @param target 加载的基准文件
+     * @param loaded 加载完成时的白板快照
+     * @param base 基准文件（只读取其中的标识）
+     * @param chain 加载时应用的增量链
+     */
+    void remember(File target, ShapeSnapshot loaded, WhiteboardFile.Reader base, DeltaChain chain) {
+        SavedBoard saved = new SavedBoard(loaded, base.getBoardVersion(), base.getSavedAt(), target.length());
+        saved.deltaCount = chain.length();
+        saved.deltaBytes = chain.bytes();
+        io.execute(() -> savedBoards.put(target.getAbsolutePath(), saved));
+    }
+
+    private void save(long ticket, File target, ShapeSnapshot snapshot, String createdBy, long savedAt,
+                      SaveListener listener) {
+        long start = System.currentTimeMillis();
+        try {
+            String description = saveDelta(target, snapshot, createdBy, savedAt)
+                    ? "delta" : saveFull(ticket, target, snapshot, createdBy, savedAt, listener);
+
+            logger.info("Whiteboard saved to " + target.getAbsolutePath() + " (" + description + ", "
+                    + snapshot.size() + " shapes, version " + snapshot.getVersion() + ") in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            if (listener != null) {
+                listener.onProgress(ticket, 100);
+                listener.onComplete(ticket, true, null);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.severe("Error saving whiteboard to " + target.getAbsolutePath() + ": " + e.getMessage());
+            if (listener != null) {
+                listener.onComplete(ticket, false, e.getMessage());
+            }
+        }
+    }
+
+    // 只写出上次保存之后的修改；无法增量保存或增量链需要重建时返回 false
+    private boolean saveDelta(File target, ShapeSnapshot snapshot, String createdBy, long savedAt) throws IOException {
+        SavedBoard saved = savedBoards.get(target.getAbsolutePath());
+        if (saved == null || !target.exists() || saved.deltaCount >= maxDeltas) {
+            return false;
+        }
+        ShapeSnapshot.Delta changes = snapshot.changesSince(saved.snapshot);
+        if (changes == null) {
+            return false;
+        }
+        if (changes.isEmpty()) {
+            saved.snapshot = snapshot;
+            return true;
+        }
+
+        int sequence = saved.deltaCount + 1;
+        File deltaFile = DeltaChain.deltaFile(target, sequence);
+        File temp = new File(deltaFile.getParentFile(), deltaFile.getName() + ".tmp");
+        try {
+            long bytes = WhiteboardDelta.write(temp, saved.baseVersion, saved.baseSavedAt, sequence,
+                    snapshot.getVersion(), savedAt, createdBy, changes, codec);
+            // 增量累计超过基准的一半时重写基准，加载时不必应用太多修改
+            if (saved.deltaBytes + bytes > saved.baseBytes / 2) {
+                temp.delete();
+                return false;
+            }
+            moveIntoPlace(temp, deltaFile);
+            saved.snapshot = snapshot;
+            saved.deltaCount = sequence;
+            saved.deltaBytes += bytes;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+
+    // 写出完整的基准文件并删除旧的增量链
+    private String saveFull(long ticket, File target, ShapeSnapshot snapshot, String createdBy, long savedAt,
+                            SaveListener listener) throws IOException {
+        File temp = new File(target.getParentFile(), target.getName() + ".tmp");
+        int total = snapshot.size();
+        int[] reported = {0};
+        try {
+            WhiteboardFile.write(temp, snapshot, total, snapshot.getVersion(), savedAt, createdBy, codec, written -> {
+                int percent = (int) (written * 100L / total);
+                if (listener != null && percent >= reported[0] + PROGRESS_STEP && percent < 100) {
+                    reported[0] = percent;
+                    listener.onProgress(ticket, percent);
+                }
+            });
+            moveIntoPlace(temp, target);
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+
+        // 旧增量的基准标识与新基准不同，即使这里没能删除，加载时也会被忽略
+        DeltaChain.deleteDeltas(target, 1);
+        savedBoards.put(target.getAbsolutePath(),
+                new SavedBoard(snapshot, snapshot.getVersion(), savedAt, target.length()));
+        return "full";
+    }
+
+    private static final class SavedBoard {
+        ShapeSnapshot snapshot;      // 文件（基准加增量链）当前对应的白板内容
+        final long baseVersion;
+        final long baseSavedAt;
+        final long baseBytes;
+        int deltaCount;
+        long deltaBytes;
+
+        SavedBoard(ShapeSnapshot snapshot, long baseVersion, long baseSavedAt, long baseBytes) {
+            this.snapshot = snapshot;
+            this.baseVersion = baseVersion;
+            this.baseSavedAt = baseSavedAt;
+            this.baseBytes = baseBytes;
+        }
+    }
+
+    private static void moveIntoPlace(File temp, File target) throws IOException {
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package com.whiteboard.server;
 
 import com.whiteboard.common.model.User;
+import com.whiteboard.common.schedule.Scheduler;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 public class UserManager {
@@ -15,11 +18,23 @@ public class UserManager {
     private Map<String, String> sessionToUid;       // sessionId -> uid
     private Map<String, String> usernameToUid;      // username -> uid
     private Set<String> approvedUids;               // 已批准的UID集合
+    // 失去联系的会话 -> 挂起时间。宽限期内会话保留用户名、批准状态和角色，可以恢复
+    private final Map<String, Long> suspendedSessions = new ConcurrentHashMap<>();
+    private final Consumer<User> expiryHandler;
 
-    private final long USER_TIMEOUT_MS = 10000;     // 10秒
-    private final long MANAGER_TIMEOUT_MS = 15000;  // 15秒
+    // 超过这段时间没有活动的会话被挂起，挂起超过宽限期后移除
+    private static final long SESSION_TIMEOUT_MS = Long.getLong("whiteboard.session.timeout", 8000);
+    private static final long SESSION_GRACE_MS = Long.getLong("whiteboard.session.grace", 60000);
 
     public UserManager() {
+        this(user -> { });
+    }
+
+    /**
+     * @param expiryHandler 挂起的会话超过宽限期被移除后调用
+     */
+    public UserManager(Consumer<User> expiryHandler) {
+        this.expiryHandler = expiryHandler;
         connectedUsers = new ConcurrentHashMap<>();
         pendingUsers = new ConcurrentHashMap<>();
         sessionToUid = new ConcurrentHashMap<>();
@@ -156,6 +171,7 @@ public class UserManager {
      */
     public synchronized void removeUser(String sessionId) {
         User user = connectedUsers.get(sessionId);
+        suspendedSessions.remove(sessionId);
 
         if (user != null) {
             connectedUsers.remove(sessionId);
@@ -186,73 +202,91 @@ public class UserManager {
     /**
      * 更新用户活动时间
      * @param sessionId 会话ID
+     * @return 会话是否正常；会话已挂起或不存在时返回 false，客户端需要恢复会话
      */
-    public void updateUserActivity(String sessionId) {
-        User user = connectedUsers.get(sessionId);
-        if (user != null) {
-            user.updateActivity();
-        } else {
-            user = pendingUsers.get(sessionId);
-            if (user != null) {
-                user.updateActivity();
-            }
+    public boolean updateUserActivity(String sessionId) {
+        User user = getUserBySessionId(sessionId);
+        if (user == null || suspendedSessions.containsKey(sessionId)) {
+            return false;
         }
+        user.updateActivity();
+        return true;
     }
 
     /**
-     * 启动连接监控线程
+     * 挂起失去联系的会话，宽限期内可以恢复
+     * @param sessionId 会话ID
+     * @return 会话是否存在
      */
-    private void startConnectionMonitor() {
-        Timer timer = new Timer(true);
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                checkConnectionStatus();
-            }
-        }, 5000, 5000); // 每5秒检查一次
+    public synchronized boolean suspendUser(String sessionId) {
+        User user = getUserBySessionId(sessionId);
+        if (user == null) {
+            return false;
+        }
+        if (suspendedSessions.putIfAbsent(sessionId, System.currentTimeMillis()) == null) {
+            logger.info("Session suspended: " + user.getUsername() + ", grace period " + SESSION_GRACE_MS + " ms");
+        }
+        return true;
     }
 
     /**
-     * 检查所有用户的连接状态
+     * 恢复会话，用户名、批准状态和角色保持不变
+     * @param sessionId 会话ID
+     * @return 会话是否仍然存在
      */
-    private synchronized void checkConnectionStatus() {
-        long currentTime = System.currentTimeMillis();
-        List<String> sessionsToRemove = new ArrayList<>();
-
-    // 检查管理员状态 - 缩短超时时间
-    if (managerId != null) {
-        User manager = connectedUsers.get(managerId);
-        if (manager != null && (currentTime - manager.getLastActivity()) > 8000) { // 8秒超时
-            logger.warning("Manager timeout detected");
-            sessionsToRemove.add(managerId);
+    public synchronized boolean resumeUser(String sessionId) {
+        User user = getUserBySessionId(sessionId);
+        if (user == null) {
+            return false;
         }
+        if (suspendedSessions.remove(sessionId) != null) {
+            logger.info("Session resumed: " + user.getUsername());
+        }
+        user.updateActivity();
+        return true;
     }
 
-        // 检查已连接用户
-        for (Map.Entry<String, User> entry : connectedUsers.entrySet()) {
-            String sessionId = entry.getKey();
-            if (sessionId.equals(managerId)) continue; // 跳过管理员
-
-        User user = entry.getValue();
-        if ((currentTime - user.getLastActivity()) > 8000) { // 8秒超时
-            logger.info("User timeout detected: " + user.getUsername());
-            sessionsToRemove.add(sessionId);
-        }
+    public boolean isSuspended(String sessionId) {
+        return suspendedSessions.containsKey(sessionId);
     }
 
-    // 检查等待批准的用户
-    for (Map.Entry<String, User> entry : pendingUsers.entrySet()) {
-        String sessionId = entry.getKey();
-        User user = entry.getValue();
-        if ((currentTime - user.getLastActivity()) > 8000) { // 8秒超时
-            logger.info("Pending user timeout detected: " + user.getUsername());
-            sessionsToRemove.add(sessionId);
-        }
+    /**
+     * 启动连接监控线程
+     */
+    private void startConnectionMonitor() {
+        // 每5秒检查一次
+        Scheduler.shared().scheduleWithFixedDelay("session-monitor", this::checkConnectionStatus, 5, 5, TimeUnit.SECONDS);
     }
 
-        // 移除超时用户
-        for (String sessionId : sessionsToRemove) {
-            removeUser(sessionId);
+    /**
+     * 检查所有用户的连接状态：长时间没有活动的会话先挂起，挂起超过宽限期后移除
+     */
+    private void checkConnectionStatus() {
+        List<User> expired = new ArrayList<>();
+        synchronized (this) {
+            long currentTime = System.currentTimeMillis();
+            List<User> users = new ArrayList<>(connectedUsers.values());
+            users.addAll(pendingUsers.values());
+
+            for (User user : users) {
+                String sessionId = user.getSessionId();
+                Long suspendedAt = suspendedSessions.get(sessionId);
+                if (suspendedAt != null) {
+                    if (currentTime - suspendedAt > SESSION_GRACE_MS) {
+                        logger.info("Session grace period expired: " + user.getUsername());
+                        removeUser(sessionId);
+                        expired.add(user);
+                    }
+                } else if (currentTime - user.getLastActivity() > SESSION_TIMEOUT_MS) {
+                    logger.info("User timeout detected: " + user.getUsername());
+                    suspendUser(sessionId);
+                }
+            }
+        }
+
+        // 在锁外通知，处理方可能需要广播
+        for (User user : expired) {
+            expiryHandler.accept(user);
         }
     }
 
@@ -1,10 +1,16 @@
 package com.whiteboard.server;
 
+import com.whiteboard.client.shapes.FreeDrawing;
 import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.common.codec.ShapeBatchCodec;
+import com.whiteboard.common.codec.WhiteboardFile;
+import com.whiteboard.common.model.DrawOperation;
+import com.whiteboard.common.model.ShapeSnapshot;
 import com.whiteboard.common.model.User;
 import com.whiteboard.common.model.WhiteboardState;
 import com.whiteboard.common.remote.IWhiteboardClient;
 import com.whiteboard.common.remote.IWhiteboardServer;
+import com.whiteboard.common.schedule.Scheduler;
 import com.whiteboard.common.model.WhiteboardSaveData;
 
 import java.io.*;
@@ -18,8 +24,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
-import java.util.Timer;
-import java.util.TimerTask;
 
 /**
  * WhiteboardServer类实现了IWhiteboardServer接口，提供了白板的远程服务。
@@ -29,15 +33,32 @@ import java.util.TimerTask;
 public class WhiteboardServer implements IWhiteboardServer {
     private static final Logger logger = Logger.getLogger(WhiteboardServer.class.getName());
 
+    static {
+        // 服务器回调客户端时等待响应的最长时间（毫秒），失去响应的客户端不会让回调线程一直等待
+        if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null) {
+            System.setProperty("sun.rmi.transport.tcp.responseTimeout",
+                    String.valueOf(Long.getLong("whiteboard.rmi.responseTimeout", 15000)));
+        }
+    }
+
+    // 恢复历史版本时逐个推送的最大修改数，超过且接近整个白板时改为整体重载
+    private static final int MAX_INCREMENTAL_RESTORE = 256;
+    // 重新注册时最多补发的操作数，超过时（或超过白板上的形状数时）改发整个快照
+    private static final int MAX_RESYNC_OPERATIONS = Integer.getInteger("whiteboard.resync.maxOperations", 1000);
+
     // 状态和用户管理
     private WhiteboardState whiteboardState;
     private UserManager userManager;
     private Map<String, IWhiteboardClient> clientCallbacks;
+    private ClientDispatcher dispatcher;
+    private PreviewRelay previewRelay;
+    private OperationJournal journal;
+    private SaveService saveService;
+    private BoardHistory history;
+    private HeartbeatMonitor heartbeatMonitor;
 
-    // 锁定管理
-    private Map<String, String> regionLocks; // 区域ID -> 会话ID
-    private static final long LOCK_TIMEOUT_MS = 1000;
-    private static final int REGION_SIZE = 50; // 像素
+    // 正在恢复的历史版本与当前白板的差异，只在白板锁内访问；不为 null 时 LOAD 操作只广播差异
+    private ShapeSnapshot.Delta restoreChanges;
 
     // 预览状态管理
     // 新增预览信息管理
@@ -48,12 +69,20 @@ public class WhiteboardServer implements IWhiteboardServer {
 
     public WhiteboardServer() {
         whiteboardState = new WhiteboardState();
-        userManager = new UserManager();
+        journal = openJournal(whiteboardState);
+        history = new BoardHistory(whiteboardState);
+        history.attach();
+        userManager = new UserManager(this::handleSessionExpired);
         clientCallbacks = new ConcurrentHashMap<>();
-        regionLocks = new ConcurrentHashMap<>();
+        dispatcher = new ClientDispatcher(this::handleClientDisconnection);
+        // 修改在白板锁内按版本顺序入队广播，每个客户端收到的版本号连续递增
+        whiteboardState.addOperationListener(this::broadcastOperation);
+        previewRelay = new PreviewRelay(dispatcher);
+        saveService = new SaveService();
 
         // 启动主动心跳检测
-        startActiveHeartbeatCheck();
+        heartbeatMonitor = new HeartbeatMonitor(() -> clientCallbacks, this::handleClientDisconnection);
+        heartbeatMonitor.start();
 
         // 添加关闭钩子
         addShutdownHook();
@@ -117,7 +146,7 @@ public class WhiteboardServer implements IWhiteboardServer {
             } catch (RemoteException e) {
                 logger.warning("Error notifying user of approval: " + e.getMessage());
                 // 移除可能中断的客户端
-                clientCallbacks.remove(userSessionId);
+                removeClientCallback(userSessionId);
             }
         }
 
@@ -140,7 +169,7 @@ public class WhiteboardServer implements IWhiteboardServer {
                 logger.info("Manager left, notifying all clients");
             } else {
                 userManager.removeUser(sessionId);
-                clientCallbacks.remove(sessionId);
+                removeClientCallback(sessionId);
                 broadcastUserList();
                 logger.info("User removed: " + user.getUsername());
             }
@@ -172,7 +201,7 @@ public class WhiteboardServer implements IWhiteboardServer {
 
                 // 移除用户
                 userManager.removeUser(sessionToKick);
-                clientCallbacks.remove(sessionToKick);
+                removeClientCallback(sessionToKick);
                 broadcastUserList();
                 return true;
             }
@@ -191,18 +220,13 @@ public class WhiteboardServer implements IWhiteboardServer {
 
     // 检查用户权限
     if (userManager.isConnectedUser(sessionId)) {
-        // 关键修改：服务器统一分配时间戳
-        shape.setTimestamp(System.currentTimeMillis());
+        // 关键修改：服务器统一分配时间戳，并添加形状到白板状态
+        // 提交时即向所有客户端（包括发送者，以保证时间戳一致）入队广播，操作日志在后台落盘
+        whiteboardState.commitShape(shape, sessionId);
 
         System.out.println("Server: Assigned new timestamp: " + shape.getTimestamp());
 
-        // 添加形状到白板状态
-        whiteboardState.addShape(shape);
-
         System.out.println("Server: Broadcasting shape to " + clientCallbacks.size() + " clients");
-
-        // 广播形状给所有客户端（包括发送者，以保证时间戳一致）
-        broadcastShapeUpdateToAll(shape);
     }
     System.out.println("=== END SERVER DEBUG ===");
 }
@@ -213,19 +237,9 @@ public class WhiteboardServer implements IWhiteboardServer {
 
         // 检查用户权限
         if (userManager.isConnectedUser(sessionId)) {
-            // 从白板状态移除形状
-            whiteboardState.removeShape(shapeId);
-
-            // 广播移除操作给所有客户端
-            for (Map.Entry<String, IWhiteboardClient> entry : clientCallbacks.entrySet()) {
-                if (!entry.getKey().equals(sessionId)) { // 不需要发回给发送者
-                    try {
-                        entry.getValue().removeShape(shapeId);
-                    } catch (RemoteException e) {
-                        logger.warning("Error sending shape removal to client: " + e.getMessage());
-                    }
-                }
-            }
+            // 从白板状态移除形状，移除时向所有客户端（包括发送者，使其记录的版本连续）入队广播；
+            // 形状不存在时版本不变，也不需要广播
+            whiteboardState.removeShape(shapeId, sessionId);
         }
     }
 
@@ -243,11 +257,9 @@ public class WhiteboardServer implements IWhiteboardServer {
         // User is manager, proceed with clear operation
         logger.info("Manager authorized to clear canvas, proceeding...");
 
-        // Clear whiteboard state
-        whiteboardState.clear();
-
-        // 广播清除命令，带断连检测
-        broadcastClearCanvas();
+        // Clear whiteboard state，清除命令在提交时入队广播
+        logger.info("Broadcasting clear canvas to " + clientCallbacks.size() + " clients");
+        whiteboardState.clear(sessionId);
     }
 
     @Override
@@ -257,8 +269,8 @@ public class WhiteboardServer implements IWhiteboardServer {
 
     // 客户端注册方法实现
     @Override
-    public void registerClient(String sessionId, IWhiteboardClient client) throws RemoteException {
-        logger.info("Registering client callback for session: " + sessionId);
+    public void registerClient(String sessionId, IWhiteboardClient client, long knownVersion) throws RemoteException {
+        logger.info("Registering client callback for session: " + sessionId + ", known version: " + knownVersion);
 
         // 验证会话ID
         if (sessionId == null) {
@@ -278,13 +290,17 @@ public class WhiteboardServer implements IWhiteboardServer {
 
         // Register callback for all valid users (including unapproved users)
         clientCallbacks.put(sessionId, client);
-        logger.info("Client callback registered for: " + user.getUsername() +
-                " (Manager: " + isUserManager + ", Approved: " + isApproved + ")");
+        previewRelay.removeReceiver(sessionId);
+        heartbeatMonitor.reset(sessionId);
 
         // Only send initial state to managers and approved users
         if (isUserManager || isApproved) {
-            sendInitialState(sessionId);
+            sendInitialState(sessionId, client, knownVersion);
+        } else {
+            dispatcher.register(sessionId, client);
         }
+        logger.info("Client callback registered for: " + user.getUsername() +
+                " (Manager: " + isUserManager + ", Approved: " + isApproved + ")");
 
         // Only managers and approved users see the user list
         if (isUserManager || isApproved) {
@@ -297,55 +313,50 @@ public class WhiteboardServer implements IWhiteboardServer {
     @Override
     public void unregisterClient(String sessionId) throws RemoteException {
         logger.info("Unregistering client callback for session: " + sessionId);
-        clientCallbacks.remove(sessionId);
+        removeClientCallback(sessionId);
     }
 
     // 文件操作方法实现
     @Override
-    public boolean saveWhiteboard(String filename, String sessionId) throws RemoteException {
+    public long saveWhiteboard(String filename, String sessionId) throws RemoteException {
         logger.info("Saving whiteboard to: " + filename);
 
         if (!userManager.isManager(sessionId)) {
             logger.warning("Non-manager attempted to save: " + sessionId);
-            return false;
+            return -1;
         }
 
-        try {
-            // 确保文件扩展名
-            if (!filename.endsWith(".wbd")) {
-                filename += ".wbd";
-            }
-
-            // 创建保存目录
-            File saveDir = new File("whiteboards");
-            if (!saveDir.exists()) {
-                saveDir.mkdirs();
-            }
-
-            File saveFile = new File(saveDir, filename);
+        // 确保文件扩展名
+        if (!filename.endsWith(".wbd")) {
+            filename += ".wbd";
+        }
 
-            // 保存白板状态
-            try (FileOutputStream fileOut = new FileOutputStream(saveFile);
-                 ObjectOutputStream out = new ObjectOutputStream(fileOut)) {
+        // 创建保存目录
+        File saveDir = new File("whiteboards");
+        if (!saveDir.exists()) {
+            saveDir.mkdirs();
+        }
 
-                // 创建保存数据对象
-                WhiteboardSaveData saveData = new WhiteboardSaveData();
-                saveData.shapes = whiteboardState.getShapes();
-                saveData.version = whiteboardState.getVersion();
-                saveData.timestamp = System.currentTimeMillis();
-                saveData.createdBy = userManager.getUserBySessionId(sessionId).getUsername();
+        File saveFile = new File(saveDir, filename);
 
-                out.writeObject(saveData);
-                out.flush();
+        // 快照不会被后续修改影响，编码和写文件交给后台线程，管理员的调用立即返回
+        ShapeSnapshot snapshot = whiteboardState.snapshot();
+        String createdBy = userManager.getUserBySessionId(sessionId).getUsername();
+        long ticket = saveService.submit(saveFile, snapshot, createdBy, new SaveService.SaveListener() {
+            @Override
+            public void onProgress(long ticket, int percent) {
+                dispatcher.send(sessionId, client -> client.notifySaveProgress(ticket, percent));
+            }
 
-                logger.info("Whiteboard saved successfully to: " + saveFile.getAbsolutePath());
-                return true;
+            @Override
+            public void onComplete(long ticket, boolean success, String error) {
+                dispatcher.send(sessionId, client -> client.notifySaveCompleted(ticket, success, error));
             }
-        } catch (IOException e) {
-            logger.severe("Error saving whiteboard: " + e.getMessage());
-            e.printStackTrace();
-            return false;
-        }
+        });
+
+        logger.info("Save " + ticket + " queued for " + saveFile.getAbsolutePath()
+                + " at version " + snapshot.getVersion());
+        return ticket;
     }
 
     @Override
@@ -369,33 +380,113 @@ public class WhiteboardServer implements IWhiteboardServer {
                 return false;
             }
 
-            // 加载白板状态
-            try (FileInputStream fileIn = new FileInputStream(loadFile);
-                 ObjectInputStream in = new ObjectInputStream(fileIn)) {
+            // 加载白板状态：新格式边解码边写入暂存的存储，完成后一次性替换，整个加载只增加一次版本号
+            long start = System.currentTimeMillis();
+            long version;
+            int count;
+            String createdBy;
+            if (WhiteboardFile.isContainer(loadFile)) {
+                try (WhiteboardFile.Reader reader = WhiteboardFile.open(loadFile)) {
+                    // 基准文件之后保存的增量在流式读取时一并应用
+                    DeltaChain chain = DeltaChain.read(loadFile, reader);
+                    ShapeSnapshot loaded = whiteboardState.load(chain.apply(reader), sessionId);
+                    saveService.remember(loadFile, loaded, reader, chain);
+                    version = loaded.getVersion();
+                    count = loaded.size();
+                    createdBy = reader.getCreatedBy();
+                    if (chain.length() > 0) {
+                        logger.info("Applied " + chain.length() + " delta(s) up to board version " + chain.boardVersion());
+                    }
+                }
+            } else {
+                WhiteboardSaveData saveData = readLegacySaveData(loadFile);
+                version = whiteboardState.load(saveData.shapes, sessionId).getVersion();
+                count = saveData.shapes.size();
+                createdBy = saveData.createdBy;
+            }
+            syncJournal();
 
-                WhiteboardSaveData saveData = (WhiteboardSaveData) in.readObject();
+            // 新状态在替换时已作为整体重载入队广播给所有客户端
+            logger.info("Whiteboard loaded successfully from: " + loadFile.getAbsolutePath());
+            logger.info("Loaded " + count + " shapes in " + (System.currentTimeMillis() - start)
+                    + " ms, created by: " + createdBy + ", board version " + version);
 
-                // 清除当前状态
-                whiteboardState.clear();
+            return true;
+        } catch (IOException | UncheckedIOException | ClassNotFoundException e) {
+            logger.severe("Error loading whiteboard: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
 
-                // 设置新状态
-                for (Shape shape : saveData.shapes) {
-                    whiteboardState.addShape(shape);
-                }
+    // 旧格式：Java 序列化的 WhiteboardSaveData
+    private static WhiteboardSaveData readLegacySaveData(File file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return (WhiteboardSaveData) in.readObject();
+        }
+    }
 
-                logger.info("Whiteboard loaded successfully from: " + loadFile.getAbsolutePath());
-                logger.info("Loaded " + saveData.shapes.size() + " shapes, created by: " + saveData.createdBy);
+    // 白板历史
+    @Override
+    public long getBoardVersion() throws RemoteException {
+        return whiteboardState.getVersion();
+    }
 
-                // 广播清除和新状态给所有客户端
-                broadcastFullReload();
+    @Override
+    public long findVersionAt(long timestamp, String managerId) throws RemoteException {
+        if (!userManager.isManager(managerId)) {
+            logger.warning("Non-manager attempted to query history: " + managerId);
+            return -1;
+        }
+        return history.findVersionAt(timestamp);
+    }
 
-                return true;
-            }
-        } catch (IOException | ClassNotFoundException e) {
-            logger.severe("Error loading whiteboard: " + e.getMessage());
-            e.printStackTrace();
+    @Override
+    public List<Shape> getShapesAtVersion(long version, String managerId) throws RemoteException {
+        if (!userManager.isManager(managerId)) {
+            logger.warning("Non-manager attempted to query history: " + managerId);
+            return null;
+        }
+        try {
+            return history.getShapesAt(version);
+        } catch (IllegalArgumentException e) {
+            logger.warning(e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public boolean restoreVersion(long version, String managerId) throws RemoteException {
+        logger.info("Restoring whiteboard to version " + version + ", requested by session: " + managerId);
+
+        if (!userManager.isManager(managerId)) {
+            logger.warning("Non-manager attempted to restore version: " + managerId);
             return false;
         }
+
+        List<Shape> shapes;
+        try {
+            shapes = history.getShapesAt(version);
+        } catch (IllegalArgumentException e) {
+            logger.warning(e.getMessage());
+            return false;
+        }
+        // 差异在替换前计算，替换产生的 LOAD 操作据此只广播差异
+        ShapeSnapshot.Delta changes;
+        synchronized (whiteboardState) {
+            changes = whiteboardState.diff(shapes);
+            restoreChanges = changes;
+            try {
+                whiteboardState.load(shapes, managerId);
+            } finally {
+                restoreChanges = null;
+            }
+        }
+        syncJournal();
+
+        int changeCount = changes.getRemovedIds().size() + changes.getAppended().size();
+        logger.info("Restored version " + version + " (" + shapes.size() + " shapes, " + changeCount + " changes)");
+        return true;
     }
 
     // 聊天功能实现
@@ -486,44 +577,54 @@ public class WhiteboardServer implements IWhiteboardServer {
     }
 
     /**
-     * 发送初始白板状态给新连接的客户端
+     * 注册客户端的发送通道并发送初始白板状态
      * @param sessionId 客户端会话ID
+     * @param callback 客户端回调
+     * @param knownVersion 客户端已应用到的版本，-1表示没有
      */
-    private void sendInitialState(String sessionId) {
-        IWhiteboardClient client = clientCallbacks.get(sessionId);
-        if (client == null) {
-            logger.warning("Cannot send initial state - client not registered: " + sessionId);
-            return;
-        }
+    private void sendInitialState(String sessionId, IWhiteboardClient callback, long knownVersion) {
+        List<String> users = userManager.getConnectedUsernames();
+        boolean queued;
+
+        // 在白板锁内注册通道、取状态并入队：广播也在这个锁内入队，
+        // 注册之后的修改一定排在初始状态之后，之前的修改一定包含在初始状态中
+        synchronized (whiteboardState) {
+            dispatcher.register(sessionId, callback);
+            List<DrawOperation> missed = knownVersion >= 0
+                    ? history.getOperationsSince(knownVersion, whiteboardState.getVersion()) : null;
+            if (missed != null && missed.size() <= Math.min(MAX_RESYNC_OPERATIONS, whiteboardState.size())) {
+                logger.info("Resending " + missed.size() + " operations after version " + knownVersion + " to " + sessionId);
+                // 没有错过的操作时也发送，客户端据此知道补发已开始
+                queued = dispatcher.send(sessionId, client -> {
+                    client.receiveOperations(missed);
+                    client.updateUserList(users);
+                });
+            } else {
+                ShapeSnapshot shapes = whiteboardState.snapshot();
+                logger.info("Sending initial state to " + sessionId + ": " + shapes.size() + " shapes");
 
-        try {
-            // 发送所有现有形状
-            List<Shape> shapes = whiteboardState.getShapes();
-            logger.info("Sending initial state to " + sessionId + ": " + shapes.size() + " shapes");
+                queued = dispatcher.send(sessionId, client -> {
+                    // 分块压缩发送所有现有形状，编码在发送线程进行
+                    try {
+                        sendSnapshot(client, shapes.getVersion(), ShapeBatchCodec.encodeChunks(shapes));
+                    } catch (IOException e) {
+                        logger.warning("Error encoding initial state for " + sessionId + ": " + e.getMessage());
+                    }
 
-            for (Shape shape : shapes) {
-                client.updateShape(shape);
-            }
+                    // 发送用户列表
+                    client.updateUserList(users);
 
-            // 发送用户列表
-            List<String> users = userManager.getConnectedUsernames();
-            client.updateUserList(users);
+                    logger.info("Initial state sent successfully to: " + sessionId);
+                });
+            }
+        }
 
-            logger.info("Initial state sent successfully to: " + sessionId);
-        } catch (RemoteException e) {
-            logger.warning("Error sending initial state to client: " + e.getMessage());
-            clientCallbacks.remove(sessionId);
+        if (!queued) {
+            logger.warning("Cannot send initial state - client not registered: " + sessionId);
         }
     }
 
 
-    // 并发控制方法
-    private String calculateRegionId(int x, int y) {
-        int regionX = x / REGION_SIZE;
-        int regionY = y / REGION_SIZE;
-        return regionX + ":" + regionY;
-    }
-
     /**
      * 处理用户加入请求
      */
@@ -547,7 +648,7 @@ public class WhiteboardServer implements IWhiteboardServer {
             } catch (RemoteException e) {
                 logger.warning("Error notifying invalid session: " + e.getMessage());
             }
-            clientCallbacks.remove(sessionId);
+            removeClientCallback(sessionId);
         }
         return;
     }
@@ -569,7 +670,7 @@ public class WhiteboardServer implements IWhiteboardServer {
         }
 
         userManager.removeUser(sessionId);
-        clientCallbacks.remove(sessionId);
+        removeClientCallback(sessionId);
         return;
     }
 
@@ -624,7 +725,7 @@ public class WhiteboardServer implements IWhiteboardServer {
             logger.warning("Failed to notify manager about pending user: " + e.getMessage());
             // 考虑从回调列表中移除断开的管理员
             if (e.getCause() instanceof java.net.ConnectException) {
-                clientCallbacks.remove(managerId);
+                removeClientCallback(managerId);
                 logger.warning("Removed disconnected manager from callbacks");
             }
         }
@@ -665,8 +766,22 @@ public class WhiteboardServer implements IWhiteboardServer {
      * 更新用户活动时间
      */
     @Override
-    public void updateUserActivity(String sessionId) throws RemoteException {
-        userManager.updateUserActivity(sessionId);
+    public boolean updateUserActivity(String sessionId) throws RemoteException {
+        return userManager.updateUserActivity(sessionId);
+    }
+
+    /**
+     * 恢复挂起的会话：重新注册回调，只补发客户端错过的操作
+     */
+    @Override
+    public boolean resumeSession(String sessionId, IWhiteboardClient client, long knownVersion) throws RemoteException {
+        if (!userManager.resumeUser(sessionId)) {
+            logger.info("Cannot resume unknown or expired session: " + sessionId);
+            return false;
+        }
+        logger.info("Resuming session: " + sessionId + ", known version: " + knownVersion);
+        registerClient(sessionId, client, knownVersion);
+        return true;
     }
 
     // 启动服务器
@@ -705,9 +820,46 @@ public class WhiteboardServer implements IWhiteboardServer {
     private void addShutdownHook() {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             notifyServerShutdown();
+            logger.info(Scheduler.shared().describe());
+            logger.info(heartbeatMonitor.describe());
+            heartbeatMonitor.shutdown();
+            saveService.shutdown();
+            if (journal != null) {
+                journal.close();
+            }
         }));
     }
 
+    /**
+     * 打开操作日志并从中恢复白板，失败时不记录日志继续运行
+     */
+    private static OperationJournal openJournal(WhiteboardState state) {
+        if (!Boolean.parseBoolean(System.getProperty("whiteboard.journal.enabled", "true"))) {
+            logger.info("Operation journal disabled");
+            return null;
+        }
+
+        File directory = new File(System.getProperty("whiteboard.journal.dir", "journal"));
+        OperationJournal journal = new OperationJournal(directory);
+        try {
+            journal.open(state);
+            return journal;
+        } catch (IOException e) {
+            logger.severe("Cannot open operation journal in " + directory.getAbsolutePath()
+                    + ", continuing without persistence: " + e.getMessage());
+            state.restore(new ArrayList<>(), 0);
+            return null;
+        }
+    }
+
+    // 绘图操作提交后立即返回，由日志写线程在后台组提交；
+    // 只有管理员的加载和恢复等待日志快照写完再返回，广播在提交时已经入队，不受这个等待影响
+    private void syncJournal() {
+        if (journal != null && !journal.sync()) {
+            logger.warning("Operation journal did not confirm the latest changes");
+        }
+    }
+
     /**
      * 通知所有客户端服务器将要关闭
      */
@@ -723,129 +875,120 @@ public class WhiteboardServer implements IWhiteboardServer {
         }
     }
 
-    // 客户端断连处理方法
+    // 客户端断连处理方法：移除回调并挂起会话，客户端可以在宽限期内恢复
     private void handleClientDisconnection(String sessionId) {
         logger.info("Handling client disconnection: " + sessionId);
 
         // 从回调列表移除
-        clientCallbacks.remove(sessionId);
-
-        // 从用户管理器移除
-        User disconnectedUser = userManager.getUserBySessionId(sessionId);
-        if (disconnectedUser != null) {
-            logger.info("Removing disconnected user: " + disconnectedUser.getUsername());
-            userManager.removeUser(sessionId);
+        removeClientCallback(sessionId);
 
-            // 如果是管理员断开，通知所有客户端
-            if (disconnectedUser.isManager()) {
-                notifyManagerLeft();
-            } else {
-                // 重新广播用户列表（不包含断开的用户）
-                broadcastUserList();
-            }
-        }
+        userManager.suspendUser(sessionId);
     }
 
-    private void broadcastShapeUpdate(Shape shape) {
-        Map<String, IWhiteboardClient> clients = new HashMap<>(clientCallbacks);
-        List<String> disconnectedClients = new ArrayList<>();
-
-        for (Map.Entry<String, IWhiteboardClient> entry : clients.entrySet()) {
-            String sessionId = entry.getKey();
-            IWhiteboardClient client = entry.getValue();
-
-            try {
-                client.updateShape(shape);
-                logger.fine("Successfully broadcasted shape to client: " + sessionId);
-            } catch (RemoteException e) {
-                logger.warning("Client disconnected during shape broadcast: " + sessionId);
-                disconnectedClients.add(sessionId);
-            }
-        }
+    // 挂起的会话超过宽限期，用户已从用户管理器移除
+    private void handleSessionExpired(User user) {
+        logger.info("Removing disconnected user: " + user.getUsername());
+        removeClientCallback(user.getSessionId());
 
-        // 清理断开连接的客户端
-        for (String sessionId : disconnectedClients) {
-            handleClientDisconnection(sessionId);
+        // 如果是管理员断开，通知所有客户端
+        if (user.isManager()) {
+            notifyManagerLeft();
+        } else {
+            // 重新广播用户列表（不包含断开的用户）
+            broadcastUserList();
         }
     }
 
-    // 带断连检测的清除广播方法
-    private void broadcastClearCanvas() {
-        Map<String, IWhiteboardClient> clients = new HashMap<>(clientCallbacks);
-        List<String> disconnectedClients = new ArrayList<>();
-
-        for (Map.Entry<String, IWhiteboardClient> entry : clients.entrySet()) {
-            String sessionId = entry.getKey();
-            IWhiteboardClient client = entry.getValue();
-
-            try {
-                logger.info("Sending clear canvas to client: " + sessionId);
-                client.receiveClearCanvas();
-                logger.info("Successfully sent clear canvas to: " + sessionId);
-            } catch (RemoteException e) {
-                logger.warning("Client disconnected during clear broadcast: " + sessionId);
-                disconnectedClients.add(sessionId);
-            }
-        }
-
-        // 清理断开连接的客户端
-        for (String sessionId : disconnectedClients) {
-            handleClientDisconnection(sessionId);
+    /**
+     * 把白板操作入队广播给所有客户端。作为操作监听器在白板锁内按版本顺序调用，只入队
+     */
+    private void broadcastOperation(DrawOperation operation) {
+        long version = operation.getVersion();
+        switch (operation.getType()) {
+            case ADD_SHAPE:
+            case UPDATE_SHAPE:
+                Shape shape = operation.getShape();
+                dispatcher.broadcast(client -> client.updateShape(shape, version));
+                break;
+            case REMOVE_SHAPE:
+                String shapeId = operation.getShapeId();
+                dispatcher.broadcast(client -> client.removeShape(shapeId, version));
+                break;
+            case CLEAR:
+                dispatcher.broadcast(client -> client.receiveClearCanvas(version));
+                break;
+            case LOAD:
+                ShapeSnapshot.Delta changes = restoreChanges;
+                if (changes != null && !changes.isEmpty()
+                        && changes.getRemovedIds().size() + changes.getAppended().size()
+                        <= Math.max(MAX_INCREMENTAL_RESTORE, whiteboardState.size() / 2)) {
+                    broadcastRestore(changes, version);
+                } else {
+                    broadcastFullReload(whiteboardState.snapshot());
+                }
+                break;
         }
     }
 
-    private void performActiveHeartbeatCheck() {
-        Map<String, IWhiteboardClient> clients = new HashMap<>(clientCallbacks);
-        List<String> disconnectedClients = new ArrayList<>();
-
-        for (Map.Entry<String, IWhiteboardClient> entry : clients.entrySet()) {
-            String sessionId = entry.getKey();
-            IWhiteboardClient client = entry.getValue();
-
-            try {
-                // 主动发送心跳检测
-                client.heartbeat();
-                logger.fine("Heartbeat response received from: " + sessionId);
-            } catch (RemoteException e) {
-                logger.warning("Client failed heartbeat check: " + sessionId);
-                disconnectedClients.add(sessionId);
+    // 恢复历史版本时只推送差异；差异接近整个白板时整体重载更省。
+    // 除最后一个回调外都带恢复前的版本号，中途断开的客户端重新注册时会收到完整快照
+    private void broadcastRestore(ShapeSnapshot.Delta changes, long restoredVersion) {
+        int changeCount = changes.getRemovedIds().size() + changes.getAppended().size();
+        dispatcher.broadcast(client -> {
+            int remaining = changeCount;
+            for (String shapeId : changes.getRemovedIds()) {
+                client.removeShape(shapeId, --remaining == 0 ? restoredVersion : restoredVersion - 1);
             }
-        }
-
-        // 处理断开连接的客户端
-        for (String sessionId : disconnectedClients) {
-            handleClientDisconnection(sessionId);
-        }
+            for (Shape shape : changes.getAppended()) {
+                client.updateShape(shape, --remaining == 0 ? restoredVersion : restoredVersion - 1);
+            }
+        });
     }
 
-    private void startActiveHeartbeatCheck() {
-        Timer activeHeartbeatTimer = new Timer(true);
-        activeHeartbeatTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                performActiveHeartbeatCheck();
+    private void broadcastFullReload(ShapeSnapshot snapshot) {
+        logger.info("Broadcasting full whiteboard reload to all clients");
+
+        // 整个重载作为一个回调入队，快照会替换客户端的整个画布。
+        // 在锁内只入队，编码由最先执行这个回调的发送线程完成，所有客户端共用同一组快照块
+        EncodedSnapshot encoded = new EncodedSnapshot(snapshot);
+        dispatcher.broadcast(client -> {
+            List<byte[]> chunks = encoded.chunks();
+            if (chunks != null) {
+                sendSnapshot(client, snapshot.getVersion(), chunks);
             }
-        }, 10000, 10000); // 每10秒进行一次主动检测
+        });
     }
 
-    private void broadcastFullReload() {
-        logger.info("Broadcasting full whiteboard reload to all clients");
+    /**
+     * 按需编码一次、供多个发送线程共用的快照块
+     */
+    private static final class EncodedSnapshot {
+        private final ShapeSnapshot snapshot;
+        private List<byte[]> chunks;
+        private boolean failed;
 
-        for (Map.Entry<String, IWhiteboardClient> entry : clientCallbacks.entrySet()) {
-            try {
-                // 先清除
-                entry.getValue().receiveClearCanvas();
+        EncodedSnapshot(ShapeSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
 
-                // 再发送所有形状
-                List<Shape> shapes = whiteboardState.getShapes();
-                for (Shape shape : shapes) {
-                    entry.getValue().updateShape(shape);
+        // 编码失败时返回 null，客户端之后收到不连续的版本时会重新同步
+        synchronized List<byte[]> chunks() {
+            if (chunks == null && !failed) {
+                try {
+                    chunks = ShapeBatchCodec.encodeChunks(snapshot);
+                } catch (IOException e) {
+                    failed = true;
+                    logger.severe("Error encoding whiteboard snapshot: " + e.getMessage());
                 }
-
-                logger.info("Sent full reload to client: " + entry.getKey());
-            } catch (RemoteException e) {
-                logger.warning("Error sending full reload to client: " + e.getMessage());
             }
+            return chunks;
+        }
+    }
+
+    // 依次发送快照块，客户端收到最后一块后一次性安装
+    private static void sendSnapshot(IWhiteboardClient client, long version, List<byte[]> chunks) throws RemoteException {
+        for (int i = 0; i < chunks.size(); i++) {
+            client.receiveSnapshotChunk(version, i, chunks.size(), chunks.get(i));
         }
     }
 
@@ -884,6 +1027,7 @@ public class WhiteboardServer implements IWhiteboardServer {
 
         // 广播预览开始给其他客户端
         broadcastPreviewStart(initialShape, username, previewTimestamp, sessionId);
+        previewRelay.begin(username, initialShape, sessionId);
 
         logger.info("Preview started for user: " + username + ", timestamp: " + previewTimestamp);
         return previewTimestamp;
@@ -912,6 +1056,26 @@ public class WhiteboardServer implements IWhiteboardServer {
         }
     }
 
+    @Override
+    public int appendPreviewPoints(int fromIndex, int[] coordinates, String sessionId) throws RemoteException {
+        if (!userManager.isConnectedUser(sessionId)) {
+            return -1;
+        }
+
+        PreviewInfo existingPreview = activePreviewsWithTimestamp.get(sessionId);
+        if (existingPreview == null || !(existingPreview.shape instanceof FreeDrawing)) {
+            return -1;
+        }
+
+        // 追加到服务器端保存的笔画，返回值作为客户端下次发送的起点
+        FreeDrawing stroke = (FreeDrawing) existingPreview.shape;
+        int pointCount = stroke.appendCoordinates(fromIndex, coordinates);
+
+        User user = userManager.getUserBySessionId(sessionId);
+        previewRelay.publishAppend(user.getUsername(), stroke, sessionId);
+        return pointCount;
+    }
+
     @Override
     public void completeShape(Shape finalShape, String sessionId) throws RemoteException {
         if (!userManager.isConnectedUser(sessionId)) {
@@ -924,18 +1088,11 @@ public class WhiteboardServer implements IWhiteboardServer {
         String username = user.getUsername();
         broadcastPreviewClear(username, sessionId);
 
-        // 2. 分配正式形状时间戳（基于完成时间）
-        long finalTimestamp = System.currentTimeMillis();
-        finalShape.setTimestamp(finalTimestamp);
-
-        // 3. 添加到正式形状层
-        whiteboardState.addShape(finalShape);
-
-        // 4. 广播正式形状
-        broadcastShapeUpdateToAll(finalShape);
+        // 2. 分配正式形状时间戳（基于完成时间）并添加到正式形状层，提交时入队广播正式形状
+        whiteboardState.commitShape(finalShape, sessionId);
 
         logger.info("Shape completed for user: " + username +
-                ", final timestamp: " + finalTimestamp);
+                ", final timestamp: " + finalShape.getTimestamp());
     }
 
     @Override
@@ -968,79 +1125,26 @@ public class WhiteboardServer implements IWhiteboardServer {
         return false;
     }
 
-    private void broadcastShapeUpdateToAll(Shape shape) {
-        Map<String, IWhiteboardClient> clients = new HashMap<>(clientCallbacks);
-        List<String> disconnectedClients = new ArrayList<>();
-
-        for (Map.Entry<String, IWhiteboardClient> entry : clients.entrySet()) {
-            String sessionId = entry.getKey();
-            IWhiteboardClient client = entry.getValue();
-
-            try {
-                client.updateShape(shape);
-                logger.fine("Successfully broadcasted shape to client: " + sessionId);
-            } catch (RemoteException e) {
-                logger.warning("Client disconnected during shape broadcast: " + sessionId);
-                disconnectedClients.add(sessionId);
-            }
-        }
-
-        // 清理断开连接的客户端
-        for (String sessionId : disconnectedClients) {
-            handleClientDisconnection(sessionId);
-        }
-    }
-
     // 广播预览开始
     private void broadcastPreviewStart(Shape shape, String username, long timestamp, String excludeSessionId) {
-        List<String> disconnectedClients = new ArrayList<>();
-
-        for (Map.Entry<String, IWhiteboardClient> entry : clientCallbacks.entrySet()) {
-            if (!entry.getKey().equals(excludeSessionId)) {
-                try {
-                    entry.getValue().receivePreviewStart(shape, username, timestamp);
-                } catch (RemoteException e) {
-                    logger.warning("Error sending preview start: " + e.getMessage());
-                    disconnectedClients.add(entry.getKey());
-                }
-            }
-        }
-
-        // 清理断开连接的客户端
-        for (String sessionId : disconnectedClients) {
-            handleClientDisconnection(sessionId);
-        }
+        dispatcher.broadcastExcept(excludeSessionId, client -> client.receivePreviewStart(shape, username, timestamp));
     }
 
+    // 预览更新只保留最新帧，由预览中继按帧率推送
     private void broadcastPreviewUpdate(Shape shape, String username, String excludeSessionId) {
-        List<String> disconnectedClients = new ArrayList<>();
-
-        for (Map.Entry<String, IWhiteboardClient> entry : clientCallbacks.entrySet()) {
-            if (!entry.getKey().equals(excludeSessionId)) {
-                try {
-                    entry.getValue().receivePreviewUpdate(shape, username);
-                } catch (RemoteException e) {
-                    logger.warning("Error sending preview update: " + e.getMessage());
-                    disconnectedClients.add(entry.getKey());
-                }
-            }
-        }
-
-        for (String sessionId : disconnectedClients) {
-            handleClientDisconnection(sessionId);
-        }
+        previewRelay.publish(username, shape, excludeSessionId);
     }
 
     private void broadcastPreviewClear(String username, String excludeSessionId) {
-        for (Map.Entry<String, IWhiteboardClient> entry : clientCallbacks.entrySet()) {
-            if (!entry.getKey().equals(excludeSessionId)) {
-                try {
-                    entry.getValue().receivePreviewClear(username);
-                } catch (RemoteException e) {
-                    logger.warning("Error sending preview clear: " + e.getMessage());
-                }
-            }
-        }
+        previewRelay.discard(username);
+        dispatcher.broadcastExcept(excludeSessionId, client -> client.receivePreviewClear(username));
+    }
+
+    // 同时移除回调和对应的发送通道
+    private void removeClientCallback(String sessionId) {
+        clientCallbacks.remove(sessionId);
+        dispatcher.unregister(sessionId);
+        previewRelay.removeReceiver(sessionId);
     }
 
 }
\ No newline at end of file
@@ -1,4 +1,458 @@
 package com.whiteboard.client;
 
+import com.whiteboard.client.shapes.FreeDrawing;
+import com.whiteboard.client.shapes.Line;
+import com.whiteboard.client.shapes.Oval;
+import com.whiteboard.client.shapes.Rectangle;
+import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.client.shapes.ShapeCodec;
+import com.whiteboard.client.shapes.StrokeSimplifier;
+import com.whiteboard.client.shapes.Text;
+import com.whiteboard.client.shapes.Triangle;
+import com.whiteboard.common.codec.ShapeBatchCodec;
+import com.whiteboard.common.spatial.SpatialIndex;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Point;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 public class ShapeTest {
+
+    @Test
+    public void codecRoundTripKeepsAllFields() throws Exception {
+        for (Shape shape : sampleShapes()) {
+            assertSameShape(shape, ShapeCodec.decode(ShapeCodec.encode(shape)));
+        }
+    }
+
+    @Test
+    public void javaSerializationUsesCodec() throws Exception {
+        List<Shape> shapes = sampleShapes();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new ArrayList<>(shapes));
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Shape> restored = (List<Shape>) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals(shapes.size(), restored.size());
+        for (int i = 0; i < shapes.size(); i++) {
+            assertSameShape(shapes.get(i), restored.get(i));
+        }
+    }
+
+    @Test
+    public void batchRoundTripKeepsOrder() throws Exception {
+        List<Shape> shapes = sampleShapes();
+        List<Shape> restored = ShapeBatchCodec.decode(ShapeBatchCodec.encode(shapes));
+
+        assertEquals(shapes.size(), restored.size());
+        for (int i = 0; i < shapes.size(); i++) {
+            assertSameShape(shapes.get(i), restored.get(i));
+        }
+    }
+
+    @Test
+    public void encodingIsSmallerThanObjectOutputStream() throws Exception {
+        List<Shape> shapes = sampleShapes();
+        FreeDrawing stroke = new FreeDrawing(new Point(400, 300), Color.BLUE, 3);
+        for (int i = 1; i < 500; i++) {
+            stroke.addPoint(new Point(400 + i % 7, 300 + i / 5));
+        }
+        shapes.add(stroke);
+
+        for (Shape shape : shapes) {
+            int encoded = ShapeCodec.encode(shape).length;
+            int serialized = defaultSerializedSize(shape);
+            assertTrue(shape.getClass().getSimpleName() + ": encoded " + encoded + " bytes, ObjectOutputStream "
+                    + serialized + " bytes", encoded < serialized);
+        }
+
+        // 自由绘制每个点的增量只占两个字节，默认序列化中每个 Point 都是一个对象
+        assertTrue(ShapeCodec.encode(stroke).length * 4 < defaultSerializedSize(stroke));
+    }
+
+    @Test
+    public void decoderRejectsUntrustedCounts() throws Exception {
+        // 超过上限的点数，以及上限内但数据不足的点数，都不按声明的数量分配
+        assertDecodeFails(freeDrawingWithDeclaredPoints(Integer.MAX_VALUE));
+        assertDecodeFails(freeDrawingWithDeclaredPoints(1 << 22));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeByte(ShapeCodec.FORMAT_VERSION);
+            ShapeCodec.writeVarInt(out, Integer.MAX_VALUE);
+        }
+        try {
+            ShapeBatchCodec.decode(bytes.toByteArray());
+            assertTrue("batch with missing shapes should not decode", false);
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void codecKeepsLongTextAndReadsVersionOneText() throws Exception {
+        StringBuilder content = new StringBuilder();
+        while (content.length() < 100000) {
+            content.append("白板 whiteboard ");
+        }
+        Text text = new Text(new Point(3, 4), content.toString(), Color.BLACK, new Font("Serif", Font.PLAIN, 12));
+        assertSameShape(text, ShapeCodec.decode(ShapeCodec.encode(text)));
+
+        // 版本 1 的文本内容用 writeUTF 写入
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeByte(5);
+        out.writeByte(1);
+        out.writeUTF("legacy-text");
+        out.writeInt(Color.BLUE.getRGB());
+        ShapeCodec.writeVarLong(out, 42);
+        ShapeCodec.writeVarInt(out, 6);
+        ShapeCodec.writeVarInt(out, 8);
+        out.writeUTF("hello");
+        out.writeUTF("Serif");
+        ShapeCodec.writeVarInt(out, Font.BOLD);
+        ShapeCodec.writeVarInt(out, 14);
+        Text legacy = (Text) ShapeCodec.decode(bytes.toByteArray());
+        assertEquals("legacy-text", legacy.getId());
+        assertEquals("hello", legacy.getText());
+        assertEquals(new Point(3, 4), legacy.getStartPoint());
+        assertEquals(Font.BOLD, legacy.getFont().getStyle());
+    }
+
+    // 只有头部的自由绘制编码，声明的点数不带任何坐标
+    private static byte[] freeDrawingWithDeclaredPoints(int count) throws IOException {
+        byte[] valid = ShapeCodec.encode(new FreeDrawing(new Point(1, 1), Color.RED, 2));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // 版本、类型、ID 种类、16 字节 UUID、颜色，时间戳为 0，线宽 2
+        out.write(valid, 0, 1 + 1 + 1 + 16 + 4);
+        ShapeCodec.writeVarLong(out, 0);
+        ShapeCodec.writeVarInt(out, 2);
+        ShapeCodec.writeVarInt(out, count);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void assertDecodeFails(byte[] data) {
+        try {
+            ShapeCodec.decode(data);
+            assertTrue("decoding should fail", false);
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * 形状在改用编码器之前默认序列化的大小。Shape.writeReplace 现在总是转为编码格式，
+     * 这里用 ObjectOutputStream 直接写出同样的字段（不含类描述，比原来的格式还小）作为基准
+     */
+    private static int defaultSerializedSize(Shape shape) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(shape.getId());
+            out.writeObject(shape.getColor());
+            out.writeObject(shape.getStartPoint());
+            out.writeObject(shape.getEndPoint());
+            out.writeInt(shape.getStrokeWidth());
+            out.writeInt(-1);
+            out.writeLong(shape.getTimestamp());
+            if (shape instanceof FreeDrawing) {
+                out.writeObject(new ArrayList<>(((FreeDrawing) shape).getPoints()));
+            } else if (shape instanceof Text) {
+                out.writeObject(((Text) shape).getText());
+                out.writeObject(((Text) shape).getFont());
+            }
+        }
+        return bytes.size();
+    }
+
+    @Test
+    public void freeDrawingPointsAreReadOnlyViewOverPackedCoordinates() {
+        FreeDrawing stroke = new FreeDrawing(new Point(0, 0), Color.BLUE, 2);
+        List<Point> view = stroke.getPoints();
+        for (int i = 1; i < 1000; i++) {
+            stroke.addPoint(i, -i);
+        }
+
+        // 视图不复制坐标，随追加的点增长
+        assertEquals(1000, view.size());
+
+        // 远程传来的无效增量被忽略
+        assertEquals(1000L, (long) stroke.appendCoordinates(-1, new int[] {1, 2}));
+        assertEquals(1000L, (long) stroke.appendCoordinates(1000, new int[] {1, 2, 3}));
+        assertEquals(1000L, (long) stroke.appendCoordinates(1001, new int[] {1, 2}));
+        assertEquals(1000, view.size());
+        assertEquals(new Point(999, -999), stroke.getLastPoint());
+        assertEquals(new Point(500, -500), view.get(500));
+        try {
+            view.add(new Point(1, 1));
+            assertTrue("view should be read-only", false);
+        } catch (UnsupportedOperationException expected) {
+            // 只读
+        }
+
+    }
+
+    @Test
+    public void simplifiedStrokeStaysWithinTolerance() {
+        FreeDrawing stroke = new FreeDrawing(new Point(100, 100), Color.BLACK, 2);
+        List<Point> original = new ArrayList<>();
+        original.add(new Point(100, 100));
+        for (int i = 1; i < 2000; i++) {
+            // 直线段上的密集采样加上一段圆弧
+            Point p = i < 1000 ? new Point(100 + i, 100)
+                    : new Point((int) Math.round(1100 + 300 * Math.sin((i - 1000) / 300.0)),
+                                (int) Math.round(400 - 300 * Math.cos((i - 1000) / 300.0)));
+            stroke.addPoint(p);
+            original.add(p);
+        }
+
+        double tolerance = StrokeSimplifier.toleranceFor(stroke.getStrokeWidth());
+        int kept = stroke.simplify(tolerance, false);
+        assertTrue("kept " + kept, kept < original.size() / 5);
+        assertEquals(original.get(0), stroke.getPoints().get(0));
+        assertEquals(original.get(original.size() - 1), stroke.getLastPoint());
+
+        // 每个原始点到简化后折线的距离都不超过容差
+        for (Point p : original) {
+            double nearest = Double.MAX_VALUE;
+            for (int i = 0; i < kept - 1; i++) {
+                nearest = Math.min(nearest, java.awt.geom.Line2D.ptSegDist(stroke.getX(i), stroke.getY(i),
+                        stroke.getX(i + 1), stroke.getY(i + 1), p.x, p.y));
+            }
+            assertTrue(p + " is " + nearest + " px away", nearest <= tolerance);
+        }
+    }
+
+    @Test
+    public void cachedStrokePathGrowsWithAppendedPoints() {
+        java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(100, 100,
+                java.awt.image.BufferedImage.TYPE_INT_RGB);
+        java.awt.Graphics2D g = image.createGraphics();
+        try {
+            FreeDrawing stroke = new FreeDrawing(new Point(10, 10), Color.RED, 3);
+            stroke.addPoint(50, 10);
+            stroke.draw(g);
+            assertEquals(Color.RED.getRGB(), image.getRGB(30, 10));
+            assertEquals(Color.BLACK.getRGB(), image.getRGB(50, 30));
+
+            // 已缓存的路径在追加点后延长
+            stroke.addPoint(50, 50);
+            stroke.draw(g);
+            assertEquals(Color.RED.getRGB(), image.getRGB(50, 30));
+
+            // 简化后路径重建，仍覆盖同样的线段
+            stroke.simplify(1.0, false);
+            g.setColor(Color.BLACK);
+            g.fillRect(0, 0, 100, 100);
+            stroke.draw(g);
+            assertEquals(Color.RED.getRGB(), image.getRGB(30, 10));
+            assertEquals(Color.RED.getRGB(), image.getRGB(50, 30));
+        } finally {
+            g.dispose();
+        }
+    }
+
+    @Test
+    public void hitTestUsesSegmentDistanceAndMatchesBruteForce() {
+        // 点在线段的延长线上，距离直线为0但离线段很远
+        Line line = new Line(new Point(0, 0), new Point(10, 0), Color.BLACK, 1);
+        assertTrue(line.contains(new Point(5, 2)));
+        assertTrue(!line.contains(new Point(40, 0)));
+
+        java.util.Random random = new java.util.Random(7);
+        FreeDrawing stroke = new FreeDrawing(new Point(500, 500), Color.BLACK, 4);
+        int x = 500, y = 500;
+        for (int i = 1; i < 1000; i++) {
+            x += random.nextInt(21) - 10;
+            y += random.nextInt(21) - 10;
+            stroke.addPoint(x, y);
+        }
+        double limit = stroke.getStrokeWidth() + 2;
+        for (int i = 0; i < 2000; i++) {
+            Point p = new Point(x + random.nextInt(400) - 200, y + random.nextInt(400) - 200);
+            boolean expected = false;
+            for (int j = 0; j < stroke.getPointCount() - 1 && !expected; j++) {
+                expected = java.awt.geom.Line2D.ptSegDist(stroke.getX(j), stroke.getY(j),
+                        stroke.getX(j + 1), stroke.getY(j + 1), p.x, p.y) <= limit;
+            }
+            assertTrue(p.toString(), expected == stroke.contains(p));
+        }
+
+        Text text = new Text(new Point(100, 100), "hello", Color.BLACK, new Font("Arial", Font.PLAIN, 20));
+        assertTrue(text.contains(new Point(105, 95)));
+        assertTrue(!text.contains(new Point(105, 140)));
+    }
+
+    @Test
+    public void spatialIndexMatchesBruteForceScan() {
+        java.util.Random random = new java.util.Random(11);
+        SpatialIndex<String> index = new SpatialIndex<>(32);
+        // 按插入顺序保存，重新插入的对象移到最后，与索引的同距离规则一致
+        Map<String, java.awt.Rectangle> expected = new LinkedHashMap<>();
+        for (int i = 0; i < 600; i++) {
+            String item = "item-" + i;
+            java.awt.Rectangle bounds = randomBounds(random, i % 50 == 0);
+            index.insert(item, bounds);
+            expected.put(item, bounds);
+        }
+        List<String> items = new ArrayList<>(expected.keySet());
+        for (int i = 0; i < 300; i++) {
+            String item = items.get(random.nextInt(items.size()));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(item) != null, index.remove(item));
+            } else {
+                // 重新插入时小对象可能变成大对象，反之亦然
+                java.awt.Rectangle bounds = randomBounds(random, random.nextInt(10) == 0);
+                index.insert(item, bounds);
+                expected.remove(item);
+                expected.put(item, bounds);
+            }
+        }
+        assertEquals(expected.size(), index.size());
+
+        for (int i = 0; i < 500; i++) {
+            java.awt.Rectangle area = new java.awt.Rectangle(random.nextInt(1200) - 100, random.nextInt(1200) - 100,
+                    1 + random.nextInt(300), 1 + random.nextInt(300));
+            List<String> found = index.query(area);
+            HashSet<String> bruteForce = new HashSet<>();
+            for (Map.Entry<String, java.awt.Rectangle> entry : expected.entrySet()) {
+                if (entry.getValue().intersects(area)) {
+                    bruteForce.add(entry.getKey());
+                }
+            }
+            // 跨多个单元的对象只返回一次
+            assertEquals(found.size(), new HashSet<>(found).size());
+            assertEquals(bruteForce, new HashSet<>(found));
+
+            Point p = new Point(random.nextInt(1200) - 100, random.nextInt(1200) - 100);
+            int maxDistance = random.nextInt(40);
+            String nearest = null;
+            long nearestSq = (long) maxDistance * maxDistance;
+            for (Map.Entry<String, java.awt.Rectangle> entry : expected.entrySet()) {
+                java.awt.Rectangle r = entry.getValue();
+                long dx = Math.max(0, Math.max(r.x - p.x, p.x - (r.x + r.width - 1)));
+                long dy = Math.max(0, Math.max(r.y - p.y, p.y - (r.y + r.height - 1)));
+                if (dx * dx + dy * dy <= nearestSq) {
+                    nearest = entry.getKey();
+                    nearestSq = dx * dx + dy * dy;
+                }
+            }
+            assertTrue(p + " within " + maxDistance, java.util.Objects.equals(nearest, index.nearest(p, maxDistance, null)));
+        }
+    }
+
+    private static java.awt.Rectangle randomBounds(java.util.Random random, boolean oversized) {
+        int size = oversized ? 400 + random.nextInt(600) : 1 + random.nextInt(60);
+        return new java.awt.Rectangle(random.nextInt(1000), random.nextInt(1000), size, 1 + random.nextInt(oversized ? 600 : 60));
+    }
+
+    @Test
+    public void levelOfDetailKeepsStrokeWithinAPixel() {
+        FreeDrawing stroke = new FreeDrawing(new Point(20, 100), Color.RED, 2);
+        for (int i = 1; i < 4000; i++) {
+            // 原始采样：每个点只移动一点点
+            stroke.addPoint(20 + i / 25, (int) Math.round(100 + 60 * Math.sin(i / 400.0)));
+        }
+        java.awt.image.BufferedImage full = render(g -> stroke.draw(g));
+        java.awt.image.BufferedImage detail = render(g -> stroke.draw(g, 1.0));
+
+        int painted = 0, differing = 0;
+        for (int y = 0; y < 200; y++) {
+            for (int x = 0; x < 200; x++) {
+                boolean a = full.getRGB(x, y) != Color.BLACK.getRGB();
+                boolean b = detail.getRGB(x, y) != Color.BLACK.getRGB();
+                painted += a ? 1 : 0;
+                differing += a != b ? 1 : 0;
+            }
+        }
+        assertTrue("painted " + painted + ", differing " + differing, differing * 20 < painted);
+
+        // 在设备上不到一个像素的形状只画一个点
+        Line tiny = new Line(new Point(100, 100), new Point(104, 100), Color.RED, 1);
+        java.awt.image.BufferedImage dot = render(g -> {
+            g.scale(0.05, 0.05);
+            tiny.draw(g, 0.05);
+        });
+        int dotPixels = 0;
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 20; x++) {
+                dotPixels += dot.getRGB(x, y) == Color.RED.getRGB() ? 1 : 0;
+            }
+        }
+        assertTrue("dot pixels " + dotPixels, dotPixels >= 1 && dotPixels <= 4);
+    }
+
+    private static java.awt.image.BufferedImage render(java.util.function.Consumer<java.awt.Graphics2D> painter) {
+        java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(200, 200,
+                java.awt.image.BufferedImage.TYPE_INT_RGB);
+        java.awt.Graphics2D g = image.createGraphics();
+        try {
+            painter.accept(g);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    private static List<Shape> sampleShapes() {
+        List<Shape> shapes = new ArrayList<>();
+        shapes.add(new Line(new Point(10, 20), new Point(-30, 400), Color.RED, 2));
+        shapes.add(new Rectangle(new Point(100, 100), new Point(50, 60), new Color(10, 20, 30, 128), 4));
+        shapes.add(new Oval(new Point(0, 0), new Point(1920, 1080), Color.GREEN, 1));
+        shapes.add(new Triangle(new Point(5, 5), new Point(6, 6), Color.BLACK, 8));
+        shapes.add(new Text(new Point(200, 300), "白板 whiteboard", Color.MAGENTA, new Font("Arial", Font.BOLD, 18)));
+
+        FreeDrawing stroke = new FreeDrawing(new Point(50, 50), Color.ORANGE, 5);
+        for (int i = 1; i < 100; i++) {
+            stroke.addPoint(new Point(50 + i, 50 - i * 2));
+        }
+        shapes.add(stroke);
+
+        long timestamp = 1700000000000L;
+        for (Shape shape : shapes) {
+            shape.setTimestamp(timestamp++);
+        }
+        return shapes;
+    }
+
+    private static void assertSameShape(Shape expected, Shape actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getColor(), actual.getColor());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getStartPoint(), actual.getStartPoint());
+
+        if (expected instanceof Text) {
+            Text text = (Text) expected;
+            assertEquals(text.getText(), ((Text) actual).getText());
+            assertEquals(text.getFont(), ((Text) actual).getFont());
+        } else if (expected instanceof FreeDrawing) {
+            assertEquals(expected.getStrokeWidth(), actual.getStrokeWidth());
+            assertEquals(((FreeDrawing) expected).getPoints(), ((FreeDrawing) actual).getPoints());
+        } else {
+            assertEquals(expected.getStrokeWidth(), actual.getStrokeWidth());
+            assertEquals(expected.getEndPoint(), actual.getEndPoint());
+        }
+    }
 }
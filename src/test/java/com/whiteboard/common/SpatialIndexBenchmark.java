@@ -0,0 +1,106 @@
+package com.whiteboard.common;
+
+import com.whiteboard.common.spatial.SpatialIndex;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 空间索引查询耗时的简单基准测试（手动运行，不属于单元测试）。
+ * 分别在 1万、10万、100万 个形状上测量视口查询和最近命中查询，并与全量扫描对比。
+ * 运行：java -cp target/classes:target/test-classes com.whiteboard.common.SpatialIndexBenchmark
+ */
+public class SpatialIndexBenchmark {
+    private static final int BOARD_SIZE = 20000;
+    private static final int QUERIES = 2000;
+
+    public static void main(String[] args) {
+        int[] sizes = args.length > 0 ? parseSizes(args) : new int[]{10_000, 100_000, 1_000_000};
+        for (int size : sizes) {
+            run(size);
+        }
+    }
+
+    private static void run(int size) {
+        Random random = new Random(42);
+        List<Rectangle> bounds = new ArrayList<>(size);
+        SpatialIndex<Rectangle> index = new SpatialIndex<>();
+
+        long buildStart = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            Rectangle r = new Rectangle(random.nextInt(BOARD_SIZE), random.nextInt(BOARD_SIZE),
+                    5 + random.nextInt(300), 5 + random.nextInt(300));
+            bounds.add(r);
+            index.insert(r, r);
+        }
+        long buildNanos = System.nanoTime() - buildStart;
+
+        Rectangle[] viewports = new Rectangle[QUERIES];
+        Point[] points = new Point[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            viewports[i] = new Rectangle(random.nextInt(BOARD_SIZE), random.nextInt(BOARD_SIZE), 1920, 1080);
+            points[i] = new Point(random.nextInt(BOARD_SIZE), random.nextInt(BOARD_SIZE));
+        }
+
+        // 预热
+        for (int round = 0; round < 3; round++) {
+            queryAll(index, viewports);
+            nearestAll(index, points);
+        }
+
+        long start = System.nanoTime();
+        long hits = queryAll(index, viewports);
+        long queryNanos = (System.nanoTime() - start) / QUERIES;
+
+        start = System.nanoTime();
+        long found = nearestAll(index, points);
+        long nearestNanos = (System.nanoTime() - start) / QUERIES;
+
+        // 全量扫描作为对照，只测少量查询
+        int scanQueries = Math.max(10, QUERIES * 10_000 / size);
+        start = System.nanoTime();
+        long scanHits = 0;
+        for (int i = 0; i < scanQueries; i++) {
+            for (Rectangle r : bounds) {
+                if (r.intersects(viewports[i])) {
+                    scanHits++;
+                }
+            }
+        }
+        long scanNanos = (System.nanoTime() - start) / scanQueries;
+
+        System.out.printf("%,9d shapes: build %6d ms | viewport query %,10d ns (%d hits avg) | "
+                        + "nearest %,8d ns (%d found) | full scan %,12d ns (%d hits avg)%n",
+                size, buildNanos / 1_000_000, queryNanos, hits / QUERIES,
+                nearestNanos, found, scanNanos, scanHits / scanQueries);
+    }
+
+    private static long queryAll(SpatialIndex<Rectangle> index, Rectangle[] viewports) {
+        long hits = 0;
+        for (Rectangle viewport : viewports) {
+            hits += index.query(viewport).size();
+        }
+        return hits;
+    }
+
+    private static long nearestAll(SpatialIndex<Rectangle> index, Point[] points) {
+        long found = 0;
+        for (Point p : points) {
+            if (index.nearest(p, 20, null) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static int[] parseSizes(String[] args) {
+        int[] sizes = new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i].replace("_", ""));
+        }
+        return sizes;
+    }
+}
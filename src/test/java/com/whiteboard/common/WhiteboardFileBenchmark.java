@@ -0,0 +1,96 @@
+package com.whiteboard.common;
+
+import com.whiteboard.client.shapes.FreeDrawing;
+import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.common.codec.BlockCodec;
+import com.whiteboard.common.codec.BlockCodecs;
+import com.whiteboard.common.codec.WhiteboardFile;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 白板文件各压缩算法的文件大小和保存/加载耗时（手动运行，不属于单元测试）。
+ * 在 1万、10万 笔随机自由绘制的白板上分别测量每种压缩算法。
+ * 运行：java -cp target/classes:target/test-classes com.whiteboard.common.WhiteboardFileBenchmark
+ */
+public class WhiteboardFileBenchmark {
+    private static final int BOARD_SIZE = 4000;
+    private static final int ROUNDS = 3;
+    private static final Color[] PALETTE = {Color.BLACK, Color.RED, Color.BLUE, new Color(30, 160, 60)};
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = args.length > 0 ? parseSizes(args) : new int[]{10_000, 100_000};
+        File file = File.createTempFile("whiteboard-benchmark", ".wbd");
+        file.deleteOnExit();
+        try {
+            for (int size : sizes) {
+                List<Shape> board = createBoard(size);
+                for (BlockCodec codec : BlockCodecs.all()) {
+                    run(file, board, codec);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void run(File file, List<Shape> board, BlockCodec codec) throws IOException {
+        long bestSave = Long.MAX_VALUE;
+        long bestLoad = Long.MAX_VALUE;
+        int loaded = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            WhiteboardFile.write(file, board, board.size(), 1, System.currentTimeMillis(), "benchmark", codec, null);
+            bestSave = Math.min(bestSave, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            loaded = 0;
+            try (WhiteboardFile.Reader reader = WhiteboardFile.open(file)) {
+                for (Shape shape : reader) {
+                    loaded++;
+                }
+            }
+            bestLoad = Math.min(bestLoad, System.nanoTime() - start);
+        }
+        if (loaded != board.size()) {
+            throw new IllegalStateException("Loaded " + loaded + " of " + board.size() + " shapes");
+        }
+
+        System.out.printf("%,8d strokes | %-8s | %,13d bytes | save %6d ms | load %6d ms%n",
+                board.size(), codec.name(), file.length(), bestSave / 1_000_000, bestLoad / 1_000_000);
+    }
+
+    // 随机游走的笔画，点数和步长接近手绘
+    private static List<Shape> createBoard(int strokes) {
+        Random random = new Random(42);
+        List<Shape> board = new ArrayList<>(strokes);
+        for (int i = 0; i < strokes; i++) {
+            int x = random.nextInt(BOARD_SIZE);
+            int y = random.nextInt(BOARD_SIZE);
+            FreeDrawing stroke = new FreeDrawing(new Point(x, y), PALETTE[random.nextInt(PALETTE.length)],
+                    1 + random.nextInt(4));
+            int points = 20 + random.nextInt(100);
+            for (int p = 0; p < points; p++) {
+                x += random.nextInt(9) - 4;
+                y += random.nextInt(9) - 4;
+                stroke.addPoint(new Point(x, y));
+            }
+            board.add(stroke);
+        }
+        return board;
+    }
+
+    private static int[] parseSizes(String[] args) {
+        int[] sizes = new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i].replace("_", ""));
+        }
+        return sizes;
+    }
+}
@@ -1,4 +1,983 @@
 package com.whiteboard.server;
 
+import com.whiteboard.client.shapes.FreeDrawing;
+import com.whiteboard.client.shapes.Line;
+import com.whiteboard.client.shapes.Oval;
+import com.whiteboard.client.shapes.Rectangle;
+import com.whiteboard.client.shapes.Shape;
+import com.whiteboard.client.shapes.ShapeCodec;
+import com.whiteboard.common.codec.BlockCodec;
+import com.whiteboard.common.codec.BlockCodecs;
+import com.whiteboard.common.codec.WhiteboardFile;
+import com.whiteboard.common.model.DrawOperation;
+import com.whiteboard.common.model.ShapeSnapshot;
+import com.whiteboard.common.model.WhiteboardState;
+import com.whiteboard.common.remote.IWhiteboardClient;
+import com.whiteboard.common.schedule.Scheduler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 public class ServerTest {
+    private File journalDir;
+
+    @Before
+    public void createJournalDir() throws IOException {
+        journalDir = Files.createTempDirectory("whiteboard-journal").toFile();
+    }
+
+    @After
+    public void deleteJournalDir() {
+        File[] files = journalDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        journalDir.delete();
+    }
+
+    @Test
+    public void journalReplaysOperationsAfterRestart() throws IOException {
+        WhiteboardState state = new WhiteboardState();
+        OperationJournal journal = new OperationJournal(journalDir, 1000);
+        journal.open(state);
+
+        Shape first = new Line(new Point(0, 0), new Point(10, 10), Color.BLACK, 2);
+        Shape second = new Rectangle(new Point(5, 5), new Point(50, 40), Color.RED, 3);
+        FreeDrawing stroke = new FreeDrawing(new Point(1, 1), Color.BLUE, 4);
+        stroke.addPoint(new Point(2, 3));
+        state.commitShape(first, "s1");
+        state.commitShape(second, "s1");
+        state.commitShape(stroke, "s2");
+        state.removeShape(second.getId(), "s1");
+        assertTrue(journal.sync());
+        journal.close();
+
+        WhiteboardState recovered = reopen();
+        assertSameShapes(state, recovered);
+        assertNull(recovered.getShape(second.getId()));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void journalReportsOperationsItCannotEncode() throws IOException {
+        WhiteboardState state = new WhiteboardState();
+        OperationJournal journal = new OperationJournal(journalDir, 1000);
+        journal.open(state);
+
+        state.commitShape(new Line(new Point(0, 0), new Point(10, 10), Color.BLACK, 2), "s1");
+        assertTrue(journal.sync());
+
+        // 编码器不支持的形状不能写入日志，不能报告为已持久化
+        state.commitShape(new com.whiteboard.client.shapes.ErasureShape(
+                Arrays.asList(new Point(1, 1), new Point(2, 2)), 5, Color.WHITE), "s1");
+        assertTrue("sync should fail until a snapshot covers the operation", !journal.sync());
+        journal.close();
+    }
+
+    @Test
+    public void journalRecoversFromSnapshotAfterCompaction() throws Exception {
+        WhiteboardState state = new WhiteboardState();
+        OperationJournal journal = new OperationJournal(journalDir, 10);
+        journal.open(state);
+
+        for (int i = 0; i < 35; i++) {
+            state.commitShape(new Line(new Point(i, i), new Point(i + 5, i * 2), Color.GREEN, 1), "s1");
+            assertTrue(journal.sync());
+            if (i == 20) {
+                state.clear("s1");
+            }
+        }
+        journal.close();
+
+        File[] snapshots = journalDir.listFiles((dir, name) -> name.startsWith("snapshot-"));
+        assertTrue(snapshots != null && snapshots.length == 1);
+
+        assertSameShapes(state, reopen());
+    }
+
+    @Test
+    public void journalIgnoresTornTailRecord() throws IOException {
+        WhiteboardState state = new WhiteboardState();
+        OperationJournal journal = new OperationJournal(journalDir, 1000);
+        journal.open(state);
+        state.commitShape(new Line(new Point(0, 0), new Point(3, 4), Color.BLACK, 1), "s1");
+        assertTrue(journal.sync());
+        journal.close();
+
+        // 模拟崩溃时只写了一半的记录
+        File[] segments = journalDir.listFiles((dir, name) -> name.startsWith("segment-"));
+        for (File segment : segments) {
+            if (segment.length() > 5) {
+                try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                    file.seek(file.length());
+                    file.writeInt(1000);
+                    file.writeInt(0);
+                    file.write(new byte[10]);
+                }
+            }
+        }
+
+        WhiteboardState recovered = reopen();
+        assertSameShapes(state, recovered);
+
+        // 恢复后继续记录的操作在下次启动时仍然可以重放
+        OperationJournal journal2 = new OperationJournal(journalDir, 1000);
+        WhiteboardState again = new WhiteboardState();
+        journal2.open(again);
+        again.commitShape(new Line(new Point(7, 7), new Point(8, 8), Color.BLACK, 1), "s1");
+        assertTrue(journal2.sync());
+        journal2.close();
+        assertSameShapes(again, reopen());
+    }
+
+    @Test
+    public void journalReplayStopsAtMissingVersions() throws IOException {
+        WhiteboardState state = new WhiteboardState();
+        OperationJournal journal = new OperationJournal(journalDir, 1000);
+        journal.open(state);
+        Line first = new Line(new Point(0, 0), new Point(1, 1), Color.BLACK, 1);
+        state.commitShape(first, "s1");
+        state.commitShape(new Line(new Point(2, 2), new Point(3, 3), Color.BLACK, 1), "s1");
+        assertTrue(journal.sync());
+        journal.close();
+
+        // 重启后继续记录到新的段
+        WhiteboardState restarted = new WhiteboardState();
+        OperationJournal journal2 = new OperationJournal(journalDir, 1000);
+        journal2.open(restarted);
+        restarted.commitShape(new Line(new Point(4, 4), new Point(5, 5), Color.BLACK, 1), "s1");
+        assertTrue(journal2.sync());
+        journal2.close();
+
+        // 第一个段的最后一条记录损坏，版本 2 丢失，之后的段不能跨过缺口重放
+        File[] segments = journalDir.listFiles((dir, name) -> name.startsWith("segment-"));
+        Arrays.sort(segments);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        }
+        WhiteboardState recovered = reopen();
+        assertEquals(1, recovered.getVersion());
+        assertEquals(Arrays.asList(first.getId()), ids(recovered.getShapes()));
+
+        // 缺口之后的旧记录已移走，恢复后新记录的版本号与它们重叠也不会被误用
+        OperationJournal journal3 = new OperationJournal(journalDir, 1000);
+        WhiteboardState again = new WhiteboardState();
+        journal3.open(again);
+        again.commitShape(new Line(new Point(6, 6), new Point(7, 7), Color.BLACK, 1), "s1");
+        assertTrue(journal3.sync());
+        journal3.close();
+        assertSameShapes(again, reopen());
+        assertEquals(2, again.size());
+    }
+
+    @Test
+    public void whiteboardFileStreamsShapesBack() throws IOException {
+        WhiteboardState state = new WhiteboardState();
+        for (int i = 0; i < 1200; i++) {
+            FreeDrawing stroke = new FreeDrawing(new Point(i, i), Color.BLUE, 2);
+            stroke.addPoint(new Point(i + 3, i + 7));
+            state.commitShape(i % 2 == 0 ? stroke : new Line(new Point(0, i), new Point(i, 0), Color.RED, 1));
+        }
+
+        ShapeSnapshot snapshot = state.snapshot();
+        for (BlockCodec codec : BlockCodecs.all()) {
+            File file = new File(journalDir, "board-" + codec.name() + ".wbd");
+            WhiteboardFile.write(file, snapshot, snapshot.size(), snapshot.getVersion(), 1234L, "alice", codec, null);
+            assertTrue(WhiteboardFile.isContainer(file));
+
+            try (WhiteboardFile.Reader reader = WhiteboardFile.open(file)) {
+                assertEquals(codec, reader.getCodec());
+                assertEquals(1200, reader.getShapeCount());
+                assertEquals(snapshot.getVersion(), reader.getBoardVersion());
+                assertEquals("alice", reader.getCreatedBy());
+                assertEquals(snapshot.toList().get(777).getId(), reader.readShape(777).getId());
+                assertEquals(snapshot.toList().get(1199).getId(), reader.readShape(1199).getId());
+
+                WhiteboardState loaded = new WhiteboardState();
+                long version = loaded.load(reader, "s1").getVersion();
+                assertEquals(1L, version);
+                assertEquals(state.getShapes().size(), loaded.getShapes().size());
+                for (int i = 0; i < 1200; i++) {
+                    assertEquals(state.getShapes().get(i).getId(), loaded.getShapes().get(i).getId());
+                    assertEquals(state.getShapes().get(i).getEndPoint(), loaded.getShapes().get(i).getEndPoint());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void blockCodecsRoundTrip() throws IOException {
+        Random random = new Random(7);
+        byte[] repetitive = new byte[200_000];
+        for (int i = 0; i < repetitive.length; i++) {
+            repetitive[i] = (byte) (i % 37 < 30 ? i % 7 : random.nextInt(256));
+        }
+        byte[] noise = new byte[70_000];
+        random.nextBytes(noise);
+
+        for (BlockCodec codec : BlockCodecs.all()) {
+            for (byte[] data : new byte[][]{repetitive, noise, new byte[0], new byte[]{1, 2, 3}}) {
+                byte[] stored = codec.compress(data, 0, data.length);
+                byte[] raw = new byte[data.length];
+                codec.decompress(stored, 0, stored.length, raw);
+                assertTrue(codec.name(), Arrays.equals(data, raw));
+            }
+        }
+    }
+
+    @Test
+    public void saveServiceWritesSnapshotInBackground() throws Exception {
+        WhiteboardState state = new WhiteboardState();
+        for (int i = 0; i < 100; i++) {
+            state.commitShape(new Line(new Point(i, 0), new Point(0, i), Color.BLACK, 1));
+        }
+        ShapeSnapshot snapshot = state.snapshot();
+        // 快照之后的修改不会出现在保存的文件中
+        state.clear();
+
+        File target = new File(journalDir, "saved.wbd");
+        CountDownLatch done = new CountDownLatch(1);
+        boolean[] result = new boolean[1];
+        SaveService saveService = new SaveService();
+        long ticket = saveService.submit(target, snapshot, "bob", new SaveService.SaveListener() {
+            @Override
+            public void onProgress(long ticket, int percent) {
+            }
+
+            @Override
+            public void onComplete(long ticket, boolean success, String error) {
+                result[0] = success;
+                done.countDown();
+            }
+        });
+        assertTrue(ticket > 0);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        saveService.shutdown();
+
+        assertTrue(result[0]);
+        assertTrue(!new File(journalDir, "saved.wbd.tmp").exists());
+        try (WhiteboardFile.Reader reader = WhiteboardFile.open(target)) {
+            assertEquals(100, reader.getShapeCount());
+            assertEquals(snapshot.getVersion(), reader.getBoardVersion());
+        }
+    }
+
+    @Test
+    public void repeatedSavesWriteDeltas() throws Exception {
+        WhiteboardState state = new WhiteboardState();
+        for (int i = 0; i < 3000; i++) {
+            state.commitShape(i == 500 ? new FreeDrawing(new Point(5, 5), Color.BLACK, 2)
+                    : new Line(new Point(i, 0), new Point(0, i), Color.BLACK, 1));
+        }
+        File target = new File(journalDir, "delta.wbd");
+        SaveService saveService = new SaveService(BlockCodecs.DEFLATE);
+        saveAndWait(saveService, target, state);
+        long baseLength = target.length();
+
+        // 删除、原位替换、追加，以及追加后又删除
+        List<Shape> shapes = state.getShapes();
+        state.removeShape(shapes.get(10).getId());
+        Line replacement = new Line(new Point(1, 1), new Point(2, 2), Color.RED, 5);
+        state.commitShape(replacement);
+        state.removeShape(replacement.getId());
+        state.commitShape(new Rectangle(new Point(3, 3), new Point(9, 9), Color.BLUE, 2));
+        saveAndWait(saveService, target, state);
+
+        state.removeShape(shapes.get(2000).getId());
+        state.commitShape(new Line(new Point(4, 4), new Point(8, 8), Color.GREEN, 1));
+        FreeDrawing updated = (FreeDrawing) ShapeCodec.decode(ShapeCodec.encode(shapes.get(500)));
+        updated.addPoint(new Point(40, 60));
+        state.commitShape(updated);
+        saveAndWait(saveService, target, state);
+        saveService.shutdown();
+
+        File first = DeltaChain.deltaFile(target, 1);
+        assertTrue(first.exists() && DeltaChain.deltaFile(target, 2).exists());
+        assertEquals(baseLength, target.length());
+        assertTrue(first.length() < baseLength / 20);
+
+        try (WhiteboardFile.Reader reader = WhiteboardFile.open(target)) {
+            DeltaChain chain = DeltaChain.read(target, reader);
+            assertEquals(2, chain.length());
+            WhiteboardState loaded = new WhiteboardState();
+            loaded.load(chain.apply(reader), "s1");
+            assertEquals(state.size(), loaded.size());
+            List<Shape> expected = state.getShapes();
+            List<Shape> actual = loaded.getShapes();
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getId(), actual.get(i).getId());
+                assertEquals(expected.get(i).getEndPoint(), actual.get(i).getEndPoint());
+            }
+        }
+
+        // 清空后槽位重排，下一次保存重写基准并删除旧增量
+        SaveService again = new SaveService(BlockCodecs.DEFLATE);
+        saveAndWait(again, target, state);
+        assertTrue(!first.exists());
+        state.clear();
+        state.commitShape(new Line(new Point(0, 0), new Point(1, 1), Color.BLACK, 1));
+        saveAndWait(again, target, state);
+        again.shutdown();
+        assertTrue(!first.exists());
+        try (WhiteboardFile.Reader reader = WhiteboardFile.open(target)) {
+            assertEquals(1, reader.getShapeCount());
+        }
+    }
+
+    @Test
+    public void historyRebuildsAndRestoresPastVersions() {
+        WhiteboardState state = new WhiteboardState();
+        BoardHistory history = new BoardHistory(state, 200, 25);
+        history.attach();
+
+        Random random = new Random(3);
+        Map<Long, List<String>> expected = new HashMap<>();
+        List<Shape> board = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            int action = random.nextInt(10);
+            if (action < 6 || state.size() == 0) {
+                state.commitShape(new Line(new Point(i, i), new Point(i + 1, 0), Color.BLACK, 1));
+            } else if (action < 9) {
+                List<Shape> shapes = state.getShapes();
+                state.removeShape(shapes.get(random.nextInt(shapes.size())).getId());
+            } else if (i % 3 == 0) {
+                state.clear();
+            } else {
+                board.clear();
+                board.add(new Oval(new Point(0, 0), new Point(5, 5), Color.RED, 1));
+                state.load(board, "s1");
+            }
+            expected.put(state.getVersion(), ids(state.getShapes()));
+        }
+
+        assertTrue(history.getOperationCount() <= 200 + 25);
+        long oldest = history.getOldestVersion();
+        assertTrue(oldest > 0);
+        for (long version = oldest; version <= state.getVersion(); version++) {
+            assertEquals(expected.get(version), ids(history.getShapesAt(version)));
+        }
+
+        long target = state.getVersion() - 30;
+        List<Shape> before = state.getShapes();
+        ShapeSnapshot.Delta changes = state.revert(history.getShapesAt(target), "s1");
+        assertEquals(expected.get(target), ids(state.getShapes()));
+        // 删除和新增正好把恢复前的白板变成目标版本
+        List<String> patched = ids(before);
+        patched.removeAll(changes.getRemovedIds());
+        patched.addAll(ids(changes.getAppended()));
+        assertEquals(new HashSet<>(expected.get(target)), new HashSet<>(patched));
+        assertEquals(expected.get(target), ids(history.getShapesAt(state.getVersion())));
+    }
+
+    @Test
+    public void snapshotIsUnaffectedByLaterWritesAndReportsChanges() throws IOException {
+        WhiteboardState state = new WhiteboardState();
+        List<Shape> shapes = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            Line line = new Line(new Point(i, 0), new Point(0, i), Color.BLACK, 1);
+            state.commitShape(line);
+            shapes.add(line);
+        }
+        ShapeSnapshot base = state.snapshot();
+        List<String> baseIds = ids(base.toList());
+
+        // 更新的形状移到末尾，在差异中表现为删除加追加
+        Line updated = (Line) ShapeCodec.decode(ShapeCodec.encode(shapes.get(10)));
+        updated.setEndPoint(new Point(99, 99));
+        state.commitShape(updated);
+        state.removeShape(shapes.get(1200).getId());
+        List<Shape> added = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Oval oval = new Oval(new Point(i, i), new Point(i + 5, i + 5), Color.RED, 1);
+            state.commitShape(oval);
+            added.add(oval);
+        }
+
+        assertEquals(baseIds, ids(base.toList()));
+        assertTrue(base.toList().get(10) == shapes.get(10));
+        assertEquals(1500, base.size());
+
+        ShapeSnapshot.Delta changes = state.snapshot().changesSince(base);
+        assertEquals(Arrays.asList(shapes.get(10).getId(), shapes.get(1200).getId()), changes.getRemovedIds());
+        assertTrue(changes.getReplaced().isEmpty());
+        List<Shape> appended = new ArrayList<>();
+        appended.add(updated);
+        appended.addAll(added);
+        assertEquals(ids(appended), ids(changes.getAppended()));
+        List<String> patched = new ArrayList<>(baseIds);
+        patched.removeAll(changes.getRemovedIds());
+        patched.addAll(ids(changes.getAppended()));
+        assertEquals(ids(state.getShapes()), patched);
+        assertTrue(state.snapshot().changesSince(state.snapshot()).isEmpty());
+
+        // 删除过半触发压缩后槽位重排，无法逐槽比较，旧快照仍保持原样
+        for (int i = 0; i < 800; i++) {
+            state.removeShape(shapes.get(i).getId());
+        }
+        assertNull(state.snapshot().changesSince(base));
+        assertEquals(baseIds, ids(base.toList()));
+    }
+
+    @Test
+    public void updatedShapeMovesToTheEndInTimestampOrder() throws IOException {
+        WhiteboardState state = new WhiteboardState();
+        BoardHistory history = new BoardHistory(state);
+        history.attach();
+        List<Shape> shapes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Line line = new Line(new Point(i, 0), new Point(0, i), Color.BLACK, 1);
+            state.commitShape(line);
+            shapes.add(line);
+        }
+
+        // 更新后的形状带新的时间戳，快照仍按时间戳排序
+        Line updated = (Line) ShapeCodec.decode(ShapeCodec.encode(shapes.get(0)));
+        updated.setEndPoint(new Point(40, 40));
+        state.commitShape(updated);
+        List<Shape> snapshot = state.getShapes();
+        assertEquals(Arrays.asList(shapes.get(1).getId(), shapes.get(2).getId(), updated.getId()), ids(snapshot));
+        for (int i = 1; i < snapshot.size(); i++) {
+            assertTrue(snapshot.get(i - 1).getTimestamp() <= snapshot.get(i).getTimestamp());
+        }
+        assertEquals(ids(snapshot), ids(history.getShapesAt(state.getVersion())));
+    }
+
+    @Test
+    public void historyReturnsOperationsSinceVersion() {
+        WhiteboardState state = new WhiteboardState();
+        BoardHistory history = new BoardHistory(state, 50, 10);
+        history.attach();
+
+        for (int i = 0; i < 30; i++) {
+            state.commitShape(new Line(new Point(i, 0), new Point(0, i), Color.BLACK, 1));
+        }
+        List<DrawOperation> missed = history.getOperationsSince(25, 30);
+        assertEquals(5, missed.size());
+        assertEquals(26, missed.get(0).getVersion());
+        assertEquals(30, missed.get(4).getVersion());
+        assertTrue(history.getOperationsSince(30, 30).isEmpty());
+        assertEquals(2, history.getOperationsSince(25, 27).size());
+        // 客户端版本超出服务器版本时只能整体重发
+        assertNull(history.getOperationsSince(31, 30));
+
+        state.load(new ArrayList<>(), "s1");
+        state.commitShape(new Line(new Point(1, 1), new Point(2, 2), Color.BLACK, 1));
+        assertNull(history.getOperationsSince(30, 32));
+        assertEquals(1, history.getOperationsSince(31, 32).size());
+
+        for (int i = 0; i < 100; i++) {
+            state.commitShape(new Line(new Point(i, 0), new Point(0, i), Color.BLACK, 1));
+        }
+        assertNull(history.getOperationsSince(32, state.getVersion()));
+    }
+
+    @Test
+    public void loadDecodesOutsideTheStateLock() throws InterruptedException {
+        WhiteboardState state = new WhiteboardState();
+        state.commitShape(new Line(new Point(0, 0), new Point(1, 1), Color.BLACK, 1));
+        long before = state.getVersion();
+
+        // 解码过程中其他线程仍然可以修改白板
+        CountDownLatch committed = new CountDownLatch(1);
+        List<Shape> board = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            board.add(new Oval(new Point(i, i), new Point(i + 5, i + 5), Color.RED, 1));
+        }
+        Iterable<Shape> decoding = () -> board.stream().peek(shape -> {
+            if (committed.getCount() > 0) {
+                new Thread(() -> {
+                    state.commitShape(new Line(new Point(2, 2), new Point(3, 3), Color.BLACK, 1));
+                    committed.countDown();
+                }).start();
+                try {
+                    assertTrue(committed.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }).iterator();
+
+        ShapeSnapshot loaded = state.load(decoding, "s1");
+        assertEquals(before + 2, loaded.getVersion());
+        assertEquals(ids(board), ids(state.getShapes()));
+
+        // 解码失败时白板保持不变
+        Iterable<Shape> broken = () -> board.stream().peek(shape -> {
+            throw new IllegalStateException("corrupt block");
+        }).iterator();
+        try {
+            state.load(broken, "s1");
+            assertTrue("load should fail", false);
+        } catch (IllegalStateException expected) {
+            assertEquals(ids(board), ids(state.getShapes()));
+            assertEquals(before + 2, state.getVersion());
+        }
+    }
+
+    @Test
+    public void suspendedSessionResumesWithRoleAndApproval() {
+        UserManager users = new UserManager();
+        String managerId = users.connectUser("alice", true);
+        String userId = users.connectUser("bob", false);
+        assertTrue(users.approveUser("bob", managerId));
+
+        assertTrue(users.suspendUser(userId));
+        assertTrue(users.suspendUser(managerId));
+        // 挂起的会话心跳返回 false，用户名仍被占用
+        assertTrue(!users.updateUserActivity(userId));
+        assertTrue(users.isUsernameExists("bob"));
+
+        assertTrue(users.resumeUser(userId));
+        assertTrue(users.resumeUser(managerId));
+        assertTrue(users.updateUserActivity(userId));
+        assertTrue(users.isApproved(users.getUidBySessionId(userId)));
+        assertTrue(users.isManager(managerId));
+
+        users.removeUser(userId);
+        assertTrue(!users.resumeUser(userId));
+    }
+
+    @Test
+    public void broadcastsReachClientsInCommitOrder() throws Exception {
+        System.setProperty("whiteboard.journal.dir", journalDir.getPath());
+        try {
+            WhiteboardServer server = new WhiteboardServer();
+            String managerId = server.connectUser("alice", true);
+            List<Long> versions = java.util.Collections.synchronizedList(new ArrayList<>());
+            IWhiteboardClient client = (IWhiteboardClient) Proxy.newProxyInstance(IWhiteboardClient.class.getClassLoader(),
+                    new Class<?>[]{IWhiteboardClient.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "receiveSnapshotChunk":
+                            case "receiveClearCanvas":
+                                versions.add((Long) args[0]);
+                                break;
+                            case "updateShape":
+                            case "removeShape":
+                                versions.add((Long) args[1]);
+                                break;
+                            default:
+                                break;
+                        }
+                        return null;
+                    });
+            server.registerClient(managerId, client, -1);
+
+            // 并发提交、删除和清除，客户端收到的版本号仍然连续
+            Thread[] writers = new Thread[4];
+            for (int t = 0; t < writers.length; t++) {
+                int offset = t * 100;
+                writers[t] = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 50; i++) {
+                            Line line = new Line(new Point(offset + i, 0), new Point(0, i), Color.BLACK, 1);
+                            server.addShape(line, managerId);
+                            if (i % 10 == 0) {
+                                server.removeShape(line.getId(), managerId);
+                            }
+                        }
+                    } catch (RemoteException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                writers[t].start();
+            }
+            server.clearCanvas(managerId);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+
+            long expected = server.getBoardVersion();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (versions.get(versions.size() - 1) < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            synchronized (versions) {
+                assertEquals(expected - versions.get(0) + 1, versions.size());
+                for (int i = 1; i < versions.size(); i++) {
+                    assertEquals(versions.get(i - 1) + 1, (long) versions.get(i));
+                }
+            }
+        } finally {
+            System.clearProperty("whiteboard.journal.dir");
+        }
+    }
+
+    @Test
+    public void schedulerIsolatesFailingTasks() throws InterruptedException {
+        Scheduler scheduler = new Scheduler("test-scheduler", 1);
+        try {
+            // 第4次开始时前3次一定已经结束
+            CountDownLatch runs = new CountDownLatch(4);
+            Scheduler.ScheduledTask failing = scheduler.scheduleAtFixedRate("failing", () -> {
+                runs.countDown();
+                throw new IllegalStateException("boom");
+            }, 0, 10, TimeUnit.MILLISECONDS);
+            CountDownLatch once = new CountDownLatch(1);
+            scheduler.schedule("once", once::countDown, 5, TimeUnit.MILLISECONDS);
+
+            // 抛出异常的周期任务继续执行，也不影响同一线程上的其他任务
+            assertTrue(runs.await(5, TimeUnit.SECONDS));
+            assertTrue(once.await(5, TimeUnit.SECONDS));
+
+            failing.cancel();
+            assertTrue(failing.isCancelled());
+            Thread.sleep(50);
+            assertTrue(scheduler.getTasks().isEmpty());
+            // 取消后不再执行，每次执行都记为失败
+            assertTrue(failing.getFailureCount() >= 4);
+            assertEquals(failing.getRunCount(), failing.getFailureCount());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void heartbeatSweepBoundsSlowClientsAndUsesWindow() {
+        CountDownLatch release = new CountDownLatch(1);
+        Map<String, IWhiteboardClient> clients = new HashMap<>();
+        clients.put("ok", heartbeatClient(() -> { }));
+        clients.put("broken", heartbeatClient(() -> {
+            throw new RemoteException("unreachable");
+        }));
+        clients.put("stuck", heartbeatClient(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        List<String> disconnected = new ArrayList<>();
+        HeartbeatMonitor monitor = new HeartbeatMonitor(() -> clients, disconnected::add, 100, 3, 2);
+        try {
+            monitor.sweep();
+            // 卡住的客户端只让这一轮等待一个超时时间
+            assertTrue(monitor.getLastSweepMillis() < 2000);
+            assertTrue(disconnected.isEmpty());
+            assertEquals(1, monitor.getRecentFailures("stuck"));
+            assertTrue(monitor.getRoundTripMillis("ok") >= 0);
+
+            monitor.sweep();
+            assertEquals(new HashSet<>(Arrays.asList("broken", "stuck")), new HashSet<>(disconnected));
+            assertEquals(0, monitor.getRecentFailures("ok"));
+        } finally {
+            release.countDown();
+            monitor.shutdown();
+        }
+    }
+
+    @Test
+    public void dispatcherKeepsPerSessionOrder() throws Exception {
+        ClientDispatcher dispatcher = new ClientDispatcher(sessionId -> { });
+        Map<String, List<Integer>> received = new HashMap<>();
+        CountDownLatch done = new CountDownLatch(2);
+        try {
+            for (String sessionId : Arrays.asList("a", "b")) {
+                received.put(sessionId, new ArrayList<>());
+                dispatcher.register(sessionId, callbackClient());
+            }
+            for (int i = 0; i < 500; i++) {
+                final int value = i;
+                dispatcher.broadcast(client -> {
+                    // 发送线程名包含会话ID
+                    String sessionId = Thread.currentThread().getName().substring("whiteboard-sender-".length());
+                    synchronized (received) {
+                        received.get(sessionId).add(value);
+                    }
+                    if (value == 499) {
+                        done.countDown();
+                    }
+                });
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            synchronized (received) {
+                for (List<Integer> values : received.values()) {
+                    assertEquals(500, values.size());
+                    for (int i = 0; i < values.size(); i++) {
+                        assertEquals(i, (int) values.get(i));
+                    }
+                }
+            }
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void dispatcherReportsFullQueueAndKeepsChannelOnReregister() throws Exception {
+        List<String> failed = new ArrayList<>();
+        CountDownLatch failure = new CountDownLatch(1);
+        ClientDispatcher dispatcher = new ClientDispatcher(sessionId -> {
+            synchronized (failed) {
+                failed.add(sessionId);
+            }
+            failure.countDown();
+        });
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(2);
+        ClientDispatcher.ClientCall block = client -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        try {
+            IWhiteboardClient kept = callbackClient();
+            dispatcher.register("kept", kept);
+            dispatcher.register("slow", callbackClient());
+            CountDownLatch delivered = new CountDownLatch(1);
+            assertTrue(dispatcher.send("kept", block));
+            assertTrue(dispatcher.send("kept", client -> delivered.countDown()));
+            assertTrue(dispatcher.send("slow", block));
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+            // 同一客户端重复注册时保留通道和排队的回调
+            dispatcher.register("kept", kept);
+            assertEquals(1, dispatcher.getQueuedCount("kept"));
+
+            // 发送线程卡住时队列写满，溢出的会话交给 failureHandler 处理
+            int accepted = 0;
+            while (accepted < 2048 && dispatcher.send("slow", client -> { })) {
+                accepted++;
+            }
+            assertEquals(1024, accepted);
+            assertTrue(failure.await(5, TimeUnit.SECONDS));
+            synchronized (failed) {
+                assertEquals(Arrays.asList("slow"), failed);
+            }
+            assertTrue(!dispatcher.getSessionIds().contains("slow"));
+            assertTrue(!dispatcher.send("slow", client -> { }));
+
+            release.countDown();
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+            assertTrue(dispatcher.getSessionIds().contains("kept"));
+        } finally {
+            release.countDown();
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void previewRelaySendsLatestFrameAndOnlyNewPoints() throws Exception {
+        ClientDispatcher dispatcher = new ClientDispatcher(sessionId -> { });
+        PreviewRelay relay = new PreviewRelay(dispatcher, 100);
+        List<String> received = new ArrayList<>();
+        try {
+            dispatcher.register("drawer", callbackClient());
+            dispatcher.register("viewer", previewClient(received));
+
+            // 一帧内多次更新只推送最新的一帧
+            List<Shape> frames = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                frames.add(new Rectangle(new Point(0, 0), new Point(10 + i, 10 + i), Color.BLACK, 1));
+            }
+            flushPreviews(dispatcher, "viewer", () -> {
+                for (Shape frame : frames) {
+                    relay.publish("alice", frame, "drawer");
+                }
+            });
+            assertEquals(Arrays.asList("update alice " + frames.get(2).getId()), received);
+
+            // 自由绘制只推送接收者还没有的点
+            FreeDrawing stroke = new FreeDrawing(new Point(0, 0), Color.BLACK, 2);
+            stroke.addPoint(1, 1);
+            stroke.addPoint(2, 2);
+            relay.begin("bob", stroke, "drawer");
+            stroke.addPoint(3, 3);
+            stroke.addPoint(4, 4);
+            received.clear();
+            flushPreviews(dispatcher, "viewer", () -> relay.publishAppend("bob", stroke, "drawer"));
+            assertEquals(Arrays.asList("append bob 3 [3, 3, 4, 4]"), received);
+
+            // 同一帧里有完整预览时发送完整形状，之后的增量从完整形状的点数开始
+            stroke.addPoint(5, 5);
+            received.clear();
+            flushPreviews(dispatcher, "viewer", () -> {
+                relay.publishAppend("bob", stroke, "drawer");
+                relay.publish("bob", stroke, "drawer");
+            });
+            assertEquals(Arrays.asList("update bob " + stroke.getId()), received);
+            stroke.addPoint(6, 6);
+            received.clear();
+            flushPreviews(dispatcher, "viewer", () -> relay.publishAppend("bob", stroke, "drawer"));
+            assertEquals(Arrays.asList("append bob 6 [6, 6]"), received);
+        } finally {
+            relay.shutdown();
+            dispatcher.shutdown();
+        }
+
+        // 接收端跳过已有的重叠点，下标对不上时保持原样
+        FreeDrawing copy = new FreeDrawing(new Point(0, 0), Color.BLACK, 2);
+        copy.addPoint(1, 1);
+        copy.addPoint(2, 2);
+        assertEquals(5, copy.appendCoordinates(1, new int[] {1, 1, 2, 2, 3, 3, 4, 4}));
+        assertEquals(Arrays.toString(new int[] {0, 0, 1, 1, 2, 2, 3, 3, 4, 4}), Arrays.toString(copy.getCoordinates(0)));
+        assertEquals(5, copy.appendCoordinates(7, new int[] {7, 7}));
+    }
+
+    private interface HeartbeatAction {
+        void run() throws RemoteException;
+    }
+
+    private static IWhiteboardClient heartbeatClient(HeartbeatAction action) {
+        return (IWhiteboardClient) Proxy.newProxyInstance(IWhiteboardClient.class.getClassLoader(),
+                new Class<?>[]{IWhiteboardClient.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("heartbeat")) {
+                        action.run();
+                    }
+                    return null;
+                });
+    }
+
+    // 回调内容由 ClientCall 决定，客户端只需要按引用比较
+    private static IWhiteboardClient callbackClient() {
+        return (IWhiteboardClient) Proxy.newProxyInstance(IWhiteboardClient.class.getClassLoader(),
+                new Class<?>[]{IWhiteboardClient.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("equals")) {
+                        return proxy == args[0];
+                    }
+                    if (method.getName().equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    return null;
+                });
+    }
+
+    private static IWhiteboardClient previewClient(List<String> received) {
+        return (IWhiteboardClient) Proxy.newProxyInstance(IWhiteboardClient.class.getClassLoader(),
+                new Class<?>[]{IWhiteboardClient.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("receivePreviewUpdate")) {
+                        received.add("update " + args[1] + " " + ((Shape) args[0]).getId());
+                    } else if (method.getName().equals("receivePreviewAppend")) {
+                        received.add("append " + args[0] + " " + args[1] + " " + Arrays.toString((int[]) args[2]));
+                    } else if (method.getName().equals("equals")) {
+                        return proxy == args[0];
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * 阻塞接收者的发送线程，执行 publish 后等到预览推送入队，放行后等它执行完。
+     * 推送执行时才读取槽位，因此 publish 中的所有更新都在同一帧里
+     */
+    private static void flushPreviews(ClientDispatcher dispatcher, String sessionId, Runnable publish) throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        dispatcher.send(sessionId, client -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        publish.run();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getQueuedCount(sessionId) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        CountDownLatch flushed = new CountDownLatch(1);
+        dispatcher.send(sessionId, client -> flushed.countDown());
+        assertTrue(flushed.await(5, TimeUnit.SECONDS));
+    }
+
+    private static List<String> ids(List<Shape> shapes) {
+        List<String> ids = new ArrayList<>();
+        for (Shape shape : shapes) {
+            ids.add(shape.getId());
+        }
+        return ids;
+    }
+
+    private static void saveAndWait(SaveService saveService, File target, WhiteboardState state) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        boolean[] result = new boolean[1];
+        saveService.submit(target, state.snapshot(), "carol", new SaveService.SaveListener() {
+            @Override
+            public void onProgress(long ticket, int percent) {
+            }
+
+            @Override
+            public void onComplete(long ticket, boolean success, String error) {
+                result[0] = success;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(result[0]);
+    }
+
+    @Test
+    public void journalRecoversLoadedWhiteboard() throws IOException {
+        WhiteboardState state = new WhiteboardState();
+        OperationJournal journal = new OperationJournal(journalDir, 1000);
+        journal.open(state);
+        state.commitShape(new Line(new Point(0, 0), new Point(1, 1), Color.BLACK, 1), "s1");
+
+        List<Shape> board = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            board.add(new Rectangle(new Point(i, i), new Point(i + 10, i + 20), Color.ORANGE, 2));
+        }
+        state.load(board, "s1");
+        state.commitShape(new Line(new Point(5, 5), new Point(9, 9), Color.BLACK, 1), "s1");
+        assertTrue(journal.sync());
+        journal.close();
+
+        assertSameShapes(state, reopen());
+        assertEquals(51, state.size());
+    }
+
+    private WhiteboardState reopen() throws IOException {
+        WhiteboardState recovered = new WhiteboardState();
+        OperationJournal journal = new OperationJournal(journalDir, 1000);
+        journal.open(recovered);
+        journal.close();
+        return recovered;
+    }
+
+    private static void assertSameShapes(WhiteboardState expected, WhiteboardState actual) {
+        assertEquals(expected.getVersion(), actual.getVersion());
+        List<Shape> expectedShapes = expected.getShapes();
+        List<Shape> actualShapes = actual.getShapes();
+        assertEquals(expectedShapes.size(), actualShapes.size());
+        for (int i = 0; i < expectedShapes.size(); i++) {
+            Shape e = expectedShapes.get(i);
+            Shape a = actualShapes.get(i);
+            assertEquals(e.getId(), a.getId());
+            assertEquals(e.getClass(), a.getClass());
+            assertEquals(e.getTimestamp(), a.getTimestamp());
+            assertEquals(e.getEndPoint(), a.getEndPoint());
+        }
+    }
 }